@@ -0,0 +1,697 @@
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.IntStream;
+
+// A read-only copy of everything options 4, 6, 7 and 8 read, in one columnar file, so that heavy or what-if
+// reporting can run on a laptop without going near the production database.
+// export copies the order lines, staff links and orders (live and archived), inventory and staff from one
+// REPEATABLE READ snapshot. Each column is stored as a flat little-endian array of ints or longs - dates as epoch
+// days, prices in pence - and strings as offsets into a block of UTF-8.
+// open memory-maps the columns, so a snapshot opens straight away whatever its size and only the pages a report
+// touches are read. The reports scan the order lines in parallel chunks on the common fork-join pool, each chunk
+// adding up into arrays of its own which are then merged. They give the same figures as the database, though
+// rows with equal totals may come out in a different order.
+//   java Assignment --snapshot file                                          writes a snapshot
+//   java Assignment --snapshot-report file option4|option6|option7|option8 [year] [table|csv|json]
+class AnalyticsSnapshot {
+
+    static final byte[] MAGIC = "INVSNAP1".getBytes(StandardCharsets.US_ASCII);
+    static final byte INT = 1;
+    static final byte LONG = 2;
+    static final byte STRING = 3;
+
+    // Order lines per parallel task
+    static final int CHUNK = 1 << 16;
+
+    static final String LINES = "SELECT OrderID, ProductID, ProductQuantity, OrderPlaced - DATE '1970-01-01' FROM allOrderLines";
+    static final String LINKS = "SELECT OrderID, StaffID FROM allStaffOrders ORDER BY OrderID, StaffID";
+    static final String ORDERS = "SELECT OrderID, CASE OrderType WHEN 'InStore' THEN 0 WHEN 'Collection' THEN 1 ELSE 2 END, "
+            + "OrderCompleted, OrderPlaced - DATE '1970-01-01' FROM orders "
+            + "UNION ALL SELECT OrderID, CASE OrderType WHEN 'InStore' THEN 0 WHEN 'Collection' THEN 1 ELSE 2 END, "
+            + "OrderCompleted, OrderPlaced - DATE '1970-01-01' FROM orders_archive";
+    static final String INVENTORY = "SELECT ProductID, (ProductPrice * 100)::BIGINT, COALESCE(ProductStockAmount, 0), ProductDesc "
+            + "FROM inventory ORDER BY ProductID";
+    static final String STAFF = "SELECT StaffID, FName, LName FROM staff ORDER BY StaffID";
+
+    // Where one column is in the file
+    static final class Column {
+        final String name;
+        final byte type;
+        final int rows;
+        long offset;
+        long length;
+
+        Column(String name, byte type, int rows, long length) {
+            this.name = name;
+            this.type = type;
+            this.rows = rows;
+            this.length = length;
+        }
+    }
+
+    // Something added up over the order lines, a chunk at a time
+    interface Aggregate<T> {
+        T create();
+
+        void add(T into, int line);
+
+        T merge(T a, T b);
+    }
+
+    private final IntBuffer lineOrder, lineProduct, lineQuantity, lineDay;
+    private final IntBuffer linkOrder, linkStaff;
+    private final IntBuffer orderIDs, orderTypes, orderCompleted, orderDays;
+
+    private final int[] productIDs;
+    private final long[] productPrices;
+    private final String[] productDescs;
+    private final IntIntMap productIndex = new IntIntMap();
+
+    private final int[] staffIDs;
+    private final String[] staffFirstNames, staffLastNames;
+    private final IntIntMap staffIndex = new IntIntMap();
+
+    private AnalyticsSnapshot(Map<String, Buffer> columns) {
+        lineOrder = (IntBuffer) columns.get("lines.OrderID");
+        lineProduct = (IntBuffer) columns.get("lines.ProductID");
+        lineQuantity = (IntBuffer) columns.get("lines.ProductQuantity");
+        lineDay = (IntBuffer) columns.get("lines.OrderPlaced");
+        linkOrder = (IntBuffer) columns.get("staff_orders.OrderID");
+        linkStaff = (IntBuffer) columns.get("staff_orders.StaffID");
+        orderIDs = (IntBuffer) columns.get("orders.OrderID");
+        orderTypes = (IntBuffer) columns.get("orders.OrderType");
+        orderCompleted = (IntBuffer) columns.get("orders.OrderCompleted");
+        orderDays = (IntBuffer) columns.get("orders.OrderPlaced");
+
+        // The small tables are copied onto the heap and indexed
+        productIDs = ints((IntBuffer) columns.get("inventory.ProductID"));
+        productPrices = longs((LongBuffer) columns.get("inventory.ProductPrice"));
+        productDescs = strings((ByteBuffer) columns.get("inventory.ProductDesc"), productIDs.length);
+        for (int p = 0; p < productIDs.length; p++) {
+            productIndex.put(productIDs[p], p);
+        }
+        staffIDs = ints((IntBuffer) columns.get("staff.StaffID"));
+        staffFirstNames = strings((ByteBuffer) columns.get("staff.FName"), staffIDs.length);
+        staffLastNames = strings((ByteBuffer) columns.get("staff.LName"), staffIDs.length);
+        for (int s = 0; s < staffIDs.length; s++) {
+            staffIndex.put(staffIDs[s], s);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the reporting tables.
+     *
+     * @param conn A report connection (see ReportConnection), so that every table is read from the same snapshot
+     * @param path The file to write - replaced if it exists
+     * @return The number of order lines written
+     */
+    public static long export(Connection conn, String path) throws SQLException, IOException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            int lines = count(conn, "SELECT COUNT(*) FROM allOrderLines");
+            int links = count(conn, "SELECT COUNT(*) FROM allStaffOrders");
+            int orders = count(conn, "SELECT (SELECT COUNT(*) FROM orders) + (SELECT COUNT(*) FROM orders_archive)");
+
+            // Inventory and staff are small, and their strings have to be measured before the layout is known
+            List<Object[]> products = readAll(conn, INVENTORY, 4);
+            List<Object[]> staff = readAll(conn, STAFF, 3);
+
+            Map<String, Column> layout = new LinkedHashMap<String, Column>();
+            intColumns(layout, "lines", lines, "OrderID", "ProductID", "ProductQuantity", "OrderPlaced");
+            intColumns(layout, "staff_orders", links, "OrderID", "StaffID");
+            intColumns(layout, "orders", orders, "OrderID", "OrderType", "OrderCompleted", "OrderPlaced");
+            intColumns(layout, "inventory", products.size(), "ProductID", "ProductStockAmount");
+            layout.put("inventory.ProductPrice", new Column("inventory.ProductPrice", LONG, products.size(), 8L * products.size()));
+            byte[] descs = stringBlock(products, 3);
+            layout.put("inventory.ProductDesc", new Column("inventory.ProductDesc", STRING, products.size(), descs.length));
+            intColumns(layout, "staff", staff.size(), "StaffID");
+            byte[] firstNames = stringBlock(staff, 1);
+            byte[] lastNames = stringBlock(staff, 2);
+            layout.put("staff.FName", new Column("staff.FName", STRING, staff.size(), firstNames.length));
+            layout.put("staff.LName", new Column("staff.LName", STRING, staff.size(), lastNames.length));
+
+            // The header is the same size whatever the offsets are, so lay the columns out after it, 8-byte aligned
+            long position = header(layout.values()).length;
+            for (Column column : layout.values()) {
+                position = (position + 7) & ~7L;
+                column.offset = position;
+                position += column.length;
+            }
+
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(header(layout.values())), 0);
+
+                stream(conn, LINES, channel, layout, "lines", "OrderID", "ProductID", "ProductQuantity", "OrderPlaced");
+                stream(conn, LINKS, channel, layout, "staff_orders", "OrderID", "StaffID");
+                stream(conn, ORDERS, channel, layout, "orders", "OrderID", "OrderType", "OrderCompleted", "OrderPlaced");
+
+                IntBuffer ids = map(channel, layout.get("inventory.ProductID")).asIntBuffer();
+                IntBuffer stock = map(channel, layout.get("inventory.ProductStockAmount")).asIntBuffer();
+                LongBuffer prices = map(channel, layout.get("inventory.ProductPrice")).asLongBuffer();
+                for (Object[] product : products) {
+                    ids.put((Integer) product[0]);
+                    prices.put((Long) product[1]);
+                    stock.put((Integer) product[2]);
+                }
+                map(channel, layout.get("inventory.ProductDesc")).put(descs);
+
+                IntBuffer staffIDs = map(channel, layout.get("staff.StaffID")).asIntBuffer();
+                for (Object[] member : staff) {
+                    staffIDs.put((Integer) member[0]);
+                }
+                map(channel, layout.get("staff.FName")).put(firstNames);
+                map(channel, layout.get("staff.LName")).put(lastNames);
+            }
+            return lines;
+        } finally {
+            conn.commit();
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static int count(Connection conn, String sql) throws SQLException {
+        Statement st = conn.createStatement();
+        ResultSet rs = st.executeQuery(sql);
+        rs.next();
+        long rows = rs.getLong(1);
+        rs.close();
+        st.close();
+        if (rows > Integer.MAX_VALUE / 8) {
+            throw new SQLException("Too many rows for one snapshot: " + sql);
+        }
+        return (int) rows;
+    }
+
+    private static List<Object[]> readAll(Connection conn, String sql, int columns) throws SQLException {
+        List<Object[]> rows = new ArrayList<Object[]>();
+        Statement st = conn.createStatement();
+        ResultSet rs = st.executeQuery(sql);
+        while (rs.next()) {
+            Object[] row = new Object[columns];
+            for (int c = 0; c < columns; c++) {
+                row[c] = rs.getObject(c + 1);
+            }
+            rows.add(row);
+        }
+        rs.close();
+        st.close();
+        return rows;
+    }
+
+    private static void intColumns(Map<String, Column> layout, String table, int rows, String... names) {
+        for (String name : names) {
+            layout.put(table + "." + name, new Column(table + "." + name, INT, rows, 4L * rows));
+        }
+    }
+
+    // rows + 1 offsets, then the UTF-8 of every value end to end
+    private static byte[] stringBlock(List<Object[]> rows, int column) {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteBuffer offsets = ByteBuffer.allocate(4 * (rows.size() + 1)).order(ByteOrder.LITTLE_ENDIAN);
+        for (Object[] row : rows) {
+            offsets.putInt(text.size());
+            byte[] value = (row[column] == null ? "" : row[column].toString()).getBytes(StandardCharsets.UTF_8);
+            text.write(value, 0, value.length);
+        }
+        offsets.putInt(text.size());
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(offsets.array(), 0, offsets.capacity());
+        block.write(text.toByteArray(), 0, text.size());
+        return block.toByteArray();
+    }
+
+    private static byte[] header(Collection<Column> columns) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeInt(columns.size());
+        for (Column column : columns) {
+            out.writeUTF(column.name);
+            out.writeByte(column.type);
+            out.writeInt(column.rows);
+            out.writeLong(column.offset);
+            out.writeLong(column.length);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, Column column) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, column.offset, column.length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    // Copy a query's int columns straight into the file through a cursor
+    private static void stream(Connection conn, String sql, FileChannel channel, Map<String, Column> layout,
+            String table, String... names) throws SQLException, IOException {
+        IntBuffer[] columns = new IntBuffer[names.length];
+        int rows = layout.get(table + "." + names[0]).rows;
+        for (int c = 0; c < names.length; c++) {
+            columns[c] = map(channel, layout.get(table + "." + names[c])).asIntBuffer();
+        }
+        PreparedStatement pst = conn.prepareStatement(sql);
+        pst.setFetchSize(ReportWriter.FETCH_SIZE);
+        ResultSet rs = pst.executeQuery();
+        int row = 0;
+        while (rs.next() && row < rows) {
+            for (int c = 0; c < names.length; c++) {
+                columns[c].put(rs.getInt(c + 1));
+            }
+            row++;
+        }
+        rs.close();
+        pst.close();
+        if (row != rows) {
+            throw new SQLException(table + " changed while it was being copied - export from a REPEATABLE READ connection");
+        }
+    }
+
+    /**
+     * @param path A file written by export
+     * @return The snapshot, with its columns mapped into memory
+     */
+    public static AnalyticsSnapshot open(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                in.close();
+                throw new IOException(path + " is not an analytics snapshot");
+            }
+            Map<String, Buffer> columns = new HashMap<String, Buffer>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte type = in.readByte();
+                in.readInt();
+                long offset = in.readLong();
+                long length = in.readLong();
+                // A mapping stays valid after its channel is closed
+                ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+                columns.put(name, type == INT ? bytes.asIntBuffer() : type == LONG ? bytes.asLongBuffer() : bytes);
+            }
+            in.close();
+            return new AnalyticsSnapshot(columns);
+        }
+    }
+
+    private static int[] ints(IntBuffer column) {
+        int[] values = new int[column.limit()];
+        column.get(values);
+        return values;
+    }
+
+    private static long[] longs(LongBuffer column) {
+        long[] values = new long[column.limit()];
+        column.get(values);
+        return values;
+    }
+
+    private static String[] strings(ByteBuffer block, int rows) {
+        String[] values = new String[rows];
+        int text = 4 * (rows + 1);
+        for (int r = 0; r < rows; r++) {
+            int from = block.getInt(4 * r);
+            int to = block.getInt(4 * (r + 1));
+            byte[] bytes = new byte[to - from];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = block.get(text + from + i);
+            }
+            values[r] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+
+    /**
+     * Writes one of the reports the way the menu or --export would.
+     *
+     * @param report option4, option6, option7 or option8
+     * @param year   The year for option8
+     * @param format How to lay out option 4, 6 or 7 - option8 is always written as the menu shows it
+     * @param out    Where to write it - flushed but not closed
+     * @return The number of rows written, or -1 for the option 7 table and option 8
+     */
+    public long write(String report, int year, ReportWriter.Format format, Writer out) throws IOException {
+        switch (report) {
+            case "option4":
+                return Assignment.reportWriter(format, out, 3).write(new String[] {"productid", "productdesc", "totalvalue"},
+                        new boolean[] {true, false, true}, option4());
+            case "option6":
+                return Assignment.reportWriter(format, out, 2).write(new String[] {"fullname", "lifetimesales"},
+                        new boolean[] {false, true}, option6());
+            case "option7":
+                if (format == ReportWriter.Format.TABLE) {
+                    option7(out);
+                    return -1;
+                }
+                return new ReportWriter(format, out).write(
+                        new String[] {"staffid", "staffname", "productid", "unitssold", "valofproductsold"},
+                        new boolean[] {true, false, true, true, true}, option7Rows());
+            case "option8":
+                out.write("\n-- Employees Of The Year " + year + " --\n");
+                for (String name : option8(year)) {
+                    out.write(name + "\n");
+                }
+                out.write("\n");
+                out.flush();
+                return -1;
+            default:
+                throw new IllegalArgumentException("Unknown report " + report + " - expected option4, option6, option7 or option8");
+        }
+    }
+
+    /**
+     * @return How many order lines, staff links and orders the snapshot holds
+     */
+    public String describe() {
+        return String.format("%d order lines, %d staff links, %d orders, %d products, %d staff", lineOrder.limit(),
+                linkOrder.limit(), orderIDs.limit(), productIDs.length, staffIDs.length);
+    }
+
+    // Run an aggregate over every order line, in parallel chunks
+    private <T> T scan(final Aggregate<T> aggregate) {
+        final int lines = lineOrder.limit();
+        int chunks = (lines + CHUNK - 1) / CHUNK;
+        if (chunks == 0) {
+            return aggregate.create();
+        }
+        return IntStream.range(0, chunks).parallel().mapToObj(new IntFunction<T>() {
+            public T apply(int chunk) {
+                T partial = aggregate.create();
+                int end = Math.min(lines, (chunk + 1) * CHUNK);
+                for (int line = chunk * CHUNK; line < end; line++) {
+                    aggregate.add(partial, line);
+                }
+                return partial;
+            }
+        }).reduce(new BinaryOperator<T>() {
+            public T apply(T a, T b) {
+                return aggregate.merge(a, b);
+            }
+        }).get();
+    }
+
+    // The first of an order's staff links - they are sorted by OrderID
+    private int firstLink(int orderID) {
+        int low = 0;
+        int high = linkOrder.limit();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (linkOrder.get(mid) < orderID) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long[] addInto(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] += b[i];
+        }
+        return a;
+    }
+
+    private static String pounds(long pence) {
+        return BigDecimal.valueOf(pence, 2).toPlainString();
+    }
+
+    // Units sold of each product, by inventory row
+    long[] productUnits() {
+        return scan(new Aggregate<long[]>() {
+            public long[] create() {
+                return new long[productIDs.length];
+            }
+
+            public void add(long[] units, int line) {
+                int product = productIndex.get(lineProduct.get(line), -1);
+                if (product >= 0) {
+                    units[product] += lineQuantity.get(line);
+                }
+            }
+
+            public long[] merge(long[] a, long[] b) {
+                return addInto(a, b);
+            }
+        });
+    }
+
+    /**
+     * Option 4 - every product and the value it has sold, highest first.
+     *
+     * @return ProductID, ProductDesc, totalValue rows
+     */
+    public List<String[]> option4() {
+        final long[] value = productUnits();
+        Integer[] order = new Integer[productIDs.length];
+        for (int p = 0; p < order.length; p++) {
+            order[p] = p;
+            value[p] *= productPrices[p];
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(value[b], value[a]);
+            }
+        });
+        List<String[]> rows = new ArrayList<String[]>();
+        for (int p : order) {
+            rows.add(new String[] {Integer.toString(productIDs[p]), productDescs[p], pounds(value[p])});
+        }
+        return rows;
+    }
+
+    /**
+     * Option 6 - staff whose lifetime sales are £50,000 or more, highest first.
+     *
+     * @return fullName, lifetimeSales rows
+     */
+    public List<String[]> option6() {
+        final long[] sales = scan(new Aggregate<long[]>() {
+            public long[] create() {
+                return new long[staffIDs.length];
+            }
+
+            public void add(long[] totals, int line) {
+                int product = productIndex.get(lineProduct.get(line), -1);
+                if (product < 0) {
+                    return;
+                }
+                long value = lineQuantity.get(line) * productPrices[product];
+                int orderID = lineOrder.get(line);
+                for (int link = firstLink(orderID); link < linkOrder.limit() && linkOrder.get(link) == orderID; link++) {
+                    int staff = staffIndex.get(linkStaff.get(link), -1);
+                    if (staff >= 0) {
+                        totals[staff] += value;
+                    }
+                }
+            }
+
+            public long[] merge(long[] a, long[] b) {
+                return addInto(a, b);
+            }
+        });
+        List<Integer> qualifying = new ArrayList<Integer>();
+        for (int s = 0; s < staffIDs.length; s++) {
+            if (sales[s] >= 50000_00L) {
+                qualifying.add(s);
+            }
+        }
+        qualifying.sort(new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(sales[b], sales[a]);
+            }
+        });
+        List<String[]> rows = new ArrayList<String[]>();
+        for (int s : qualifying) {
+            rows.add(new String[] {staffFirstNames[s] + " " + staffLastNames[s], pounds(sales[s])});
+        }
+        return rows;
+    }
+
+    /**
+     * Option 7 - the units of every product that has sold over £20,000 sold by each member of staff.
+     *
+     * @param out Where to write the Staff Contribution table, as StaffPivot does
+     */
+    public void option7(Writer out) throws IOException {
+        Contribution contribution = contribution();
+        final int width = contribution.top.length;
+        final long[] staffValue = new long[staffIDs.length];
+        Integer[] order = new Integer[staffIDs.length];
+        for (int s = 0; s < staffIDs.length; s++) {
+            order[s] = s;
+            for (int t = 0; t < width; t++) {
+                staffValue[s] += contribution.units[s * width + t] * productPrices[contribution.top[t]];
+            }
+        }
+        // As highestSellingProductSellersView orders them - the biggest sellers of the top products first
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int byValue = Long.compare(staffValue[b], staffValue[a]);
+                return byValue != 0 ? byValue : Integer.compare(staffIDs[a], staffIDs[b]);
+            }
+        });
+
+        StaffPivot pivot = new StaffPivot();
+        for (int s : order) {
+            for (int t = 0; t < width; t++) {
+                long units = contribution.units[s * width + t];
+                if (units > 0) {
+                    pivot.addRow(staffIDs[s], staffFirstNames[s], staffLastNames[s], productIDs[contribution.top[t]], (int) units);
+                }
+            }
+        }
+        pivot.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Option 7 as the exports write it, a row per member of staff per product.
+     *
+     * @return staffID, staffName, ProductID, unitsSold, valOfProductSold rows
+     */
+    public List<String[]> option7Rows() {
+        Contribution contribution = contribution();
+        int width = contribution.top.length;
+        List<String[]> rows = new ArrayList<String[]>();
+        for (int s = 0; s < staffIDs.length; s++) {
+            for (int t = 0; t < width; t++) {
+                long units = contribution.units[s * width + t];
+                int product = contribution.top[t];
+                if (units > 0) {
+                    rows.add(new String[] {Integer.toString(staffIDs[s]), staffFirstNames[s] + " " + staffLastNames[s],
+                            Integer.toString(productIDs[product]), Long.toString(units), pounds(units * productPrices[product])});
+                }
+            }
+        }
+        return rows;
+    }
+
+    // The products that have sold over £20,000, and the units of each that every member of staff sold
+    static final class Contribution {
+        // Inventory rows, in ProductID order
+        final int[] top;
+        // A row of top.length cells per member of staff
+        final long[] units;
+
+        Contribution(int[] top, long[] units) {
+            this.top = top;
+            this.units = units;
+        }
+    }
+
+    private Contribution contribution() {
+        long[] productUnits = productUnits();
+        final IntIntMap topColumn = new IntIntMap();
+        int[] top = new int[productIDs.length];
+        int width = 0;
+        for (int p = 0; p < productIDs.length; p++) {
+            if (productUnits[p] * productPrices[p] > EmployeeOfTheYear.PRODUCT_THRESHOLD) {
+                topColumn.put(p, width);
+                top[width++] = p;
+            }
+        }
+        final int columns = width;
+        long[] units = scan(new Aggregate<long[]>() {
+            public long[] create() {
+                return new long[staffIDs.length * columns];
+            }
+
+            public void add(long[] cells, int line) {
+                int column = topColumn.get(productIndex.get(lineProduct.get(line), -1), -1);
+                if (column < 0) {
+                    return;
+                }
+                int orderID = lineOrder.get(line);
+                for (int link = firstLink(orderID); link < linkOrder.limit() && linkOrder.get(link) == orderID; link++) {
+                    int staff = staffIndex.get(linkStaff.get(link), -1);
+                    if (staff >= 0) {
+                        cells[staff * columns + column] += lineQuantity.get(line);
+                    }
+                }
+            }
+
+            public long[] merge(long[] a, long[] b) {
+                return addInto(a, b);
+            }
+        });
+        return new Contribution(Arrays.copyOf(top, width), units);
+    }
+
+    /**
+     * Option 8 - the Employees of the Year, worked out by EmployeeOfTheYear from the year's sales.
+     *
+     * @param year The year to evaluate
+     * @return The full names of the winners, best seller first
+     */
+    public List<String> option8(int year) {
+        final int from = (int) java.time.LocalDate.of(year, 1, 1).toEpochDay();
+        final int to = (int) java.time.LocalDate.of(year + 1, 1, 1).toEpochDay();
+        Map<Long, long[]> sales = scan(new Aggregate<Map<Long, long[]>>() {
+            public Map<Long, long[]> create() {
+                return new HashMap<Long, long[]>();
+            }
+
+            public void add(Map<Long, long[]> sales, int line) {
+                int day = lineDay.get(line);
+                int product = productIndex.get(lineProduct.get(line), -1);
+                if (day < from || day >= to || product < 0) {
+                    return;
+                }
+                long value = lineQuantity.get(line) * productPrices[product];
+                int orderID = lineOrder.get(line);
+                for (int link = firstLink(orderID); link < linkOrder.limit() && linkOrder.get(link) == orderID; link++) {
+                    long key = ((long) linkStaff.get(link) << 32) | (product & 0xffffffffL);
+                    long[] total = sales.get(key);
+                    if (total == null) {
+                        total = new long[1];
+                        sales.put(key, total);
+                    }
+                    total[0] += value;
+                }
+            }
+
+            public Map<Long, long[]> merge(Map<Long, long[]> a, Map<Long, long[]> b) {
+                for (Map.Entry<Long, long[]> entry : b.entrySet()) {
+                    long[] total = a.get(entry.getKey());
+                    if (total == null) {
+                        a.put(entry.getKey(), entry.getValue());
+                    } else {
+                        total[0] += entry.getValue()[0];
+                    }
+                }
+                return a;
+            }
+        });
+
+        EmployeeOfTheYear evaluator = new EmployeeOfTheYear();
+        for (Map.Entry<Long, long[]> entry : sales.entrySet()) {
+            int staffID = (int) (entry.getKey() >> 32);
+            int product = (int) (long) entry.getKey();
+            evaluator.addSale(year, staffID, productIDs[product], entry.getValue()[0]);
+        }
+        evaluator.finishYear();
+
+        List<String> names = new ArrayList<String>();
+        int[] winners = evaluator.getWinners().get(year);
+        if (winners != null) {
+            for (int staffID : winners) {
+                int staff = staffIndex.get(staffID, -1);
+                names.add(staff < 0 ? null : staffFirstNames[staff] + " " + staffLastNames[staff]);
+            }
+        }
+        return names;
+    }
+}
@@ -5,26 +5,45 @@ import java.text.SimpleDateFormat;
 
 class Assignment {
 
+    // Console input is read a line at a time through a buffer, rather than a byte per read() call.
+    // The reader is recreated if System.in is replaced, e.g. by a test feeding in a script
+    private static BufferedReader input;
+    private static InputStream inputSource;
+
     public static String readEntry(String prompt) {
         try {
-            StringBuffer buffer = new StringBuffer();
             System.out.print(prompt);
             System.out.flush();
-            int c = System.in.read();
-            while (c != '\n' && c != -1) {
-                buffer.append((char) c);
-                c = System.in.read();
+            if (input == null || inputSource != System.in) {
+                inputSource = System.in;
+                input = new BufferedReader(new InputStreamReader(System.in));
             }
-            return buffer.toString().trim();
+            String line = input.readLine();
+            return line == null ? "" : line.trim();
         } catch (IOException e) {
             return "";
         }
     }
 
     public static void main(String args[]) throws SQLException, IOException {
-        // You should only need to fetch the connection details once
-        Connection conn = getConnection();
+        // Command line modes run instead of the interactive menu
+        if (args.length > 0) {
+            runMode(args);
+            return;
+        }
+
+        // You should only need to fetch the connection details once. Reports get a read-only connection of their
+        // own so they don't hold up orders - see ReportConnection
+        Connection conn = getOrderConnection();
+        Connection reports = ReportConnection.open();
+        if (reports == null) {
+            reports = conn;
+        }
         String opt = "";
+        CollectionPurge.scheduleFromProperties();
+        Catalog.start();
+        Metrics.start();
+        CollectionExpiry.start();
 
         while (true) {
             printMenu();
@@ -33,7 +52,12 @@ class Assignment {
 
             switch (opt) {
                 case "0":
+                    StatementCache.release(conn);
                     conn.close();
+                    if (reports != conn) {
+                        StatementCache.release(reports);
+                        reports.close();
+                    }
                     System.out.println("Exiting Inventory Management...");
                     return;
                 case "1":
@@ -58,29 +82,172 @@ class Assignment {
                     }
                     break;
                 case "4":
-                    option4(conn);
+                    option4(reports);
                     break;
                 case "5":
                     String userDate = readEntry("Enter the date: ");
                     option5(conn, userDate);
                     break;
                 case "6":
-                    option6(conn);
+                    option6(reports);
                     break;
                 case "7":
-                    option7(conn);
+                    option7(reports);
                     break;
                 case "8":
                     Integer myYear = Integer.valueOf(readEntry("Enter a year: "));
-                    option8(conn, myYear);
+                    option8(reports, myYear);
 
+                    break;
+                case "9":
+                    Metrics.print();
+                    System.out.println("Report cache: " + ReportCache.get() + "\n");
                     break;
                 default:
-                    System.out.println("That's not a valid option. Press a number between 0 and 8.");
+                    System.out.println("That's not a valid option. Press a number between 0 and 9.");
             }
         }
     }
 
+    /**
+     * @param args The command line, starting with the mode to run
+     */
+    public static void runMode(String args[]) throws SQLException, IOException {
+        Connection conn;
+        switch (args[0]) {
+            case "--server":
+                // Take orders from many tills at once - see OrderServer
+                OrderServer.run(args.length > 1 ? Integer.parseInt(args[1]) : OrderServer.DEFAULT_PORT);
+                break;
+            case "--rebuild-rollups":
+                conn = getConnection();
+                Rollups.rebuild(conn);
+                conn.close();
+                break;
+            case "--check-rollups":
+                conn = getConnection();
+                int drift = Rollups.check(conn);
+                conn.close();
+                if (drift > 0) {
+                    System.exit(1);
+                }
+                break;
+            case "--employees-of-the-year":
+                // Every year in the range at once, e.g. to precompute the whole history
+                conn = ReportConnection.open();
+                int fromYear = args.length > 1 ? Integer.parseInt(args[1]) : 1900;
+                int toYear = args.length > 2 ? Integer.parseInt(args[2]) : 2100;
+                for (Map.Entry<Integer, List<String>> year : EmployeeOfTheYear.evaluate(conn, fromYear, toYear).entrySet()) {
+                    System.out.println(year.getKey() + ": " + String.join(", ", year.getValue()));
+                }
+                conn.close();
+                break;
+            case "--import":
+                // Load historical orders from CSV or NDJSON files - see BulkImport for the format
+                conn = getConnection();
+                int imported = BulkImport.load(conn, Arrays.copyOfRange(args, 1, args.length));
+                conn.close();
+                if (imported == 0) {
+                    System.exit(1);
+                }
+                break;
+            case "--batch":
+                // Replay a till log - see BatchMode
+                if (args.length < 2) {
+                    System.out.println("Usage: java Assignment --batch file [--depth N] [--quiet]");
+                    break;
+                }
+                int depth = 64;
+                boolean quiet = false;
+                for (int i = 2; i < args.length; i++) {
+                    if (args[i].equals("--depth") && i + 1 < args.length) {
+                        depth = Integer.parseInt(args[++i]);
+                    } else if (args[i].equals("--quiet")) {
+                        quiet = true;
+                    }
+                }
+                conn = getOrderConnection();
+                int batchFailures;
+                try {
+                    batchFailures = new BatchMode(depth).run(conn, args[1], quiet);
+                } catch (InterruptedException e) {
+                    batchFailures = 1;
+                }
+                StatementCache.release(conn);
+                conn.close();
+                if (batchFailures > 0) {
+                    System.exit(1);
+                }
+                break;
+            case "--archive":
+                // Add the coming years' partitions and archive the old ones - see OrderArchive
+                conn = getConnection();
+                int cutoff = args.length > 1 ? Integer.parseInt(args[1]) : java.time.LocalDate.now().getYear() - 1;
+                long archived = OrderArchive.run(conn, cutoff);
+                conn.close();
+                System.out.println("Archived " + archived + " orders placed before " + cutoff);
+                break;
+            case "--export":
+                // Write option 4, 6 or 7 as a table, CSV or JSON, to a file or stdout
+                if (args.length < 2) {
+                    System.out.println("Usage: java Assignment --export option4|option6|option7 [table|csv|json] [file]");
+                    break;
+                }
+                ReportWriter.Format format = args.length > 2 ? ReportWriter.Format.parse(args[2]) : ReportWriter.Format.CSV;
+                Writer out = args.length > 3
+                        ? new OutputStreamWriter(new FileOutputStream(args[3]), "UTF-8")
+                        : new OutputStreamWriter(System.out);
+                out = new BufferedWriter(out, 1 << 16);
+                conn = ReportConnection.open();
+                long rows = exportReport(conn, args[1], format, out);
+                conn.close();
+                if (args.length > 3) {
+                    out.close();
+                    System.out.println("Wrote " + (rows < 0 ? "" : rows + " rows to ") + args[3]);
+                } else {
+                    out.flush();
+                }
+                break;
+            case "--snapshot":
+                // Copy what the reports read into a columnar file for offline reporting - see AnalyticsSnapshot
+                if (args.length < 2) {
+                    System.out.println("Usage: java Assignment --snapshot file");
+                    break;
+                }
+                conn = ReportConnection.open();
+                long lines = AnalyticsSnapshot.export(conn, args[1]);
+                conn.close();
+                System.out.println("Wrote " + lines + " order lines to " + args[1]);
+                break;
+            case "--snapshot-report":
+                // Run a report against a snapshot, without the database
+                if (args.length < 3) {
+                    System.out.println("Usage: java Assignment --snapshot-report file option4|option6|option7|option8 [year]"
+                            + " [table|csv|json]");
+                    break;
+                }
+                int next = 3;
+                int year = java.time.LocalDate.now().getYear();
+                if (args.length > next && args[next].matches("\\d+")) {
+                    year = Integer.parseInt(args[next++]);
+                }
+                ReportWriter.Format snapshotFormat = args.length > next ? ReportWriter.Format.parse(args[next]) : ReportWriter.Format.TABLE;
+                long start = System.nanoTime();
+                AnalyticsSnapshot snapshot = AnalyticsSnapshot.open(args[1]);
+                Writer console = console();
+                snapshot.write(args[2], year, snapshotFormat, console);
+                console.flush();
+                Metrics.time("snapshot." + args[2], start);
+                System.err.println(snapshot.describe() + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+                break;
+            default:
+                System.out.println("Usage: java Assignment [--server [port] | --rebuild-rollups | --check-rollups"
+                        + " | --employees-of-the-year [fromYear toYear] | --import file... | --batch file [--depth N] [--quiet]"
+                        + " | --export option4|option6|option7 [table|csv|json] [file] | --archive [beforeYear]"
+                        + " | --snapshot file | --snapshot-report file option4|option6|option7|option8 [year] [table|csv|json]]");
+        }
+    }
+
     /**
      * @param conn         An open database connection
      * @param orderType    One of InHouse, Delivery, Collection so we can process
@@ -98,10 +265,26 @@ class Assignment {
      * @param street       The street name of the delivery address
      * @param city         The city name of the delivery address
      * @param staffID      The id of the staff member who sold the order
+     * @return True if the order was placed, false if it was rejected and rolled back
      */
-    public static void executeOrder(Connection conn, String orderType, int[] productIDs, int[] quantities,
+    public static Boolean executeOrder(Connection conn, String orderType, int[] productIDs, int[] quantities,
             String orderDate, String deliveryOrCollectionDate, String fName, String LName, String house, String street,
             String city, int staffID) {
+        long start = System.nanoTime();
+        int trips = Metrics.roundTrips();
+        try {
+            return attemptOrder(conn, orderType, productIDs, quantities, orderDate, deliveryOrCollectionDate, fName,
+                    LName, house, street, city, staffID);
+        } finally {
+            Metrics.time("executeOrder", start);
+            Metrics.record("executeOrder.roundTrips", Metrics.roundTrips() - trips);
+        }
+    }
+
+    // executeOrder without the timing - see there for the parameters
+    private static Boolean attemptOrder(final Connection conn, final String orderType, final int[] productIDs,
+            final int[] quantities, String orderDate, String deliveryOrCollectionDate, final String fName,
+            final String LName, final String house, final String street, final String city, final int staffID) {
 
         Boolean successfulOrder = false;
         Integer orderCompleted = 0;
@@ -114,52 +297,60 @@ class Assignment {
             orderCompleted = 0;
         } else {
             System.out.print("That is not a valid order type.\n");
-            return;
+            return false;
         }
 
         // If we couldn't process the date, return. getSQLDate will handle the exception
         java.sql.Date sqlDate;
         try {
             sqlDate = getSQLDate(orderDate);
-            if (sqlDate == null) {return;}
+            if (sqlDate == null) {return false;}
         } catch (Exception e) {
             System.out.println("That doesn't look like a valid date format - usage: dd-MMM-yy e.g. 17-Nov-20\n");
-            return; 
+            return false; 
         }
 
-        try {
-            // Turn off auto-commiting in case the order fails
-            conn.setAutoCommit(false);
-
-            // Create a new order
-            int id = insertOrder(conn, "InStore", orderCompleted, sqlDate, staffID);
-            if (id < 1) {
-                System.out.println("Something went wrong while creating a new order. Please try again.\n");
-                return;
-            }
+        // Turn away orders that are bound to fail before we go to the database for them
+        String problem = Catalog.checkOrder(productIDs, quantities, staffID);
+        if (problem != null) {
+            Metrics.count("order.rejectedByCatalog");
+            System.out.println("Order rejected - " + problem + "\n");
+            return false;
+        }
 
-            // For each product in the order, create an order_products row
-            for (int i = 0; i < productIDs.length; i++) {
-                insertOrderProduct(conn, id, productIDs[i], quantities[i]);
+        try {
+            // Collection and delivery orders need their extra date, in-store orders don't have one
+            java.sql.Date dueDate = null;
+            if (!orderType.equals("InStore")) {
+                dueDate = getSQLDate(deliveryOrCollectionDate);
             }
 
-            // If this is a collection or delivery then we have an extra step to do
-            if (orderType.equals("Collection")) {
-                insertCollection(conn, id, fName, LName, getSQLDate(deliveryOrCollectionDate));
-            } else if (orderType.equals("Delivery")) {
-                insertDelivery(conn, id, fName, LName, house, street, city, getSQLDate(deliveryOrCollectionDate));
+            // Create the order, its order_products rows and the collection/delivery in one round trip.
+            // placeOrder runs as a single statement, so if any product has insufficient stock the database
+            // rolls the whole order back for us. If it loses a race with another till it is run again
+            final Integer completed = orderCompleted;
+            final java.sql.Date placedOn = sqlDate;
+            final java.sql.Date due = dueDate;
+            PlacedOrder placed = OrderRetry.run(conn, new OrderRetry.Attempt<PlacedOrder>() {
+                public PlacedOrder run() throws SQLException {
+                    return placeOrder(conn, orderType, completed, placedOn, staffID, productIDs, quantities, fName,
+                            LName, house, street, city, due);
+                }
+            });
+            if (placed.orderID < 1) {
+                System.out.println("Something went wrong while creating a new order. Please try again.\n");
+                return false;
             }
 
-            // Now that insertOrderProduct has handled the stock reductions, print the new
-            // stock amounts
-            displayInventory(conn, productIDs);
-
-            // If we've made it this far without an SQLException then we know the order has
-            // completed successfully so commit changes to db
-            conn.setAutoCommit(true);
+            // placeOrder hands back the stock levels after the sale, so print them without going back to the db
+            displayInventory(placed.productIDs, placed.stockLevels);
             successfulOrder = true;
+            Metrics.count("order.placed");
 
         } catch (SQLException e) {
+            if (isInsufficientStock(e)) {
+                Metrics.count("order.insufficientStock");
+            }
             System.out.println(
                     "\nAn error occurred while trying to add the order:\n- Ensure there is enough stock in the inventory\n- Ensure the staff ID number exists\n- Ensure all the products are valid\n");
             // System.err.format("SQL State: %s\n%s", e.getSQLState(), e.getMessage());
@@ -168,11 +359,16 @@ class Assignment {
             e.printStackTrace();
         } finally {
             // If an exception is thrown we want to roll back so check successfulOrder
-            // boolean in a finally block
+            // boolean in a finally block. In autocommit mode the failed statement has already
+            // been rolled back by the database
             if (!successfulOrder) {
                 try {
                     System.out.println("Order unsuccessful - rolling back...\n");
-                    conn.rollback();
+                    Metrics.count("order.rollbacks");
+                    if (!conn.getAutoCommit()) {
+                        Metrics.roundTrip();
+                        conn.rollback();
+                    }
                 } catch (SQLException e) {
                     System.err.format(
                             "CRITICAL ERROR - Could not roll back to safe state. Database might be offline. \nSQL State: %s\n%s",
@@ -180,6 +376,7 @@ class Assignment {
                 }
             }
         }
+        return successfulOrder;
     }
 
     /**
@@ -239,19 +436,24 @@ class Assignment {
     }
 
     /**
-     * @param conn An open database connection
+     * @param conn The report connection, see ReportConnection
      * @throws SQLException
      */
-    public static void option4(Connection conn) throws SQLException {
-        // Select a view that we have predefined in the shchema
-        Statement st = conn.createStatement();
-        ResultSet rs = st.executeQuery("SELECT * FROM profitableProductsView");
-
-        // Call a custom formatting function that prints out table nicely
-        formatTable(rs);
-
-        rs.close();
-        st.close();
+    public static void option4(Connection conn) throws SQLException, IOException {
+        // Select a view that we have predefined in the shchema, streaming it through a cursor into a table.
+        // Shown again from ReportCache until something is sold or a product changes
+        long start = System.nanoTime();
+        try {
+            ReportCache.get().write(conn, "option4", ReportCache.PRODUCT_TABLES, new ReportCache.Report() {
+                public void write(Connection conn, Writer out) throws SQLException, IOException {
+                    Metrics.roundTrip();
+                    reportWriter(ReportWriter.Format.TABLE, out, 3).query(conn, "SELECT * FROM profitableProductsView");
+                }
+            }, console());
+        } finally {
+            Metrics.time("option4", start);
+            ReportConnection.endSnapshot(conn);
+        }
     }
 
     /**
@@ -259,200 +461,142 @@ class Assignment {
      * @param date The target date to test collection deliveries against
      */
     public static void option5(Connection conn, String date) {
-        // Identify all orders that are 8 days older than the provided date
-        // Call a procedure that DELETES all orders WHERE id IN (SELECT id FROM ORDERS
-        // WHERE date too old)
-        // We have a trigger that deletes all order_products when an order is deleted
-        // We have another trigger trigger that re adds all inventory when order product
-        // gets deleted
+        // Cancel all collection orders that are 8 days older than the date, a chunk at a time.
+        // Each chunk deletes its orders and restocks the inventory in one statement, and returns the IDs it
+        // cancelled so we can display them - see CollectionPurge
         java.sql.Date sqlDate = getSQLDate(date);
         if (sqlDate == null) { return; }
-        Boolean deletionsMade = false;
-        
+
+        long start = System.nanoTime();
         try {
-            // Get the result set of ID's that we're going to delete. We'll need them so we
-            // can display after the delete has happened
-            PreparedStatement pst = conn.prepareStatement(
-                    "SELECT * FROM uncollectedCollectionsView WHERE ? >= collectionDate + INTERVAL '8 Days'");
-            pst.setDate(1, sqlDate);
-            ResultSet rs = pst.executeQuery();
-
-            // Call a procedure that identifies and deletes all old orders.
-            // The relevant tables have triggers on DELETE to perform necessary updates e.g.
-            // add old stock back to inventory
-            CallableStatement stmt = conn.prepareCall("call removeOldOrders(?)");
-            stmt.setDate(1, getSQLDate(date));
-            stmt.execute();
-            stmt.close();
-
-            // Use the dataset we created earlier to print out the orders that we cancelled
-            while (rs.next()) {
-                deletionsMade = true;
-                System.out.println("Order " + rs.getInt(1) + " has been cancelled");
-            }
+            int cancelled = CollectionPurge.purge(conn, sqlDate, CollectionPurge.chunkSize(), System.out);
 
-            if (deletionsMade) {
-                System.out.println("Removed orders 8 days older than " + date + " and updated inventory.\n");
+            if (cancelled > 0) {
+                System.out.println("Removed " + cancelled + " orders 8 days older than " + date + " and updated inventory.\n");
             } else {
                 System.out.println("No orders were found that were 8 days older than " + date + "\n");
             }
 
-            pst.close();
-            rs.close();
-
         } catch (SQLException e) {
             System.err.format("SQL State: %s\n%s", e.getSQLState(), e.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            Metrics.time("option5", start);
         }
     }
 
     /**
-     * @param conn An open database connection
+     * @param conn The report connection, see ReportConnection
      */
     public static void option6(Connection conn) {
+        long start = System.nanoTime();
         try {
-            Statement st = conn.createStatement();
-            ResultSet rs = st.executeQuery("SELECT fullName, lifetimeSales FROM lifetimeSalesView");
-
-            formatTable(rs);
-
-            st.close();
-            rs.close();
+            ReportCache.get().write(conn, "option6", ReportCache.STAFF_TABLES, new ReportCache.Report() {
+                public void write(Connection conn, Writer out) throws SQLException, IOException {
+                    Metrics.roundTrip();
+                    reportWriter(ReportWriter.Format.TABLE, out, 2).query(conn, "SELECT fullName, lifetimeSales FROM lifetimeSalesView");
+                }
+            }, console());
 
         } catch (SQLException e) {
             System.err.format("SQL State: %s\n%s", e.getSQLState(), e.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            Metrics.time("option6", start);
+            ReportConnection.endSnapshot(conn);
         }
     }
 
     /**
-     * @param conn An open database connection
+     * @param conn The report connection, see ReportConnection
      */
     public static void option7(Connection conn) {
-
-        // Hashmap linking ID's to their profiles. Profiles contain name and all the
-        // orders/quantities that the staff member has
-        HashMap<Integer, Profile> people = new HashMap<Integer, Profile>();
-        // Keep track of what products we see so that we can list them off later
-        ArrayList<Integer> ProductIDs = new ArrayList<Integer>();
-
+        // StaffPivot reads highestSellingProductSellersView once, already in the order we display the staff in,
+        // and turns its row per staff member per product into a column per product
+        long start = System.nanoTime();
         try {
-            Statement st = conn.createStatement();
-            ResultSet rs = st.executeQuery("SELECT * FROM highestSellingProductSellersView");
-
-            // Parse the data into a structure that we can navigate later to display the
-            // data in the desired way
-            // Note that this is just to store the data, and no sorting or ordering is done
-            while (rs.next()) {
-                Profile person;
-                Integer staffID = rs.getInt(1);
-                Integer productID = rs.getInt(4);
-
-                // Lets keep a list of product IDs
-                if (!ProductIDs.contains(productID)) {
-                    ProductIDs.add(productID);
+            ReportCache.get().write(conn, "option7", ReportCache.STAFF_TABLES, new ReportCache.Report() {
+                public void write(Connection conn, Writer out) throws SQLException, IOException {
+                    Metrics.roundTrip();
+                    StaffPivot.write(conn, out);
                 }
-
-                // If this staffID already exists as key then we don't want to overwrite it - we
-                // want to fetch the list of objects and add to it
-                if (people.containsKey(staffID)) {
-                    person = (Profile) people.get(staffID);
-                } else {
-                    // otherwise, we want to create a new list and put it in the Hashmap with the
-                    // staffID as Key
-                    person = new Profile(staffID, rs.getString(2) + " " + rs.getString(3));
-                }
-                person.addProduct(productID, rs.getInt(5), rs.getInt(6));
-                people.put(staffID, person);
-
-            }
-
-            rs.close();
-
-            // This is how we know what order to display the staff in
-            // Uses a view that manipulates the main highestSellingProductSellersView to get
-            // the ID's in order of descending value
-            ResultSet sl = st.executeQuery("SELECT * FROM mostValuableStaff");
-
-            System.out.print("Staff Name");
-            for (int i = 0; i < ProductIDs.size(); i++) {
-                // header += ", Product " + ProductIDs.get(i);
-                System.out.print(", Product " + ProductIDs.get(i));
-            }
-            System.out.println("");
-
-            // Loop over the staff list from mostValuableStaff and retrieve their
-            // information from the profiles we stored
-            while (sl.next()) {
-                Integer staffID = sl.getInt(1);
-                Profile person = people.get(staffID);
-
-                System.out.print(person.fullName);
-                for (int i = 0; i < ProductIDs.size(); i++) {
-                    System.out.print(", " + person.getProduct(ProductIDs.get(i)));
-                }
-                System.out.println("");
-            }
-            System.out.println("");
-
-            sl.close();
-            st.close();
+            }, console());
 
         } catch (SQLException e) {
             System.err.format("SQL State: %s\n%s", e.getSQLState(), e.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            Metrics.time("option7", start);
+            ReportConnection.endSnapshot(conn);
         }
     }
 
     /**
-     * @param conn An open database connection
+     * @param conn The report connection, see ReportConnection
      * @param year The target year we match employee and product sales against
      */
-    public static void option8(Connection conn, int year) {
-        // Incomplete - Code for option 8 goes here
-
-        PreparedStatement pst;
+    public static void option8(Connection conn, final int year) {
+        // EmployeeOfTheYear streams every staff member's sales of every product for the year in one query, then
+        // checks that the staff member sold 30k and that their set of products covers every product that did 20k
+        long start = System.nanoTime();
         try {
-            // We filter a view staffYearly20kProductSales
-            // Here we check how many "20k products" a person has sold for a given year, named s.count
-            // We compared this to the total number of items that sold 20k in a year given year. 
-            // If these numbers are equal for a given year, we know that the person has sold at least one of each product
-            // The 30k filtering happens prior to this step - see yearlySales30k.  
-            pst = conn.prepareStatement(
-                "SELECT fullName FROM staffYearly20kProductSales s " + 
-                "WHERE s.yr = ? " + 
-                "AND s.count = (" + 
-                "   SELECT COUNT(*) " + 
-                "   FROM year20kItems i " + 
-                "   WHERE i.yr = ?)"
-            );
-            pst.setInt(1, year);
-            pst.setInt(2, year);
-
-            ResultSet rs = pst.executeQuery();
-
-            System.out.println("\n-- Employees Of The Year " + year + " --");
-            while (rs.next()) {
-                System.out.println(rs.getString(1)); 
-            }
-            System.out.println("");
+            ReportCache.get().write(conn, "option8:" + year, ReportCache.STAFF_TABLES, new ReportCache.Report() {
+                public void write(Connection conn, Writer out) throws SQLException, IOException {
+                    Metrics.roundTrip();
+                    List<String> winners = EmployeeOfTheYear.evaluate(conn, year, year).get(year);
+
+                    out.write("\n-- Employees Of The Year " + year + " --\n");
+                    if (winners != null) {
+                        for (String name : winners) {
+                            out.write(name + "\n");
+                        }
+                    }
+                    out.write("\n");
+                }
+            }, console());
 
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
             e.printStackTrace();
+        } finally {
+            Metrics.time("option8", start);
+            ReportConnection.endSnapshot(conn);
         }
-	}
+    }
 
     public static Connection getConnection(){
+        return getConnection("deptstore");
+    }
+
+    /**
+     * @return A connection to place orders on, at the isolation level from -Dinvmgmt.orderIsolation (see
+     *         OrderRetry), or null if it couldn't be opened
+     */
+    public static Connection getOrderConnection() {
+        Connection conn = getConnection();
+        if (conn != null) {
+            try {
+                OrderRetry.configure(conn);
+            } catch (SQLException e) {
+                System.err.format("SQL State: %s\n%s", e.getSQLState(), e.getMessage());
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * @param database The name of the database to connect to on the local server
+     */
+    public static Connection getConnection(String database){
         Properties props = new Properties();
         props.setProperty("socketFactory", "org.newsclub.net.unix.AFUNIXSocketFactory$FactoryArg");
 
         props.setProperty("socketFactoryArg",System.getenv("PGHOST") + "/.s.PGSQL.5432");
         Connection conn;
         try{
-          conn = DriverManager.getConnection("jdbc:postgresql://localhost/deptstore", props);
+          conn = DriverManager.getConnection("jdbc:postgresql://localhost/" + database, props);
           return conn;
         } catch(Exception e) {
             e.printStackTrace();
@@ -461,122 +605,150 @@ class Assignment {
     }
 
     /**
-     * @param conn      An open database connection
-     * @param productID A productID associated with an order
+     * @param productIDs  The products in an order
+     * @param stockLevels The stock level of each product after the order, matched by index
      */
-    public static void displayInventory(Connection conn, int[] productIDs) {
-        int quantity;
-        try {
-            // Create a callable statement that calls getQuantity
-            // Iterate over the products and get the quantity remaining for each id
-            CallableStatement stmt = conn.prepareCall("{ call getQuantity(?) }");
-            System.out.println("");
-            for (int i = 0; i < productIDs.length; i++) {
-                stmt.registerOutParameter(1, Types.INTEGER);
-                stmt.setInt(1, productIDs[i]);
-                stmt.execute();
-                quantity = stmt.getInt(1);
-                System.out.println("Product ID " + productIDs[i] + " stock is now at " + quantity);
-            }
-            System.out.println("");
-            stmt.close();
-        } catch (SQLException e) {
-            System.err.format("SQL State: %s\n%s", e.getSQLState(), e.getMessage());
-        } catch (Exception e) {
-            e.printStackTrace();
+    public static void displayInventory(int[] productIDs, int[] stockLevels) {
+        System.out.println("");
+        for (int i = 0; i < productIDs.length; i++) {
+            System.out.println("Product ID " + productIDs[i] + " stock is now at " + stockLevels[i]);
         }
+        System.out.println("");
     }
 
     /**
+     * Places a whole order in a single round trip using the placeOrder function, rather than one call for the
+     * order, one per product and one for the collection/delivery.
+     *
      * @param conn           An open database connection
-     * @param orderType      The type of order that was made, InHouse, Delivery etc
+     * @param orderType      The type of order that was made, InStore, Delivery or Collection
      * @param orderCompleted An int representing a boolean, that tells us if the
      *                       order is complete yet
-     * @param orderPlaced    An SQL date that tells us when the order was made,
-     *                       determined by user
+     * @param orderPlaced    An SQL date that tells us when the order was made
      * @param staffID        Id of the staff member that made the order
-     * @throws SQLException  Will generate an SQL exception usually in the case of an FK violation
+     * @param productIDs     An array of productIDs associated with an order
+     * @param quantities     An array of quantities, matched by index with productIDs
+     * @param fName          First name of the customer, null for in-store orders
+     * @param lName          Last name of the customer, null for in-store orders
+     * @param house          House name or number of the delivery address, null unless a delivery
+     * @param street         Street of the delivery address, null unless a delivery
+     * @param city           City of the delivery address, null unless a delivery
+     * @param dueDate        The collection or delivery date, null for in-store orders
+     * @return The new order ID and the stock level of each product after the sale
+     * @throws SQLException  If there is insufficient stock, or the staff or product IDs don't exist
      */
-    public static int insertOrder(Connection conn, String orderType, Integer orderCompleted, java.sql.Date orderPlaced, Integer staffID)
-            throws SQLException {
-        int newOrderID = -1;
-
-        CallableStatement stmt = conn.prepareCall("{ call insertOrder(?, ?, ?, ?) }");
-        stmt.registerOutParameter(1, Types.INTEGER);
+    public static PlacedOrder placeOrder(Connection conn, String orderType, Integer orderCompleted,
+            java.sql.Date orderPlaced, Integer staffID, int[] productIDs, int[] quantities, String fName, String lName,
+            String house, String street, String city, java.sql.Date dueDate) throws SQLException {
+        // One line per product in ProductID order, so every order locks its inventory rows in the same order and
+        // two orders for the same products can't deadlock
+        TreeMap<Integer, Integer> lines = canonicalLines(productIDs, quantities);
+        Integer[] ids = lines.keySet().toArray(new Integer[lines.size()]);
+        Integer[] amounts = lines.values().toArray(new Integer[lines.size()]);
+
+        // The ID comes from a block reserved in advance, so most orders don't need a trip to the sequence
+        Integer orderID = OrderIDAllocator.get().next(conn);
+
+        PreparedStatement stmt = StatementCache.of(conn).prepare("SELECT * FROM placeOrder(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
         stmt.setString(1, orderType);
         stmt.setDate(2, orderPlaced);
         stmt.setInt(3, orderCompleted);
         stmt.setInt(4, staffID);
-        stmt.execute();
-        newOrderID = stmt.getInt(1);
-        stmt.close();
+        stmt.setArray(5, conn.createArrayOf("integer", ids));
+        stmt.setArray(6, conn.createArrayOf("integer", amounts));
+        stmt.setString(7, fName);
+        stmt.setString(8, lName);
+        stmt.setString(9, house);
+        stmt.setString(10, street);
+        stmt.setString(11, city);
+        stmt.setDate(12, dueDate);
+        stmt.setObject(13, orderID, Types.INTEGER);
+
+        PlacedOrder placed = new PlacedOrder(ids.length);
+        long start = System.nanoTime();
+        try {
+            Metrics.roundTrip();
+            ResultSet rs = stmt.executeQuery();
+            int row = 0;
+            while (rs.next()) {
+                placed.orderID = rs.getInt(1);
+                placed.productIDs[row] = rs.getInt(2);
+                placed.stockLevels[row] = rs.getInt(3);
+                row++;
+            }
+            rs.close();
+        } catch (SQLException e) {
+            if (orderID != null) {
+                OrderIDAllocator.get().abandon();
+            }
+            throw e;
+        } finally {
+            Metrics.time("placeOrder", start);
+        }
+        if (orderType.equals("Collection") && placed.orderID > 0) {
+            CollectionExpiry.collectionPlaced(placed.orderID, dueDate);
+        }
 
-        return newOrderID;
+        return placed;
     }
 
     /**
-     * @param conn      An open database connection
-     * @param orderID   The ID of the order
-     * @param productID The ID of the product that we're going to add to the order
-     * @param quantity  Amount of said product that has been ordered in this order
-     * @throws SQLException If there is insufficient stock then this method will
-     *                      throw and SQLException which we can catch in the calling
-     *                      method
+     * Merges the lines of an order by product, e.g. 1:2,4:1,1:3 becomes 1:5,4:1, so that each inventory row is
+     * locked and updated once.
+     *
+     * @param productIDs The products, in the order they were entered
+     * @param quantities Their quantities, matched by index
+     * @return ProductID to total quantity, in ProductID order
      */
-    public static void insertOrderProduct(Connection conn, Integer orderID, Integer productID, Integer quantity)
-            throws SQLException {
-        CallableStatement stmt = conn.prepareCall("call insertOrderProduct(?, ?, ?)");
-        stmt.setInt(1, orderID);
-        stmt.setInt(2, productID);
-        stmt.setInt(3, quantity);
-        stmt.execute();
-        stmt.close();
+    public static TreeMap<Integer, Integer> canonicalLines(int[] productIDs, int[] quantities) {
+        TreeMap<Integer, Integer> lines = new TreeMap<Integer, Integer>();
+        for (int i = 0; i < productIDs.length; i++) {
+            Integer quantity = lines.get(productIDs[i]);
+            lines.put(productIDs[i], quantity == null ? quantities[i] : quantity + quantities[i]);
+        }
+        return lines;
     }
 
     /**
-     * @param conn      An open database connection
-     * @param fName Client who is collecting orders first name 
-     * @param lName Last name of the client who is picking up the order
-     * @param collectionDate The day on which the delivery will be made
+     * @param conn  An open database connection
+     * @param order An order that has already been filled in and validated, by handleOption or Order.parse
+     * @return The new order ID and the stock level of each product after the sale
+     * @throws SQLException If there is insufficient stock, or the staff or product IDs don't exist
      */
-    public static void insertCollection(Connection conn, Integer orderID, String fName, String lName, java.sql.Date collectionDate)
-            throws SQLException {
-        CallableStatement stmt = conn.prepareCall("call insertCollection(?, ?, ?, ?)");
-        stmt.setInt(1, orderID);
-        stmt.setString(2, fName);
-        stmt.setString(3, lName);
-        stmt.setDate(4, collectionDate);
-        stmt.execute();
-        stmt.close();
+    public static PlacedOrder placeOrder(Connection conn, Order order) throws SQLException {
+        Integer orderCompleted = order.orderType.equals("InStore") ? 1 : 0;
+        java.sql.Date dueDate = order.orderType.equals("InStore") ? null : parseDate(order.collectionDate);
+        return placeOrder(conn, order.orderType, orderCompleted, parseDate(order.saleDate), order.staffID,
+                order.productIDsArray, order.quantitiesArray, order.firstName, order.lastName, order.house,
+                order.street, order.city, dueDate);
     }
 
     /**
-     * @param conn      An open database connection
-     * @param fName Client who is collecting orders first name 
-     * @param lName Last name of the client who is picking up the order
-     * @param house House name of delivery 
-     * @param street Street of house to deliver to  
-     * @param city The city within which the street resides upon which one shall find the house to which thou shalt deliver thine order 
-     * @param collectionDate The day on which the delivery will be made
+     * @param e An exception from placing an order
+     * @return true if the order was rejected by checkValidOrderProduct for not having enough stock
      */
-    public static void insertDelivery(Connection conn, Integer orderID, String fName, String lName, String house, String street, String city, java.sql.Date deliveryDate)
-            throws SQLException {
-        CallableStatement stmt = conn.prepareCall("call insertDelivery(?, ?, ?, ?, ?, ?, ?)");
-        stmt.setInt(1, orderID);
-        stmt.setString(2, fName);
-        stmt.setString(3, lName);
-        stmt.setString(4, house);
-        stmt.setString(5, street);
-        stmt.setString(6, city);
-        stmt.setDate(7, deliveryDate);
-        stmt.execute();
-        stmt.close();
+    public static boolean isInsufficientStock(SQLException e) {
+        return e.getMessage() != null && e.getMessage().contains("Insufficient stock");
     }
 
     /**
      * @param userInput Date input by the user in string format that we need to convert 
      */
     public static java.sql.Date getSQLDate(String userInput) {
+        java.sql.Date finalDate = parseDate(userInput);
+        if (finalDate == null) {
+            System.out.println("Unable to parse date input - usage: dd-MMM-yy e.g. 17-Nov-18");
+        }
+        return finalDate;
+    }
+
+    /**
+     * The same conversion as getSQLDate, but without printing anything so it can be used off the console
+     *
+     * @param userInput A date in the form dd-MMM-yy
+     * @return The date, or null if it couldn't be parsed
+     */
+    public static java.sql.Date parseDate(String userInput) {
         // Create the date formats that we're going to need to convert
         SimpleDateFormat inputFormat = new SimpleDateFormat("dd-MMM-yy");
         SimpleDateFormat sqlFormat = new SimpleDateFormat("yyyy-MM-dd");
@@ -591,61 +763,88 @@ class Assignment {
                 return finalDate;
             }
         } catch (Exception e) {
-            System.out.println("Unable to parse date input - usage: dd-MMM-yy e.g. 17-Nov-18");
+            // Fall through and let the caller decide how to report it
         }
         return null;
     }
     
-	/**
+    /**
+     * Prints a two column staff report or three column product report as a table, as options 4 and 6 show them
+     *
      * @param rs The dataset we want to print out
      */
-    public static void formatTable(ResultSet rs) throws SQLException {
-        String dividerLine = "------------------------------";
-        String columnSpacer = " ";
-        String formatString = ""; 
+    public static void formatTable(ResultSet rs) throws SQLException, IOException {
+        tableWriter(rs.getMetaData().getColumnCount()).write(rs);
+    }
 
-        ResultSetMetaData md = rs.getMetaData(); 
-        Integer colCount = md.getColumnCount();
+    /**
+     * @param colCount The number of columns in the report
+     * @return A console table writer with the headings we use for the staff and product reports
+     */
+    public static ReportWriter tableWriter(int colCount) {
+        return reportWriter(ReportWriter.Format.TABLE, console(), colCount);
+    }
 
-        if (colCount == 2) {
-            formatString = "%-30s%-1s%-30s";
-        } else if (colCount == 3) {
-            formatString = "%-30s%-1s%-30s%-1s%-30s";
-        } else {
-            System.out.println("I don't know how to format this table\n"); 
-        }
+    // Standard out, buffered for the reports
+    private static Writer console() {
+        return new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+    }
 
-        // Title bar with surrounding dashes
-        System.out.println("");
-        if (colCount == 2) {
-            System.out.format(formatString, "EmployeeName", columnSpacer, "TotalValueSold"); 
-            System.out.println();
-            System.out.format(formatString, dividerLine, columnSpacer, dividerLine);
-            System.out.println("");
-        } else if (colCount == 3) {
-            System.out.format(formatString, "Product ID", columnSpacer, "ProductDesc", columnSpacer, "TotalValueSold");
-            System.out.println();
-            System.out.format(formatString, dividerLine, columnSpacer, dividerLine, columnSpacer, dividerLine);
-            System.out.println("");
+    /**
+     * Writes one of the nightly export reports.
+     *
+     * @param conn   An open database connection
+     * @param report option4, option6 or option7
+     * @param format How to lay out the report
+     * @param out    Where to write it
+     * @return The number of rows written
+     */
+    public static long exportReport(Connection conn, String report, ReportWriter.Format format, Writer out)
+            throws SQLException, IOException {
+        long start = System.nanoTime();
+        try {
+            Metrics.roundTrip();
+            return writeReport(conn, report, format, out);
+        } finally {
+            Metrics.time("export." + report, start);
+            ReportConnection.endSnapshot(conn);
         }
+    }
 
-        // Rows of the table, starting with | 
-        while (rs.next()) {
-            if (colCount == 2) {
-                System.out.format(formatString, rs.getString(1) + ",", columnSpacer, "£" + rs.getInt(2));
-            } else if (colCount == 3) {
-                System.out.format(formatString, rs.getInt(1) + ",", columnSpacer, rs.getString(2) + ",", columnSpacer, "£" + rs.getInt(3));
-            }
-            System.out.println("");
+    // exportReport without the timing
+    private static long writeReport(Connection conn, String report, ReportWriter.Format format, Writer out)
+            throws SQLException, IOException {
+        switch (report) {
+            case "option4":
+                return reportWriter(format, out, 3).query(conn, "SELECT * FROM profitableProductsView");
+            case "option6":
+                return reportWriter(format, out, 2).query(conn, "SELECT fullName, lifetimeSales FROM lifetimeSalesView");
+            case "option7":
+                if (format == ReportWriter.Format.TABLE) {
+                    StaffPivot.write(conn, out);
+                    return -1;
+                }
+                // The pivot needs every row before it can write the first, so exports stream it a row per
+                // member of staff per product instead
+                return new ReportWriter(format, out).query(conn, "SELECT staffID, fName || ' ' || lName AS staffName, "
+                        + "ProductID, unitsSold, valOfProductSold FROM highestSellingProductSellersView ORDER BY staffID, ProductID");
+            default:
+                throw new IllegalArgumentException("Unknown report " + report + " - expected option4, option6 or option7");
         }
+    }
 
-        // Bottom line to finish off table
+    // Tables keep the headings the reports have always had, CSV and JSON use the column names
+    static ReportWriter reportWriter(ReportWriter.Format format, Writer out, int colCount) {
+        ReportWriter writer = new ReportWriter(format, out);
+        if (format != ReportWriter.Format.TABLE) {
+            return writer;
+        }
         if (colCount == 2) {
-            System.out.format(formatString, dividerLine, columnSpacer, dividerLine);
+            writer.headings("EmployeeName", "TotalValueSold").currency(2);
         } else if (colCount == 3) {
-            System.out.format(formatString, dividerLine, columnSpacer, dividerLine, columnSpacer, dividerLine);
+            writer.headings("Product ID", "ProductDesc", "TotalValueSold").currency(3);
         }
-        System.out.println("\n");
+        return writer;
     }
 
     public static void printMenu() {
@@ -657,45 +856,23 @@ class Assignment {
         System.out.print("(6) Staff Life-Time Success\n");
         System.out.print("(7) Staff Contribution\n");
         System.out.print("(8) Employee of the Year\n");
+        System.out.print("(9) Statistics\n");
         System.out.print("(0) Quit\n");
         System.out.println("");
     }
 
 }
 
-// Custom class for storing staff and their sales for option 7
-class Profile {
-
-    public String fullName; 
-    public Integer productID; 
-    public HashMap<Integer, Integer> unitsSold; 
-    public Integer valOfProductSold; 
-
-    public Profile(Integer id, String name) {
-        productID = id; 
-        fullName = name;
-        unitsSold = new HashMap<Integer, Integer>(); 
-        valOfProductSold = 0; 
-    }
+// The result of placing an order - the ID it was given and the stock left of each product in it
+class PlacedOrder {
 
-    // Add a product to the store of products that this staff member has sold
-    // First checks if that item exists in the HashMap - it should never since the SQL groups by StaffID & ProductID 
-    public void addProduct(Integer productID, Integer units, Integer value) {
-        if (unitsSold.containsKey(productID)) {
-            System.out.println("Something has gone wrong. It looks like this item " + productID + " already exists for this person\n"); 
-        } else {
-            unitsSold.put(productID, units);
-            valOfProductSold += value;
-        }
-    }
+    public int orderID = -1;
+    public int[] productIDs;
+    public int[] stockLevels;
 
-    // When outputting the table, check if this user has any units sold for the current product we're looking at
-    // If the productID key doesn't exist then we can be sure this person has sold 0 units of this product
-    public Integer getProduct(Integer productID) {
-        if (unitsSold.containsKey(productID)) {
-            return unitsSold.get(productID);
-        } 
-        return 0; 
+    public PlacedOrder(int size) {
+        productIDs = new int[size];
+        stockLevels = new int[size];
     }
 
 }
@@ -721,6 +898,7 @@ class Order {
     public Boolean handleOption() {
 
         String opt = "y";
+        Catalog catalog = Catalog.get();
 
         try {
             while (opt.equals("y") || opt.equals("Y")) {
@@ -731,6 +909,21 @@ class Order {
                     throw new Exception(); 
                 }
                 quantities.add(Integer.valueOf(opt));
+                // Check the product straight away rather than after the whole order has been typed in
+                if (catalog != null && catalog.isLoaded()) {
+                    int productID = productIDs.get(productIDs.size() - 1);
+                    int total = 0;
+                    for (int i = 0; i < productIDs.size(); i++) {
+                        if (productIDs.get(i) == productID) {
+                            total += quantities.get(i);
+                        }
+                    }
+                    String problem = catalog.checkProduct(productID, total);
+                    if (problem != null) {
+                        System.out.println("\n" + problem + ".");
+                        throw new Exception();
+                    }
+                }
                 opt = Assignment.readEntry("Is there another product in the order?: ");
             }
 
@@ -754,17 +947,14 @@ class Order {
             }
 
             staffID = Integer.valueOf(Assignment.readEntry("Enter your staff ID: "));
+            if (catalog != null && catalog.isLoaded() && catalog.checkStaff(staffID) != null) {
+                System.out.println("\n" + catalog.checkStaff(staffID) + ".");
+                throw new Exception();
+            }
 
             System.out.println("");
 
-            quantitiesArray = new int[quantities.size()];
-            productIDsArray = new int[quantities.size()];
-
-            // Convert from our array list to an array that the option function can use
-            for (int i = 0; i < productIDs.size(); i++) {
-                productIDsArray[i] = productIDs.get(i);
-                quantitiesArray[i] = quantities.get(i);
-            }
+            fillArrays();
         } catch (Exception e) {
             System.out.println("Your input is in the wrong format.\n");
             return false; 
@@ -772,4 +962,72 @@ class Order {
         return true; 
 
     }
+
+    // Build an order from a single line rather than prompting for each field, for callers that aren't at the console.
+    // Fields are separated by | in the order type|saleDate|staffID|productID:quantity,...|collectionDate|firstName|lastName|house|street|city
+    // e.g. Delivery|17-Nov-20|3|1:2,4:1|20-Nov-20|Ada|Lovelace|12|High Street|Leeds
+    // The collection fields are only needed for Collection and Delivery orders, the address only for Delivery
+    public static Order parse(String line) {
+        String[] fields = line.split("\\|", -1);
+        if (fields.length < 4) {
+            throw new IllegalArgumentException("Expected type|saleDate|staffID|productID:quantity,...");
+        }
+
+        Order order = new Order(fields[0].trim());
+        if (!order.orderType.equals("InStore") && !order.orderType.equals("Collection")
+                && !order.orderType.equals("Delivery")) {
+            throw new IllegalArgumentException("Unknown order type " + order.orderType);
+        }
+
+        order.saleDate = fields[1].trim();
+        if (Assignment.parseDate(order.saleDate) == null) {
+            throw new IllegalArgumentException("Sale date should look like 17-Nov-20");
+        }
+        order.staffID = Integer.valueOf(fields[2].trim());
+
+        for (String item : fields[3].split(",")) {
+            String[] pair = item.split(":");
+            if (pair.length != 2 || Integer.parseInt(pair[1].trim()) <= 0) {
+                throw new IllegalArgumentException("Products should look like productID:quantity with a positive quantity");
+            }
+            order.productIDs.add(Integer.valueOf(pair[0].trim()));
+            order.quantities.add(Integer.valueOf(pair[1].trim()));
+        }
+
+        if (order.orderType.equals("Collection") || order.orderType.equals("Delivery")) {
+            if (fields.length < 7) {
+                throw new IllegalArgumentException(order.orderType + " orders need a date, first name and last name");
+            }
+            order.collectionDate = fields[4].trim();
+            java.sql.Date dueDate = Assignment.parseDate(order.collectionDate);
+            if (dueDate == null || Assignment.parseDate(order.saleDate).compareTo(dueDate) > 0) {
+                throw new IllegalArgumentException("The " + order.orderType.toLowerCase() + " date must be a date on or after the sale");
+            }
+            order.firstName = fields[5].trim();
+            order.lastName = fields[6].trim();
+        }
+
+        if (order.orderType.equals("Delivery")) {
+            if (fields.length < 10) {
+                throw new IllegalArgumentException("Delivery orders need a house, street and city");
+            }
+            order.house = fields[7].trim();
+            order.street = fields[8].trim();
+            order.city = fields[9].trim();
+        }
+
+        order.fillArrays();
+        return order;
+    }
+
+    // Convert from our array list to an array that the option function can use
+    private void fillArrays() {
+        quantitiesArray = new int[quantities.size()];
+        productIDsArray = new int[quantities.size()];
+
+        for (int i = 0; i < productIDs.size(); i++) {
+            productIDsArray[i] = productIDs.get(i);
+            quantitiesArray[i] = quantities.get(i);
+        }
+    }
 }
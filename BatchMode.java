@@ -0,0 +1,162 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Replays a till log (or a test script) without the prompt-per-field menu.
+// One transaction per line, in the Order.parse format with an optional ORDER| in front, e.g.
+//   InStore|17-Nov-20|3|1:2,4:1
+//   ORDER|Collection|17-Nov-20|3|7:1|20-Nov-20|Ada|Lovelace
+// Blank lines and lines starting with # are skipped.
+// A producer thread reads the file through a buffered reader and parses each line into an Order, handing them
+// to the consumer through a queue holding up to depth orders. The consumer places them in file order through
+// executeOrder - the same path as options 1-3 - so parsing the next orders overlaps with the database round
+// trip for the current one.
+// If placing an order throws, the consumer cancels the producer on its way out: the producer only ever waits
+// briefly for room on the queue, checking whether it has been cancelled in between, and it is a daemon thread so
+// it can never keep the JVM alive on its own.
+class BatchMode {
+
+    // One parsed line of the file
+    static class Entry {
+        final int line;
+        final Order order;
+
+        Entry(int line, Order order) {
+            this.line = line;
+            this.order = order;
+        }
+    }
+
+    // Put on the queue after the last order
+    static final Entry END = new Entry(-1, null);
+
+    private final BlockingQueue<Entry> queue;
+    private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int parsed = 0;
+    private volatile int rejected = 0;
+    private volatile IOException readError;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param depth How many parsed orders may wait for the database at once
+     */
+    public BatchMode(int depth) {
+        queue = new ArrayBlockingQueue<Entry>(Math.max(1, depth));
+    }
+
+    /**
+     * Places every order in the file and prints a summary.
+     *
+     * @param conn  An open database connection
+     * @param file  The transaction file
+     * @param quiet True to hide what executeOrder prints for each order and show only the summary
+     * @return The number of lines that couldn't be parsed or placed
+     */
+    public int run(Connection conn, final String file, boolean quiet) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                produce(file);
+            }
+        }, "batch-reader");
+        producer.setDaemon(true);
+        producer.start();
+
+        PrintStream console = System.out;
+        if (quiet) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        int placed = 0;
+        int failed = 0;
+        try {
+            while (true) {
+                Entry entry = queue.take();
+                if (entry == END) {
+                    break;
+                }
+                Order order = entry.order;
+                if (Assignment.executeOrder(conn, order.orderType, order.productIDsArray, order.quantitiesArray,
+                        order.saleDate, order.collectionDate, order.firstName, order.lastName, order.house,
+                        order.street, order.city, order.staffID)) {
+                    placed++;
+                } else {
+                    failed++;
+                    failures.add("line " + entry.line + ": the order was rejected by the database");
+                }
+            }
+        } finally {
+            System.setOut(console);
+            // Nothing more will be taken off the queue, so don't leave the producer waiting for room on it
+            cancelled = true;
+            producer.interrupt();
+        }
+        producer.join();
+        if (readError != null) {
+            throw readError;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.format("Read %d orders from %s in %.1fs (%.0f orders/s)\n", parsed + rejected, file, seconds,
+                (parsed + rejected) / Math.max(seconds, 1e-9));
+        System.out.format("Placed %d, rejected by the database %d, could not be parsed %d\n", placed, failed, rejected);
+        synchronized (failures) {
+            for (int i = 0; i < Math.min(failures.size(), 20); i++) {
+                System.out.println("  " + failures.get(i));
+            }
+            if (failures.size() > 20) {
+                System.out.println("  ... and " + (failures.size() - 20) + " more");
+            }
+        }
+        return failed + rejected;
+    }
+
+    // Read and parse the file, queueing each order, then queue END
+    private void produce(String file) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.regionMatches(true, 0, "ORDER|", 0, 6)) {
+                    line = line.substring(6);
+                }
+                try {
+                    if (!enqueue(new Entry(number, Order.parse(line)))) {
+                        return;
+                    }
+                    parsed++;
+                } catch (IllegalArgumentException e) {
+                    // Includes NumberFormatException from a bad staff or product ID
+                    rejected++;
+                    failures.add("line " + number + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            readError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                enqueue(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Wait for room on the queue for as long as the consumer is still taking from it
+    private boolean enqueue(Entry entry) throws InterruptedException {
+        while (!cancelled) {
+            if (queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
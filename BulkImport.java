@@ -0,0 +1,252 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+// Loads years of historical sales when a store is onboarded, instead of replaying them through options 1-3 a
+// line at a time.
+// The files are streamed into a temporary staging table with COPY, checked there with a handful of set-wise
+// queries (unknown staff or products, bad fields, not enough stock), given order IDs from OrderIDSequence in
+// one go, and then copied into the real tables with one INSERT ... SELECT per table. Stock and the rollups are
+// updated with one aggregated statement each while the row triggers stand aside. It all happens in one
+// transaction, so either every order in the files is loaded or none are.
+//
+// One row per order line, in CSV (with this header) or NDJSON (one object per line with these keys):
+//   orderRef,orderType,orderPlaced,staffID,productID,quantity,dueDate,firstName,lastName,house,street,city
+// orderRef groups the lines of one order and can be any text; it isn't stored. Dates are yyyy-mm-dd. Every
+// line of an order must repeat the same order fields. dueDate and the names are needed for Collection and
+// Delivery orders, and the address for Delivery orders. Collections and deliveries due before today are
+// loaded as completed.
+class BulkImport {
+
+    static final String[] COLUMNS = { "orderRef", "orderType", "orderPlaced", "staffID", "productID", "quantity",
+            "dueDate", "firstName", "lastName", "house", "street", "city" };
+
+    static final String STAGING = "CREATE TEMPORARY TABLE import_lines ("
+            + "OrderRef TEXT NOT NULL, OrderType VARCHAR(30), OrderPlaced DATE, StaffID INTEGER, ProductID INTEGER, "
+            + "ProductQuantity INTEGER, DueDate DATE, FName VARCHAR(30), LName VARCHAR(30), House VARCHAR(30), "
+            + "Street VARCHAR(30), City VARCHAR(30)) ON COMMIT DROP";
+
+    static final String COPY = "COPY import_lines (OrderRef, OrderType, OrderPlaced, StaffID, ProductID, ProductQuantity, "
+            + "DueDate, FName, LName, House, Street, City) FROM STDIN (FORMAT csv";
+
+    // Each check is a description and a query returning up to 10 examples of the problem
+    static final String[][] CHECKS = {
+        { "Unknown order type", "SELECT DISTINCT OrderRef FROM import_lines "
+                + "WHERE OrderType IS NULL OR OrderType NOT IN ('InStore', 'Collection', 'Delivery') LIMIT 10" },
+        { "Missing sale date, staff or product", "SELECT DISTINCT OrderRef FROM import_lines "
+                + "WHERE OrderPlaced IS NULL OR StaffID IS NULL OR ProductID IS NULL LIMIT 10" },
+        { "Quantity must be positive", "SELECT DISTINCT OrderRef FROM import_lines "
+                + "WHERE ProductQuantity IS NULL OR ProductQuantity <= 0 LIMIT 10" },
+        { "Missing or early collection/delivery date or name", "SELECT DISTINCT OrderRef FROM import_lines "
+                + "WHERE OrderType IN ('Collection', 'Delivery') "
+                + "AND (DueDate IS NULL OR DueDate < OrderPlaced OR FName IS NULL OR LName IS NULL) LIMIT 10" },
+        { "Missing delivery address", "SELECT DISTINCT OrderRef FROM import_lines "
+                + "WHERE OrderType = 'Delivery' AND (House IS NULL OR Street IS NULL OR City IS NULL) LIMIT 10" },
+        { "Lines of the same order disagree about its details", "SELECT OrderRef FROM import_lines GROUP BY OrderRef "
+                + "HAVING COUNT(DISTINCT ROW(OrderType, OrderPlaced, StaffID, DueDate, FName, LName, House, Street, City)) > 1 LIMIT 10" },
+        { "Unknown staff ID", "SELECT DISTINCT l.StaffID FROM import_lines l "
+                + "LEFT OUTER JOIN staff s ON s.StaffID = l.StaffID WHERE l.StaffID IS NOT NULL AND s.StaffID IS NULL LIMIT 10" },
+        { "Unknown product ID", "SELECT DISTINCT l.ProductID FROM import_lines l "
+                + "LEFT OUTER JOIN inventory i ON i.ProductID = l.ProductID WHERE l.ProductID IS NOT NULL AND i.ProductID IS NULL LIMIT 10" },
+        { "Insufficient stock", "SELECT 'product ' || l.ProductID || ' needs ' || SUM(l.ProductQuantity) || ' but has ' || i.ProductStockAmount "
+                + "FROM import_lines l INNER JOIN inventory i ON i.ProductID = l.ProductID "
+                + "GROUP BY l.ProductID, i.ProductStockAmount HAVING SUM(l.ProductQuantity) > i.ProductStockAmount LIMIT 10" },
+    };
+
+    // Once the lines have passed the checks, with the row triggers switched off by invmgmt.bulk_maintenance. That
+    // only works for members of invmgmt_maintenance, and load refuses to go on without it
+    static final String[] LOAD = {
+        // One ID per order from OrderIDSequence, handed out in date order
+        "CREATE TEMPORARY TABLE import_orders ON COMMIT DROP AS "
+                + "SELECT nextval('OrderIDSequence')::INTEGER AS OrderID, o.* FROM ("
+                + "SELECT * FROM (SELECT DISTINCT ON (OrderRef) OrderRef, OrderType, OrderPlaced, StaffID, DueDate, "
+                + "FName, LName, House, Street, City FROM import_lines ORDER BY OrderRef) d "
+                + "ORDER BY OrderPlaced, OrderRef) o",
+        "INSERT INTO orders (OrderID, OrderType, OrderCompleted, OrderPlaced) "
+                + "SELECT OrderID, OrderType, CASE WHEN OrderType = 'InStore' OR DueDate < CURRENT_DATE THEN 1 ELSE 0 END, OrderPlaced "
+                + "FROM import_orders",
+        "INSERT INTO order_products (OrderID, ProductID, ProductQuantity, OrderPlaced) "
+                + "SELECT o.OrderID, l.ProductID, l.ProductQuantity, o.OrderPlaced FROM import_lines l INNER JOIN import_orders o ON o.OrderRef = l.OrderRef",
+        "INSERT INTO staff_orders (StaffID, OrderID, OrderPlaced) SELECT StaffID, OrderID, OrderPlaced FROM import_orders",
+        "INSERT INTO collections (OrderID, FName, LName, CollectionDate, OrderPlaced) "
+                + "SELECT OrderID, FName, LName, DueDate, OrderPlaced FROM import_orders WHERE OrderType = 'Collection'",
+        "INSERT INTO deliveries (OrderID, FName, LName, House, Street, City, DeliveryDate, OrderPlaced) "
+                + "SELECT OrderID, FName, LName, House, Street, City, DueDate, OrderPlaced FROM import_orders WHERE OrderType = 'Delivery'",
+        "UPDATE inventory i SET ProductStockAmount = i.ProductStockAmount - u.quantity "
+                + "FROM (SELECT ProductID, SUM(ProductQuantity) AS quantity FROM import_lines GROUP BY ProductID) u "
+                + "WHERE i.ProductID = u.ProductID",
+        "UPDATE product_sales p SET UnitsSold = p.UnitsSold + u.quantity "
+                + "FROM (SELECT ProductID, SUM(ProductQuantity) AS quantity FROM import_lines GROUP BY ProductID) u "
+                + "WHERE p.ProductID = u.ProductID",
+        "INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales) "
+                + "SELECT o.StaffID, DATE_PART('year', o.OrderPlaced), SUM(l.ProductQuantity * i.ProductPrice) "
+                + "FROM import_lines l INNER JOIN import_orders o ON o.OrderRef = l.OrderRef "
+                + "INNER JOIN inventory i ON i.ProductID = l.ProductID "
+                + "GROUP BY o.StaffID, DATE_PART('year', o.OrderPlaced) "
+                + "ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales",
+    };
+
+    /**
+     * Loads the order lines in the given files, or nothing if any of them fail the checks.
+     *
+     * @param conn  An open database connection, used for one transaction and then put back in autocommit mode
+     * @param files CSV files, or NDJSON files ending .ndjson or .jsonl
+     * @return The number of orders loaded, 0 if they were rejected
+     */
+    public static int load(Connection conn, String[] files) throws SQLException, IOException {
+        long start = System.nanoTime();
+        conn.setAutoCommit(false);
+        try {
+            Statement st = conn.createStatement();
+            st.execute(STAGING);
+
+            long lines = 0;
+            for (String file : files) {
+                long fileStart = System.nanoTime();
+                long fileLines = stage(conn, file);
+                lines += fileLines;
+                report("Copied " + file, fileLines, "lines", fileStart);
+            }
+            st.execute("ANALYZE import_lines");
+
+            // Lock the products first so that the stock we check is the stock we take
+            long checkStart = System.nanoTime();
+            st.execute("SELECT ProductID FROM inventory WHERE ProductID IN (SELECT ProductID FROM import_lines) "
+                    + "ORDER BY ProductID FOR UPDATE");
+            if (!check(st)) {
+                conn.rollback();
+                System.out.println("Nothing was imported");
+                return 0;
+            }
+            report("Checked", lines, "lines", checkStart);
+
+            long loadStart = System.nanoTime();
+            st.execute("SELECT set_config('invmgmt.bulk_maintenance', 'on', true)");
+            // The setting is ignored for anyone outside invmgmt_maintenance, and then the row triggers would take the
+            // stock and count the sales again on top of LOAD
+            ResultSet bulk = st.executeQuery("SELECT bulkMaintenance()");
+            boolean triggersOff = bulk.next() && bulk.getBoolean(1);
+            bulk.close();
+            if (!triggersOff) {
+                conn.rollback();
+                System.out.println("Nothing was imported - the import has to log in as a member of invmgmt_maintenance");
+                return 0;
+            }
+            for (String sql : LOAD) {
+                st.execute(sql);
+            }
+            st.execute("SELECT set_config('invmgmt.bulk_maintenance', 'off', true)");
+            ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM import_orders");
+            rs.next();
+            int orders = rs.getInt(1);
+            rs.close();
+            st.close();
+
+            conn.commit();
+            report("Loaded " + orders + " orders,", lines, "lines", loadStart);
+            report("Imported", lines, "lines", start);
+            return orders;
+        } catch (SQLException | IOException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    // Stream one file into import_lines, returning the number of lines copied
+    private static long stage(Connection conn, String file) throws SQLException, IOException {
+        PGConnection pg = conn.unwrap(PGConnection.class);
+        try (InputStream raw = new FileInputStream(file)) {
+            if (!file.endsWith(".ndjson") && !file.endsWith(".jsonl")) {
+                // Our CSV is already in the shape COPY wants, so the server can parse it as it arrives
+                return pg.getCopyAPI().copyIn(COPY + ", HEADER true)",
+                        new InputStreamReader(new BufferedInputStream(raw, 1 << 16), StandardCharsets.UTF_8));
+            }
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8), 1 << 16);
+            CopyIn copy = pg.getCopyAPI().copyIn(COPY + ")");
+            try {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+                StringBuilder row = new StringBuilder();
+                String line;
+                long number = 0;
+                while ((line = in.readLine()) != null) {
+                    number++;
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    Map<String, String> fields;
+                    try {
+                        fields = FlatJson.parseObject(line);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(file + " line " + number + ": " + e.getMessage());
+                    }
+                    row.setLength(0);
+                    for (int i = 0; i < COLUMNS.length; i++) {
+                        if (i > 0) {
+                            row.append(',');
+                        }
+                        appendCsv(row, fields.get(COLUMNS[i]));
+                    }
+                    row.append('\n');
+                    byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+                    buffer.write(bytes, 0, bytes.length);
+                    if (buffer.size() >= 1 << 16) {
+                        copy.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+                        buffer.reset();
+                    }
+                }
+                copy.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+                return copy.endCopy();
+            } finally {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+            }
+        }
+    }
+
+    // Run every check, printing the examples of any that fail. True if they all pass
+    private static boolean check(Statement st) throws SQLException {
+        boolean passed = true;
+        for (String[] check : CHECKS) {
+            List<String> examples = new ArrayList<String>();
+            ResultSet rs = st.executeQuery(check[1]);
+            while (rs.next()) {
+                examples.add(rs.getString(1));
+            }
+            rs.close();
+            if (!examples.isEmpty()) {
+                passed = false;
+                System.out.println(check[0] + ": " + String.join(", ", examples) + (examples.size() == 10 ? ", ..." : ""));
+            }
+        }
+        return passed;
+    }
+
+    private static void report(String what, long count, String unit, long since) {
+        double seconds = (System.nanoTime() - since) / 1e9;
+        System.out.format("%s %d %s in %.1fs (%.0f %s/s)\n", what, count, unit, seconds, count / Math.max(seconds, 1e-9), unit);
+    }
+
+    // A missing or null field is left empty, which COPY reads as NULL. Anything else is quoted
+    private static void appendCsv(StringBuilder row, String value) {
+        if (value == null) {
+            return;
+        }
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                row.append('"');
+            }
+            row.append(c);
+        }
+        row.append('"');
+    }
+}
@@ -0,0 +1,439 @@
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+// An in-memory copy of inventory and staff, so that orders with an unknown product or member of staff, or more
+// units than are in stock, can be turned away before they reach the database - without using up an order ID or
+// taking any locks, and with a reason the till can show.
+// It is loaded at startup and kept up to date by listening for the notifications that the triggers on
+// inventory and staff send on every committed change (see notifyCatalogChange). Sales don't notify - every
+// transaction that sends a notification queues for the same lock when it commits. Instead every change to a stock
+// level adds a row to stock_changes, and every -Dinvmgmt.stockPollMs (default 1000) the catalog reads the stock
+// of just the products in the rows added since its last read. The stock levels are a snapshot, so the database
+// still has the final say - the catalog only rejects orders that are certain to fail, or close to.
+// The high-water mark for stock_changes is the ID of the transaction that wrote each row, not its ChangeID.
+// ChangeIDs are taken before their transactions commit, so a lower one can turn up after a higher one has been
+// read. Each read only takes the rows of transactions older than every one still running, which have all
+// finished. Every -Dinvmgmt.stockChangesPruneMinutes (default 10) the catalog deletes the rows below the mark it
+// had the last time, which every catalog still connected has long since read.
+// The notifications and stock reads make it a stock change feed. Anything that wants to follow stock levels - the
+// tills, a replenishment process - subscribes a StockListener instead of polling getQuantity. Every notification
+// that getNotifications hands back at once, and every stock read, is applied first and then published, so a
+// product that changed many times in between is reported once, with its level before and after. Listeners run on
+// the listener thread and should hand slow work off to a thread of their own.
+// -Dinvmgmt.lowStockThreshold=N reports every product that drops below N units on stderr.
+// On by default; start with -Dinvmgmt.catalog=false to check everything in the database only.
+class Catalog {
+
+    // Told when a product's stock level has changed
+    interface StockListener {
+        /**
+         * @param product  The product, as it is now
+         * @param previous Its stock level before the change - 0 for a new product
+         */
+        void stockChanged(Product product, int previous);
+    }
+
+    // One row of inventory
+    static final class Product {
+        final int id;
+        final String desc;
+        final BigDecimal price;
+        final int stock;
+
+        Product(int id, String desc, BigDecimal price, int stock) {
+            this.id = id;
+            this.desc = desc;
+            this.price = price;
+            this.stock = stock;
+        }
+    }
+
+    // The new high-water mark on every row, with the current stock of each product changed since the last one.
+    // There is always at least one row, with a NULL product if nothing has changed
+    static final String STOCK = "WITH horizon AS (SELECT txid_snapshot_xmin(txid_current_snapshot()) AS upTo), "
+            + "changed AS (SELECT DISTINCT c.ProductID FROM stock_changes c, horizon h WHERE c.TxID >= ? AND c.TxID < h.upTo) "
+            + "SELECT h.upTo, i.ProductID, COALESCE(i.ProductStockAmount, 0) FROM horizon h "
+            + "LEFT OUTER JOIN (changed x INNER JOIN inventory i ON i.ProductID = x.ProductID) ON true";
+    static final String HORIZON = "SELECT txid_snapshot_xmin(txid_current_snapshot())";
+    static final String PRUNE = "DELETE FROM stock_changes WHERE TxID < ?";
+    static final long STOCK_POLL_MS = Math.max(10, Long.getLong("invmgmt.stockPollMs", 1000));
+    static final long PRUNE_MS = Math.max(1, Long.getLong("invmgmt.stockChangesPruneMinutes", 10)) * 60000;
+
+    private static volatile Catalog instance;
+
+    private final ConcurrentHashMap<Integer, Product> products = new ConcurrentHashMap<Integer, Product>();
+    private final ConcurrentHashMap<Integer, String> staff = new ConcurrentHashMap<Integer, String>();
+    private final LongAdder notifications = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder stockReads = new LongAdder();
+    private final CopyOnWriteArrayList<StockListener> stockListeners = new CopyOnWriteArrayList<StockListener>();
+
+    // ProductID -> stock level before the batch of notifications or stock read being applied, for the products it changed.
+    // Only touched by the listener thread
+    private final IntIntMap changedStock = new IntIntMap();
+    // The stock_changes rows of transactions from this one on haven't been read yet. Only touched by the listener thread
+    private long stockSeen = 0;
+    // What stockSeen was at the last prune, or -1 before the first
+    private long pruneBelow = -1;
+    private volatile boolean loaded = false;
+
+    /**
+     * Loads the catalog and starts listening for changes, unless -Dinvmgmt.catalog=false.
+     * Later calls return the same catalog.
+     *
+     * @return The catalog, or null if it is switched off
+     */
+    public static synchronized Catalog start() {
+        if (instance == null && !"false".equals(System.getProperty("invmgmt.catalog"))) {
+            Catalog catalog = new Catalog();
+            Thread listener = new Thread(new Runnable() {
+                public void run() {
+                    catalog.listen();
+                }
+            }, "catalog-listener");
+            listener.setDaemon(true);
+            Integer threshold = Integer.getInteger("invmgmt.lowStockThreshold");
+            if (threshold != null) {
+                catalog.onLowStock(threshold, new StockListener() {
+                    public void stockChanged(Product product, int previous) {
+                        System.err.println("Low stock: product " + product.id + " (" + product.desc + ") is down to "
+                                + product.stock);
+                    }
+                });
+            }
+            listener.start();
+            instance = catalog;
+        }
+        return instance;
+    }
+
+    /**
+     * @return The running catalog, or null if it hasn't been started
+     */
+    public static Catalog get() {
+        return instance;
+    }
+
+    /**
+     * Checks a whole order against the catalog. Quantities of the same product are added together.
+     *
+     * @return Why the order can't be placed, or null if it looks fine (or the catalog hasn't loaded yet)
+     */
+    public static String checkOrder(int[] productIDs, int[] quantities, int staffID) {
+        Catalog catalog = instance;
+        if (catalog == null || !catalog.loaded) {
+            return null;
+        }
+        String problem = catalog.checkStaff(staffID);
+        IntIntMap totals = new IntIntMap(productIDs.length);
+        for (int i = 0; i < productIDs.length && problem == null; i++) {
+            problem = catalog.checkProduct(productIDs[i], totals.add(productIDs[i], quantities[i]));
+        }
+        if (problem != null) {
+            catalog.rejected.increment();
+        }
+        return problem;
+    }
+
+    /**
+     * @return Why the product can't be sold in this quantity, or null if it can
+     */
+    public String checkProduct(int productID, int quantity) {
+        Product product = products.get(productID);
+        if (product == null) {
+            return "There is no product with ID " + productID;
+        }
+        if (product.stock < quantity) {
+            return "Only " + product.stock + " of product " + productID + " (" + product.desc + ") in stock";
+        }
+        return null;
+    }
+
+    /**
+     * @return Why the staff ID can't be used, or null if it can
+     */
+    public String checkStaff(int staffID) {
+        return staff.containsKey(staffID) ? null : "There is no member of staff with ID " + staffID;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public Product product(int productID) {
+        return products.get(productID);
+    }
+
+    public String staffName(int staffID) {
+        return staff.get(staffID);
+    }
+
+    /**
+     * @param productID A product
+     * @return Its stock level as of the last stock read or notification, or -1 if the catalog doesn't know it
+     */
+    public int stock(int productID) {
+        Product product = products.get(productID);
+        return product == null ? -1 : product.stock;
+    }
+
+    /**
+     * Starts telling a listener about every change to a product's stock level.
+     */
+    public void subscribe(StockListener listener) {
+        stockListeners.add(listener);
+    }
+
+    public void unsubscribe(StockListener listener) {
+        stockListeners.remove(listener);
+    }
+
+    /**
+     * Subscribes a listener that is only told when a product goes from threshold or more units to fewer.
+     *
+     * @param threshold The lowest stock level that isn't low
+     * @param listener  Told about the product once each time it drops below the threshold
+     * @return The subscription, for unsubscribe
+     */
+    public StockListener onLowStock(final int threshold, final StockListener listener) {
+        StockListener crossing = new StockListener() {
+            public void stockChanged(Product product, int previous) {
+                if (previous >= threshold && product.stock < threshold) {
+                    listener.stockChanged(product, previous);
+                }
+            }
+        };
+        subscribe(crossing);
+        return crossing;
+    }
+
+    // Keep a connection listening, reloading everything whenever it has to reconnect in case changes were missed
+    private void listen() {
+        Connection conn = null;
+        long nextStockRead = 0;
+        long nextPrune = System.currentTimeMillis() + PRUNE_MS;
+        while (true) {
+            try {
+                if (conn == null) {
+                    conn = Assignment.getConnection();
+                    if (conn == null) {
+                        loaded = false;
+                        Thread.sleep(5000);
+                        continue;
+                    }
+                    // Listen before loading, so that nothing committed in between is missed
+                    Statement st = conn.createStatement();
+                    st.execute("LISTEN inventory_changes");
+                    st.execute("LISTEN staff_changes");
+                    st.close();
+                    reload(conn);
+                    nextStockRead = System.currentTimeMillis() + STOCK_POLL_MS;
+                }
+
+                long wait = Math.max(1, nextStockRead - System.currentTimeMillis());
+                PGNotification[] received = conn.unwrap(PGConnection.class).getNotifications((int) Math.min(wait, 1000));
+                if (received != null) {
+                    for (PGNotification notification : received) {
+                        apply(notification.getName(), notification.getParameter());
+                    }
+                }
+                if (System.currentTimeMillis() >= nextStockRead) {
+                    readStock(conn);
+                    nextStockRead = System.currentTimeMillis() + STOCK_POLL_MS;
+                }
+                if (System.currentTimeMillis() >= nextPrune) {
+                    prune(conn);
+                    nextPrune = System.currentTimeMillis() + PRUNE_MS;
+                }
+                publish();
+            } catch (SQLException e) {
+                System.err.format("Catalog lost its connection - SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+                loaded = false;
+                if (conn != null) {
+                    StatementCache.release(conn);
+                    try {
+                        conn.close();
+                    } catch (SQLException closeError) {
+                        // Already gone
+                    }
+                    conn = null;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void reload(Connection conn) throws SQLException {
+        Statement st = conn.createStatement();
+        // Before loading, so that stock changes still being committed are read afterwards
+        ResultSet rs = st.executeQuery(HORIZON);
+        rs.next();
+        stockSeen = rs.getLong(1);
+        rs.close();
+
+        Set<Integer> seen = new HashSet<Integer>();
+        rs = st.executeQuery("SELECT ProductID, ProductDesc, ProductPrice, COALESCE(ProductStockAmount, 0) FROM inventory");
+        while (rs.next()) {
+            // Only report changes made while we weren't listening, not the whole inventory on the first load
+            Product before = reloads.sum() == 0 ? null : products.get(rs.getInt(1));
+            Product product = new Product(rs.getInt(1), rs.getString(2), rs.getBigDecimal(3), rs.getInt(4));
+            products.put(product.id, product);
+            if (before != null) {
+                stockChanged(before.stock, product);
+            }
+            seen.add(product.id);
+        }
+        rs.close();
+        products.keySet().retainAll(seen);
+
+        seen.clear();
+        rs = st.executeQuery("SELECT StaffID, FName || ' ' || LName FROM staff");
+        while (rs.next()) {
+            staff.put(rs.getInt(1), rs.getString(2));
+            seen.add(rs.getInt(1));
+        }
+        rs.close();
+        staff.keySet().retainAll(seen);
+        st.close();
+
+        reloads.increment();
+        loaded = true;
+        publish();
+    }
+
+    /**
+     * Reads the stock level of every product in stock_changes since the last read, noting the ones that have
+     * changed for publish. Products the catalog doesn't know yet are left for their notification.
+     *
+     * @param conn The listening connection
+     */
+    void readStock(Connection conn) throws SQLException {
+        PreparedStatement pst = StatementCache.of(conn).prepare(STOCK);
+        pst.setLong(1, stockSeen);
+        ResultSet rs = pst.executeQuery();
+        long upTo = stockSeen;
+        while (rs.next()) {
+            upTo = rs.getLong(1);
+            if (rs.getObject(2) == null) {
+                continue;
+            }
+            Product before = products.get(rs.getInt(2));
+            int stock = rs.getInt(3);
+            if (before != null && before.stock != stock) {
+                Product product = new Product(before.id, before.desc, before.price, stock);
+                products.put(product.id, product);
+                stockChanged(before.stock, product);
+            }
+        }
+        rs.close();
+        stockSeen = upTo;
+        stockReads.increment();
+    }
+
+    /**
+     * Deletes the stock_changes rows below the high-water mark of the last prune, then remembers the current one
+     * for the next.
+     *
+     * @param conn The listening connection
+     */
+    void prune(Connection conn) throws SQLException {
+        if (pruneBelow >= 0) {
+            PreparedStatement pst = StatementCache.of(conn).prepare(PRUNE);
+            pst.setLong(1, pruneBelow);
+            pst.executeUpdate();
+        }
+        pruneBelow = stockSeen;
+    }
+
+    /**
+     * Applies one change notification. Column names arrive in lower case, as Postgres folds them.
+     *
+     * @param channel inventory_changes or staff_changes
+     * @param payload The changed row as JSON, plus the operation in "op"
+     */
+    void apply(String channel, String payload) {
+        notifications.increment();
+        Map<String, String> row;
+        try {
+            row = FlatJson.parseObject(payload);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Catalog ignored a notification it couldn't read: " + payload);
+            return;
+        }
+        boolean deleted = "DELETE".equals(row.get("op"));
+
+        if (channel.equals("inventory_changes")) {
+            int id = Integer.parseInt(row.get("productid"));
+            if (deleted) {
+                products.remove(id);
+            } else {
+                // An update is a new description or price. The stock level in it may be older than the last
+                // read of the stock levels, which are left to readStock
+                String stock = row.get("productstockamount");
+                Product before = products.get(id);
+                int level = before != null && "UPDATE".equals(row.get("op")) ? before.stock
+                        : stock == null ? 0 : Integer.parseInt(stock);
+                Product product = new Product(id, row.get("productdesc"), new BigDecimal(row.get("productprice")), level);
+                products.put(id, product);
+                stockChanged(before == null ? 0 : before.stock, product);
+            }
+        } else if (channel.equals("staff_changes")) {
+            int id = Integer.parseInt(row.get("staffid"));
+            if (deleted) {
+                staff.remove(id);
+            } else {
+                staff.put(id, row.get("fname") + " " + row.get("lname"));
+            }
+        }
+    }
+
+    // Remember a product's stock level before the current batch, the first time the batch changes it
+    private void stockChanged(int previous, Product product) {
+        if (!changedStock.containsKey(product.id)) {
+            changedStock.put(product.id, previous);
+        } else {
+            Metrics.count("catalog.stockCoalesced");
+        }
+    }
+
+    // Tell the listeners about every product whose stock the last batch of notifications changed
+    void publish() {
+        if (changedStock.size() == 0) {
+            return;
+        }
+        for (int id : changedStock.keys()) {
+            Product product = products.get(id);
+            int previous = changedStock.get(id, 0);
+            if (product == null || product.stock == previous) {
+                continue;
+            }
+            published.increment();
+            for (StockListener listener : stockListeners) {
+                try {
+                    listener.stockChanged(product, previous);
+                } catch (RuntimeException e) {
+                    // One broken listener mustn't stop the others, or the catalog
+                    e.printStackTrace();
+                }
+            }
+        }
+        changedStock.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("products=%d staff=%d loaded=%b notifications=%d stockReads=%d reloads=%d rejected=%d stockChanges=%d listeners=%d",
+                products.size(), staff.size(), loaded, notifications.sum(), stockReads.sum(), reloads.sum(),
+                rejected.sum(), published.sum(), stockListeners.size());
+    }
+}
@@ -0,0 +1,213 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Cancels collection orders automatically once they are 8 days past their collection date, without anyone
+// having to run option 5.
+// Pending collections are kept in memory in buckets by the day they expire (a TreeMap from epoch day to order
+// IDs), added as each collection order is placed, so every check only has to take the buckets that are due off
+// the front of the map and hand their orders to cancelUncollectedOrders - the cost is in proportion to the orders
+// that actually expire, not to every uncollected order.
+// Orders that were collected or cancelled in the meantime are skipped by cancelUncollectedOrders itself, so the
+// buckets never need cleaning. The first check loads every pending collection. After that, collections placed by
+// another process (e.g. the order server) are picked up as they become due: each check asks only for the ones
+// whose collection date has passed the 8 days since the last check, a range scan of the collections_date index
+// over a few days at most, however long the order history. OrderIDs can't be used as a high-water mark for this -
+// orders commit out of order, and each process takes its IDs in blocks (see OrderIDAllocator). A collection placed
+// elsewhere with a date that had already expired isn't picked up until the next start, or option 5.
+// On by default, checking every -Dinvmgmt.expiryCheckMinutes (default 60); -Dinvmgmt.collectionExpiry=false
+// turns it off.
+class CollectionExpiry {
+
+    static final String LOAD_PENDING = "SELECT c.OrderID, c.CollectionDate FROM collections c "
+            + "INNER JOIN orders o ON o.OrderID = c.OrderID AND o.OrderPlaced = c.OrderPlaced "
+            + "WHERE o.OrderCompleted = 0";
+    static final String LOAD_DUE = "SELECT c.OrderID, c.CollectionDate FROM collections c "
+            + "INNER JOIN orders o ON o.OrderID = c.OrderID AND o.OrderPlaced = c.OrderPlaced "
+            + "WHERE c.CollectionDate > ? AND c.CollectionDate <= ? AND o.OrderCompleted = 0";
+    static final String CANCEL = "SELECT cancelledOrderID FROM cancelUncollectedOrders(?, ?)";
+
+    // How long after its collection date an order is cancelled, as in option 5
+    static final int EXPIRY_DAYS = 8;
+
+    private static CollectionExpiry instance;
+
+    private final TreeMap<Long, Set<Integer>> buckets = new TreeMap<Long, Set<Integer>>();
+    private int pending = 0;
+    private long expired = 0;
+    // The latest collection date already loaded from the database, once everything pending has been
+    private java.sql.Date loadedUpTo;
+    private Connection conn;
+
+    CollectionExpiry() {
+    }
+
+    /**
+     * @param connection The connection to check with, rather than one opened on the first check
+     */
+    CollectionExpiry(Connection connection) {
+        conn = connection;
+    }
+
+    /**
+     * Starts the background checks, unless -Dinvmgmt.collectionExpiry=false. Later calls return the same
+     * scheduler.
+     *
+     * @return The scheduler, or null if it is switched off
+     */
+    public static synchronized CollectionExpiry start() {
+        if (instance == null && !"false".equals(System.getProperty("invmgmt.collectionExpiry"))) {
+            final CollectionExpiry expiry = new CollectionExpiry();
+            long minutes = Math.max(1, Long.getLong("invmgmt.expiryCheckMinutes", 60));
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "collection-expiry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    expiry.tick(today());
+                }
+            }, 0, minutes, TimeUnit.MINUTES);
+            instance = expiry;
+        }
+        return instance;
+    }
+
+    /**
+     * Adds a newly placed collection order, if the scheduler is running.
+     *
+     * @param orderID        The new order
+     * @param collectionDate When it is due to be collected
+     */
+    public static void collectionPlaced(int orderID, java.sql.Date collectionDate) {
+        CollectionExpiry expiry;
+        synchronized (CollectionExpiry.class) {
+            expiry = instance;
+        }
+        if (expiry != null && collectionDate != null) {
+            expiry.add(orderID, collectionDate.toLocalDate().toEpochDay() + EXPIRY_DAYS);
+        }
+    }
+
+    static long today() {
+        return java.time.LocalDate.now().toEpochDay();
+    }
+
+    // An order always expires on the same day, so adding it again (e.g. when reloading) changes nothing
+    synchronized void add(int orderID, long expiresOn) {
+        Set<Integer> bucket = buckets.get(expiresOn);
+        if (bucket == null) {
+            bucket = new HashSet<Integer>();
+            buckets.put(expiresOn, bucket);
+        }
+        if (bucket.add(orderID)) {
+            pending++;
+        }
+    }
+
+    /**
+     * Takes every order that has expired by the given day out of the buckets.
+     *
+     * @param day An epoch day
+     * @return The orders, oldest bucket first
+     */
+    synchronized List<Integer> takeDue(long day) {
+        List<Integer> due = new ArrayList<Integer>();
+        Map<Long, Set<Integer>> head = buckets.headMap(day, true);
+        for (Set<Integer> bucket : head.values()) {
+            due.addAll(bucket);
+        }
+        head.clear();
+        pending -= due.size();
+        return due;
+    }
+
+    // Pick up collections placed elsewhere, then cancel whatever is due in chunks
+    void tick(long day) {
+        try {
+            if (conn == null || conn.isClosed()) {
+                conn = Assignment.getConnection();
+                if (conn == null) {
+                    return;
+                }
+            }
+            loadDue(day);
+
+            List<Integer> due = takeDue(day);
+            int chunkSize = CollectionPurge.chunkSize();
+            for (int from = 0; from < due.size(); from += chunkSize) {
+                List<Integer> chunk = due.subList(from, Math.min(due.size(), from + chunkSize));
+                try {
+                    expire(chunk, day);
+                } catch (SQLException e) {
+                    // Put back what we didn't get to, so it's tried again next time
+                    for (int orderID : due.subList(from, due.size())) {
+                        add(orderID, day);
+                    }
+                    throw e;
+                }
+            }
+        } catch (SQLException e) {
+            System.err.format("SQL State: %s\n%s", e.getSQLState(), e.getMessage());
+            // Start again with a fresh connection next time
+            StatementCache.release(conn);
+            try {
+                conn.close();
+            } catch (SQLException closeError) {
+                // Already broken
+            }
+            conn = null;
+        }
+    }
+
+    // cancelUncollectedOrders checks again that each order has expired by the day, so a bucket can't cancel early
+    private void expire(List<Integer> orderIDs, long day) throws SQLException {
+        PreparedStatement pst = StatementCache.of(conn).prepare(CANCEL);
+        pst.setArray(1, conn.createArrayOf("integer", orderIDs.toArray()));
+        pst.setDate(2, java.sql.Date.valueOf(java.time.LocalDate.ofEpochDay(day)));
+        int cancelled = 0;
+        ResultSet rs = pst.executeQuery();
+        while (rs.next()) {
+            cancelled++;
+        }
+        rs.close();
+        synchronized (this) {
+            expired += cancelled;
+        }
+        Metrics.record("collectionExpiry.cancelled", cancelled);
+        if (cancelled > 0) {
+            System.err.println("Cancelled " + cancelled + " collection orders that were never collected");
+        }
+    }
+
+    // Every pending collection the first time, and after that the uncollected orders that have expired since the
+    // last time, wherever they were placed. Orders this process placed itself are already in the buckets, and
+    // adding them again changes nothing
+    private void loadDue(long day) throws SQLException {
+        java.sql.Date cutoff = java.sql.Date.valueOf(java.time.LocalDate.ofEpochDay(day - EXPIRY_DAYS));
+        PreparedStatement pst;
+        if (loadedUpTo == null) {
+            pst = StatementCache.of(conn).prepare(LOAD_PENDING);
+        } else if (cutoff.after(loadedUpTo)) {
+            pst = StatementCache.of(conn).prepare(LOAD_DUE);
+            pst.setDate(1, loadedUpTo);
+            pst.setDate(2, cutoff);
+        } else {
+            return;
+        }
+        ResultSet rs = pst.executeQuery();
+        while (rs.next()) {
+            add(rs.getInt(1), rs.getDate(2).toLocalDate().toEpochDay() + EXPIRY_DAYS);
+        }
+        rs.close();
+        loadedUpTo = cutoff;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("pending=%d buckets=%d expired=%d", pending, buckets.size(), expired);
+    }
+}
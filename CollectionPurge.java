@@ -0,0 +1,119 @@
+import java.io.PrintStream;
+import java.sql.*;
+import java.util.concurrent.*;
+
+// Cancels collection orders that were never collected (option 5), a chunk at a time.
+// Each chunk is one call to purgeUncollectedOrders, which deletes the orders with DELETE ... RETURNING, restocks
+// with one UPDATE per product and hands back the IDs it cancelled, so there's no separate scan to find them first.
+// Committing between chunks means a large purge only ever holds locks on inventory for one chunk's worth of
+// products, and tills can get in between chunks. It stops at the first chunk that cancels nothing.
+class CollectionPurge {
+
+    static final String PURGE = "SELECT cancelledOrderID FROM purgeUncollectedOrders(?, ?)";
+
+    /**
+     * Cancels every uncollected collection order that is 8 days older than the given date.
+     *
+     * @param conn      An open database connection. If it isn't in autocommit mode each chunk is committed
+     * @param date      The date to count the 8 days back from
+     * @param chunkSize How many orders to cancel per transaction
+     * @param out       Where to report each cancelled order and the progress after each chunk
+     * @return The number of orders cancelled
+     */
+    public static int purge(Connection conn, java.sql.Date date, int chunkSize, PrintStream out) throws SQLException {
+        PreparedStatement pst = StatementCache.of(conn).prepare(PURGE);
+        pst.setDate(1, date);
+        pst.setInt(2, chunkSize);
+
+        int total = 0;
+        int chunks = 0;
+        while (true) {
+            int cancelled = 0;
+            Metrics.roundTrip();
+            ResultSet rs = pst.executeQuery();
+            while (rs.next()) {
+                out.println("Order " + rs.getInt(1) + " has been cancelled");
+                cancelled++;
+            }
+            rs.close();
+            if (!conn.getAutoCommit()) {
+                Metrics.roundTrip();
+                conn.commit();
+            }
+
+            // Only a chunk that cancels nothing means we're done. A short one doesn't, as orders that were collected
+            // after they were chosen are skipped
+            if (cancelled == 0) {
+                break;
+            }
+            total += cancelled;
+            chunks++;
+            out.println("Chunk " + chunks + ": cancelled " + cancelled + " orders, " + total + " so far");
+        }
+        return total;
+    }
+
+    /**
+     * @return The chunk size set with -Dinvmgmt.purgeChunkSize, default 500
+     */
+    public static int chunkSize() {
+        return Math.max(1, Integer.getInteger("invmgmt.purgeChunkSize", 500));
+    }
+
+    /**
+     * Runs the purge for today's date in the background every so often, on its own connection so it never
+     * shares a transaction with the menu or a till.
+     *
+     * @param intervalMinutes How long to wait between purges
+     * @return The executor running the job - shut it down to stop purging
+     */
+    public static ScheduledExecutorService schedule(long intervalMinutes) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "collection-purge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            Connection conn;
+
+            public void run() {
+                try {
+                    if (conn == null || conn.isClosed()) {
+                        conn = Assignment.getConnection();
+                        if (conn == null) {
+                            return;
+                        }
+                    }
+                    java.sql.Date today = new java.sql.Date(System.currentTimeMillis());
+                    int cancelled = purge(conn, today, chunkSize(), System.err);
+                    if (cancelled > 0) {
+                        System.err.println("Background purge cancelled " + cancelled + " uncollected orders");
+                    }
+                } catch (SQLException e) {
+                    System.err.format("SQL State: %s\n%s", e.getSQLState(), e.getMessage());
+                    // Start again with a fresh connection next time
+                    StatementCache.release(conn);
+                    try {
+                        conn.close();
+                    } catch (SQLException closeError) {
+                        // Already broken
+                    }
+                    conn = null;
+                }
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        return executor;
+    }
+
+    /**
+     * Starts the background purge if -Dinvmgmt.purgeIntervalMinutes is set
+     */
+    public static void scheduleFromProperties() {
+        long interval = Long.getLong("invmgmt.purgeIntervalMinutes", 0);
+        if (interval > 0) {
+            schedule(interval);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// A bounded pool of database connections shared by the sessions of the order server.
+// At most maxSize connections are open at once - callers that can't get one within the acquire timeout
+// get an SQLException rather than queueing forever. Idle connections are handed out most recently used first,
+// so the warm ones (with their statement caches full) get reused, and a connection that has been idle for a
+// while is checked with isValid before it is handed out.
+class ConnectionPool {
+
+    // How we open a new connection when the pool needs one
+    interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    // An idle connection and when it was last returned to the pool
+    private static class IdleConnection {
+        final Connection conn;
+        final long idleSince;
+
+        IdleConnection(Connection conn) {
+            this.conn = conn;
+            this.idleSince = System.nanoTime();
+        }
+    }
+
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long validateAfterNanos;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<IdleConnection>();
+    private volatile boolean closed = false;
+
+    // Metrics
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param factory              Opens a new connection when the pool needs one
+     * @param maxSize              The most connections that will be open at once
+     * @param acquireTimeoutMillis How long acquire waits for a free connection before giving up
+     * @param validateAfterMillis  Connections idle for longer than this are checked with isValid before reuse
+     */
+    public ConnectionPool(ConnectionFactory factory, int maxSize, long acquireTimeoutMillis, long validateAfterMillis) {
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * A pool of connections from Assignment.getOrderConnection, sized by the invmgmt.poolSize (default 10),
+     * invmgmt.poolAcquireTimeoutMs (default 5000) and invmgmt.poolValidateAfterMs (default 30000) properties
+     */
+    public static ConnectionPool fromProperties() {
+        return new ConnectionPool(new ConnectionFactory() {
+            public Connection open() throws SQLException {
+                Connection conn = Assignment.getOrderConnection();
+                if (conn == null) {
+                    throw new SQLException("Could not open a database connection", "08001");
+                }
+                return conn;
+            }
+        }, Integer.getInteger("invmgmt.poolSize", 10), Long.getLong("invmgmt.poolAcquireTimeoutMs", 5000),
+                Long.getLong("invmgmt.poolValidateAfterMs", 30000));
+    }
+
+    /**
+     * @return A connection in autocommit mode. Hand it back with release when finished
+     * @throws SQLException If no connection became free within the acquire timeout, or a new one couldn't be opened
+     */
+    public Connection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool has been closed", "08003");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                Metrics.count("pool.timeouts");
+                throw new SQLException("Timed out after " + acquireTimeoutMillis + "ms waiting for a database connection", "08001");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", "08001");
+        }
+
+        try {
+            Connection conn = null;
+            IdleConnection candidate;
+            while (conn == null && (candidate = idle.pollFirst()) != null) {
+                if (isHealthy(candidate)) {
+                    conn = candidate.conn;
+                } else {
+                    discard(candidate.conn);
+                }
+            }
+            if (conn == null) {
+                conn = factory.open();
+                created.increment();
+            }
+            recordWait(System.nanoTime() - start);
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool. Any open transaction is rolled back, and a broken connection is closed
+     * instead of being reused.
+     *
+     * @param conn A connection from acquire
+     */
+    public void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            if (closed || conn.isClosed()) {
+                discard(conn);
+                return;
+            }
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            idle.offerFirst(new IdleConnection(conn));
+        } catch (SQLException e) {
+            discard(conn);
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        IdleConnection candidate;
+        while ((candidate = idle.pollFirst()) != null) {
+            discard(candidate.conn);
+        }
+    }
+
+    // Only ask the database if the connection has been sitting idle long enough to have gone stale
+    private boolean isHealthy(IdleConnection candidate) {
+        try {
+            if (candidate.conn.isClosed()) {
+                return false;
+            }
+            if (System.nanoTime() - candidate.idleSince < validateAfterNanos) {
+                return true;
+            }
+            return candidate.conn.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(Connection conn) {
+        discarded.increment();
+        StatementCache.release(conn);
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // Already broken, nothing more to do
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        acquires.increment();
+        totalWaitNanos.add(waitNanos);
+        Metrics.timer("pool.wait").record(waitNanos);
+        long max = maxWaitNanos.get();
+        while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getInUse() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public long getAcquires() {
+        return acquires.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getTotalWaitNanos() {
+        return totalWaitNanos.sum();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long count = acquires.sum();
+        return String.format("%d/%d in use, %d idle, %d acquires, %d timeouts, %d created, %d discarded, "
+                + "avg wait %.3fms, max wait %.3fms", getInUse(), maxSize, getIdle(), count, timeouts.sum(),
+                created.sum(), discarded.sum(), count == 0 ? 0.0 : totalWaitNanos.sum() / (count * 1e6),
+                maxWaitNanos.get() / 1e6);
+    }
+}
@@ -0,0 +1,192 @@
+import java.sql.*;
+import java.util.*;
+
+// Works out the Employees of the Year for option 8 - staff who sold at least £30,000 in a year and sold at least
+// one of every product that grossed over £20,000 in that year.
+// One query streams the value of every (year, staff, product) combination, ordered by year. For each year we
+// total the products and the staff, and give each member of staff a bitset of the products they sold. The
+// winners are then the 30k staff whose bitset contains every bit of the 20k products - a set division done with
+// BitSet.andNot instead of comparing counts from a self-joined view. Every year in the range is evaluated in the
+// same pass, so precomputing all years costs the same one scan as a single year.
+class EmployeeOfTheYear {
+
+    // Thresholds in pence, so the totals are exact
+    static final long STAFF_THRESHOLD = 30000_00L;
+    static final long PRODUCT_THRESHOLD = 20000_00L;
+
+    static final String QUERY = "SELECT DATE_PART('year', OrderPlaced)::INTEGER AS yr, StaffID, ProductID, SUM(saleValue) "
+            + "FROM allSaleValues "
+            + "WHERE OrderPlaced >= ? AND OrderPlaced < ? "
+            + "GROUP BY 1, 2, 3 "
+            + "ORDER BY 1";
+
+    // The year currently being accumulated
+    private int year = Integer.MIN_VALUE;
+    private final IntIntMap productIndex = new IntIntMap();
+    private long[] productTotals = new long[64];
+    private final IntIntMap staffIndex = new IntIntMap();
+    private int[] staffIDs = new int[64];
+    private long[] staffTotals = new long[64];
+    private BitSet[] staffProducts = new BitSet[64];
+
+    // Year -> winning StaffIDs, best seller first
+    private final TreeMap<Integer, int[]> winners = new TreeMap<Integer, int[]>();
+
+    /**
+     * @param conn     An open database connection
+     * @param fromYear The first year to evaluate
+     * @param toYear   The last year to evaluate, inclusive
+     * @return Every year in the range that had sales, mapped to the full names of its Employees of the Year
+     *         (empty if nobody qualified), best seller first
+     */
+    public static TreeMap<Integer, List<String>> evaluate(Connection conn, int fromYear, int toYear) throws SQLException {
+        EmployeeOfTheYear evaluator = new EmployeeOfTheYear();
+
+        PreparedStatement pst = StatementCache.of(conn).prepare(QUERY);
+        pst.setDate(1, java.sql.Date.valueOf(fromYear + "-01-01"));
+        pst.setDate(2, java.sql.Date.valueOf((toYear + 1) + "-01-01"));
+        ResultSet rs = pst.executeQuery();
+        while (rs.next()) {
+            evaluator.addSale(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getBigDecimal(4).movePointRight(2).longValue());
+        }
+        rs.close();
+        evaluator.finishYear();
+
+        return evaluator.withNames(conn);
+    }
+
+    /**
+     * Adds the value one member of staff sold of one product in one year. Sales must arrive in year order.
+     *
+     * @param valuePence The value sold, in pence
+     */
+    public void addSale(int saleYear, int staffID, int productID, long valuePence) {
+        if (saleYear != year) {
+            finishYear();
+            year = saleYear;
+        }
+
+        int product = productIndex.get(productID, -1);
+        if (product < 0) {
+            product = productIndex.size();
+            productIndex.put(productID, product);
+            if (product == productTotals.length) {
+                productTotals = Arrays.copyOf(productTotals, product * 2);
+            }
+            productTotals[product] = 0;
+        }
+        productTotals[product] += valuePence;
+
+        int staff = staffIndex.get(staffID, -1);
+        if (staff < 0) {
+            staff = staffIndex.size();
+            staffIndex.put(staffID, staff);
+            if (staff == staffIDs.length) {
+                staffIDs = Arrays.copyOf(staffIDs, staff * 2);
+                staffTotals = Arrays.copyOf(staffTotals, staff * 2);
+                staffProducts = Arrays.copyOf(staffProducts, staff * 2);
+            }
+            staffIDs[staff] = staffID;
+            staffTotals[staff] = 0;
+            if (staffProducts[staff] == null) {
+                staffProducts[staff] = new BitSet();
+            } else {
+                staffProducts[staff].clear();
+            }
+        }
+        staffTotals[staff] += valuePence;
+        staffProducts[staff].set(product);
+    }
+
+    // Decide the winners of the year we've been accumulating, and reset for the next one
+    void finishYear() {
+        int staffCount = staffIndex.size();
+        int productCount = productIndex.size();
+        if (staffCount == 0) {
+            return;
+        }
+
+        BitSet topProducts = new BitSet(productCount);
+        for (int p = 0; p < productCount; p++) {
+            if (productTotals[p] > PRODUCT_THRESHOLD) {
+                topProducts.set(p);
+            }
+        }
+
+        // A year with no £20,000 products has no Employee of the Year
+        List<Integer> yearWinners = new ArrayList<Integer>();
+        if (!topProducts.isEmpty()) {
+            BitSet missing = new BitSet(productCount);
+            for (int s = 0; s < staffCount; s++) {
+                if (staffTotals[s] < STAFF_THRESHOLD) {
+                    continue;
+                }
+                missing.clear();
+                missing.or(topProducts);
+                missing.andNot(staffProducts[s]);
+                if (missing.isEmpty()) {
+                    yearWinners.add(s);
+                }
+            }
+        }
+
+        final long[] totals = staffTotals;
+        yearWinners.sort(new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(totals[b], totals[a]);
+            }
+        });
+        int[] ids = new int[yearWinners.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = staffIDs[yearWinners.get(i)];
+        }
+        winners.put(year, ids);
+
+        staffIndex.clear();
+        productIndex.clear();
+    }
+
+    /**
+     * @return Year -> winning StaffIDs, best seller first
+     */
+    public TreeMap<Integer, int[]> getWinners() {
+        return winners;
+    }
+
+    // Swap the winning StaffIDs for names, looking them all up in one query
+    private TreeMap<Integer, List<String>> withNames(Connection conn) throws SQLException {
+        IntIntMap seen = new IntIntMap();
+        for (int[] ids : winners.values()) {
+            for (int id : ids) {
+                seen.put(id, 1);
+            }
+        }
+
+        Map<Integer, String> names = new HashMap<Integer, String>();
+        if (seen.size() > 0) {
+            int[] keys = seen.keys();
+            Integer[] ids = new Integer[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                ids[i] = keys[i];
+            }
+            PreparedStatement pst = StatementCache.of(conn).prepare(
+                    "SELECT StaffID, fName || ' ' || lName FROM staff WHERE StaffID = ANY(?)");
+            pst.setArray(1, conn.createArrayOf("integer", ids));
+            ResultSet rs = pst.executeQuery();
+            while (rs.next()) {
+                names.put(rs.getInt(1), rs.getString(2));
+            }
+            rs.close();
+        }
+
+        TreeMap<Integer, List<String>> result = new TreeMap<Integer, List<String>>();
+        for (Map.Entry<Integer, int[]> entry : winners.entrySet()) {
+            List<String> yearNames = new ArrayList<String>();
+            for (int id : entry.getValue()) {
+                yearNames.add(names.get(id));
+            }
+            result.put(entry.getKey(), yearNames);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.*;
+
+// Just enough JSON for one flat object per line - the NDJSON files read by BulkImport and the change
+// notifications the database sends to the Catalog. Values must be strings, numbers, booleans or null.
+class FlatJson {
+
+    /**
+     * Parses a JSON object whose values are all strings, numbers, booleans or null.
+     *
+     * @return Key -> value as text, with null for a JSON null
+     */
+    public static Map<String, String> parseObject(String json) {
+        Map<String, String> fields = new HashMap<String, String>();
+        int[] pos = { skipSpace(json, 0) };
+        expect(json, pos, '{');
+        if (peek(json, pos) == '}') {
+            return fields;
+        }
+        while (true) {
+            String key = parseString(json, pos);
+            expect(json, pos, ':');
+            String value;
+            char c = peek(json, pos);
+            if (c == '"') {
+                value = parseString(json, pos);
+            } else {
+                int end = pos[0];
+                while (end < json.length() && ",} \t".indexOf(json.charAt(end)) < 0) {
+                    end++;
+                }
+                value = json.substring(pos[0], end);
+                if (value.isEmpty() || value.charAt(0) == '{' || value.charAt(0) == '[') {
+                    throw new IllegalArgumentException("Expected a string, number or null for " + key);
+                }
+                if (value.equals("null")) {
+                    value = null;
+                }
+                pos[0] = skipSpace(json, end);
+            }
+            fields.put(key, value);
+            if (peek(json, pos) == ',') {
+                pos[0] = skipSpace(json, pos[0] + 1);
+                continue;
+            }
+            expect(json, pos, '}');
+            return fields;
+        }
+    }
+
+    private static String parseString(String json, int[] pos) {
+        expect(json, pos, '"');
+        StringBuilder out = new StringBuilder();
+        int i = pos[0];
+        while (i < json.length() && json.charAt(i) != '"') {
+            char c = json.charAt(i++);
+            if (c == '\\' && i < json.length()) {
+                char escaped = json.charAt(i++);
+                switch (escaped) {
+                    case 'n': out.append('\n'); break;
+                    case 't': out.append('\t'); break;
+                    case 'r': out.append('\r'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'u':
+                        if (i + 4 > json.length()) {
+                            throw new IllegalArgumentException("Bad \\u escape");
+                        }
+                        out.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default: out.append(escaped);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        if (i >= json.length()) {
+            throw new IllegalArgumentException("Unterminated string");
+        }
+        pos[0] = skipSpace(json, i + 1);
+        return out.toString();
+    }
+
+    private static char peek(String json, int[] pos) {
+        if (pos[0] >= json.length()) {
+            throw new IllegalArgumentException("Unexpected end of line");
+        }
+        return json.charAt(pos[0]);
+    }
+
+    private static void expect(String json, int[] pos, char c) {
+        if (peek(json, pos) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at column " + (pos[0] + 1));
+        }
+        pos[0] = skipSpace(json, pos[0] + 1);
+    }
+
+    private static int skipSpace(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
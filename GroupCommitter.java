@@ -0,0 +1,239 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Group commit for the order server - orders from many tills that arrive within a short window of each other are
+// placed in one transaction, so the database flushes its WAL once per batch instead of once per order.
+// Sessions hand their order to submit and wait on the future. A committer thread takes the first order off the
+// queue, waits up to the window (-Dinvmgmt.groupCommitWindowMicros, default 2000) for more, up to
+// -Dinvmgmt.groupCommitMaxBatch (default 32), then places each one with placeOrder behind a savepoint of its own.
+// An order that fails - e.g. checkValidOrderProduct finding insufficient stock - is rolled back to its savepoint
+// and its future fails straight away, without touching the rest of the batch. The others complete once the
+// batch has committed, or all fail together if the commit does. A deadlock or serialization failure anywhere in
+// the batch runs the whole batch again (see OrderRetry).
+// Orders hold their stock row locks until the batch commits, so a bigger window means more throughput per
+// commit but longer waits on popular products. Batch sizes and commit latency are recorded in Metrics.
+// Switched on with -Dinvmgmt.groupCommit=true; -Dinvmgmt.groupCommitThreads (default 2) batches run at once.
+class GroupCommitter {
+
+    // One order waiting for its batch
+    private static final class Pending {
+        final Order order;
+        final CompletableFuture<PlacedOrder> result = new CompletableFuture<PlacedOrder>();
+        final long queued = System.nanoTime();
+        PlacedOrder placed;
+
+        Pending(Order order) {
+            this.order = order;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+    private final ExecutorService committers;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batched = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder rolledBack = new LongAdder();
+    private final LongAdder failedCommits = new LongAdder();
+
+    /**
+     * @param pool         Where the committers borrow their connections from, one per batch
+     * @param windowMicros How long to wait after the first order of a batch for others to join it
+     * @param maxBatch     The most orders to place in one transaction
+     * @param threads      How many batches can be placed at once
+     */
+    public GroupCommitter(ConnectionPool pool, long windowMicros, int maxBatch, int threads) {
+        this.pool = pool;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.committers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "group-commit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            committers.submit(new Runnable() {
+                public void run() {
+                    commitLoop();
+                }
+            });
+        }
+    }
+
+    /**
+     * @param pool The order server's pool
+     * @return A committer configured from system properties, or null unless -Dinvmgmt.groupCommit=true
+     */
+    public static GroupCommitter fromProperties(ConnectionPool pool) {
+        if (!Boolean.getBoolean("invmgmt.groupCommit")) {
+            return null;
+        }
+        return new GroupCommitter(pool, Long.getLong("invmgmt.groupCommitWindowMicros", 2000),
+                Integer.getInteger("invmgmt.groupCommitMaxBatch", 32), Integer.getInteger("invmgmt.groupCommitThreads", 2));
+    }
+
+    /**
+     * @param order An order that has already been filled in and validated
+     * @return Completes with the placed order once its batch has committed, or with the SQLException that
+     *         stopped it
+     */
+    public Future<PlacedOrder> submit(Order order) {
+        Pending pending = new Pending(order);
+        if (!running) {
+            pending.result.completeExceptionally(new SQLException("The group committer has been shut down"));
+        } else {
+            queue.add(pending);
+        }
+        return pending.result;
+    }
+
+    /**
+     * Submits an order and waits for its batch.
+     *
+     * @param order An order that has already been filled in and validated
+     * @return The new order ID and the stock level of each product after the sale
+     * @throws SQLException If the order was rolled back, or its batch failed to commit
+     */
+    public PlacedOrder place(Order order) throws SQLException {
+        try {
+            return submit(order).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the order to commit");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    // Gather a batch, place it, repeat
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<Pending>(maxBatch);
+        while (running) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    long left = deadline - System.nanoTime();
+                    Pending next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(final List<Pending> batch) {
+        Metrics.record("groupCommit.batchSize", batch.size());
+        batches.increment();
+        batched.add(batch.size());
+        Connection conn = null;
+        try {
+            conn = pool.acquire();
+            conn.setAutoCommit(false);
+            final Connection batchConn = conn;
+            List<Pending> placed = OrderRetry.run(conn, new OrderRetry.Attempt<List<Pending>>() {
+                public List<Pending> run() throws SQLException {
+                    return placeBatch(batchConn, batch);
+                }
+            });
+            committed.add(placed.size());
+            for (Pending pending : placed) {
+                Metrics.time("groupCommit.order", pending.queued);
+                pending.result.complete(pending.placed);
+            }
+        } catch (SQLException | RuntimeException e) {
+            // Nothing in the batch was placed. Orders that already failed keep their own error
+            failedCommits.increment();
+            for (Pending pending : batch) {
+                pending.result.completeExceptionally(e);
+            }
+        } finally {
+            // Rolls back anything left open and turns autocommit back on
+            pool.release(conn);
+        }
+    }
+
+    // Place every order in the batch that hasn't already failed, each behind a savepoint of its own, and commit.
+    // A deadlock or serialization failure is thrown rather than rolled back to the savepoint - it can be caused
+    // by the locks or the snapshot of the whole transaction, so OrderRetry runs the whole batch again
+    private List<Pending> placeBatch(Connection conn, List<Pending> batch) throws SQLException {
+        List<Pending> placed = new ArrayList<Pending>(batch.size());
+        try {
+            for (Pending pending : batch) {
+                if (pending.result.isDone()) {
+                    continue;
+                }
+                Metrics.roundTrip();
+                Savepoint savepoint = conn.setSavepoint();
+                try {
+                    pending.placed = Assignment.placeOrder(conn, pending.order);
+                    Metrics.roundTrip();
+                    conn.releaseSavepoint(savepoint);
+                    placed.add(pending);
+                } catch (SQLException e) {
+                    if (OrderRetry.isRetryable(e)) {
+                        throw e;
+                    }
+                    // Only this order is undone - the rest of the batch carries on
+                    conn.rollback(savepoint);
+                    rolledBack.increment();
+                    pending.result.completeExceptionally(e);
+                }
+            }
+
+            long start = System.nanoTime();
+            Metrics.roundTrip();
+            conn.commit();
+            Metrics.time("groupCommit.commit", start);
+            return placed;
+        } catch (SQLException e) {
+            // The IDs the placed orders were given go with the rollback
+            for (int i = 0; i < placed.size(); i++) {
+                OrderIDAllocator.get().abandon();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops taking orders. Orders still queued fail rather than being left waiting
+     */
+    public void shutdown() {
+        running = false;
+        committers.shutdownNow();
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(new SQLException("The group committer has been shut down"));
+        }
+    }
+
+    @Override
+    public String toString() {
+        long n = batches.sum();
+        return String.format("window=%dus maxBatch=%d batches=%d committed=%d rolledBack=%d failedCommits=%d meanBatch=%.1f",
+                TimeUnit.NANOSECONDS.toMicros(windowNanos), maxBatch, n, committed.sum(), rolledBack.sum(),
+                failedCommits.sum(), n == 0 ? 0.0 : (double) batched.sum() / n);
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+
+// A hash map from int to int that stores its keys and values in flat arrays, for the report code that handles
+// a row per product or member of staff. Compared with a HashMap<Integer, Integer> there is no boxing and no
+// entry object per key, so lookups don't allocate.
+// Open addressing with linear probing. Keys can be any int; missing keys return the default given to get.
+class IntIntMap {
+
+    private int[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size = 0;
+    private int mask;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    /**
+     * @param expected Roughly how many keys will be stored, so the map doesn't need to grow
+     */
+    public IntIntMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @param key          The key to look up
+     * @param defaultValue What to return if the key isn't in the map
+     */
+    public int get(int key, int defaultValue) {
+        int slot = find(key);
+        return used[slot] ? values[slot] : defaultValue;
+    }
+
+    public boolean containsKey(int key) {
+        return used[find(key)];
+    }
+
+    public void put(int key, int value) {
+        int slot = find(key);
+        if (!used[slot]) {
+            used[slot] = true;
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /**
+     * Adds to the value stored for a key, treating a missing key as 0
+     *
+     * @return The new value
+     */
+    public int add(int key, int amount) {
+        int slot = find(key);
+        if (!used[slot]) {
+            used[slot] = true;
+            keys[slot] = key;
+            values[slot] = 0;
+            size++;
+        }
+        values[slot] += amount;
+        int result = values[slot];
+        if (size * 2 > keys.length) {
+            grow();
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * @return Every key in the map, in no particular order
+     */
+    public int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    // The slot holding key, or the empty slot where it would go
+    private int find(int key) {
+        int slot = mix(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Spread sequential IDs across the table so they don't all probe into the same run of slots
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(oldKeys.length * 2);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
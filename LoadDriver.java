@@ -0,0 +1,84 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Load driver for the order server - simulates a number of tills each sending the same order over and over,
+// then prints throughput and latency percentiles.
+// Usage: java LoadDriver <host> <port> <tills> <ordersPerTill> [order]
+// e.g.   java LoadDriver localhost 5480 50 200 "InStore|17-Nov-20|1|1:1,2:1"
+class LoadDriver {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("Usage: java LoadDriver <host> <port> <tills> <ordersPerTill> [order]");
+            return;
+        }
+        final String host = args[0];
+        final int port = Integer.parseInt(args[1]);
+        final int tills = Integer.parseInt(args[2]);
+        final int ordersPerTill = Integer.parseInt(args[3]);
+        final String order = "ORDER|" + (args.length > 4 ? args[4] : "InStore|17-Nov-20|1|1:1");
+
+        final long[] latencies = new long[tills * ordersPerTill];
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicReference<String> lastError = new AtomicReference<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(tills);
+        List<Future<?>> running = new ArrayList<Future<?>>();
+
+        for (int t = 0; t < tills; t++) {
+            final int offset = t * ordersPerTill;
+            running.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try (Socket socket = new Socket(host, port);
+                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                        start.await();
+                        for (int i = 0; i < ordersPerTill; i++) {
+                            long sent = System.nanoTime();
+                            out.write(order);
+                            out.newLine();
+                            out.flush();
+                            String reply = in.readLine();
+                            latencies[offset + i] = System.nanoTime() - sent;
+                            if (reply == null || !reply.startsWith("OK")) {
+                                failures.incrementAndGet();
+                                lastError.set(reply);
+                            }
+                        }
+                        out.write("QUIT");
+                        out.newLine();
+                        out.flush();
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        for (Future<?> till : running) {
+            till.get();
+        }
+        double seconds = (System.nanoTime() - began) / 1e9;
+        executor.shutdown();
+
+        Arrays.sort(latencies);
+        int total = latencies.length;
+        System.out.format("%d tills x %d orders = %d orders in %.2fs (%.1f orders/s), %d failed%n", tills,
+                ordersPerTill, total, seconds, total / seconds, failures.get());
+        System.out.format("latency ms: p50 %.2f  p95 %.2f  p99 %.2f  max %.2f%n", percentile(latencies, 0.50),
+                percentile(latencies, 0.95), percentile(latencies, 0.99), latencies[total - 1] / 1e6);
+        if (lastError.get() != null) {
+            System.out.println("last failure: " + lastError.get());
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
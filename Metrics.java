@@ -0,0 +1,335 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+// Latency and throughput numbers for every menu option and database call, so that we can see where the time goes
+// on a till and size the hardware from real figures rather than guesses.
+// Operations are timed into histograms with log-linear buckets (16 per power of two, so any percentile is within
+// about 6% of the true value) held in an AtomicLongArray - recording is a few increments, with no locking and
+// nothing allocated, so it stays on all the time. Counters cover the things that aren't timings, like rollbacks.
+// Everything can be read three ways: option 9 on the menu (and STATS in server mode), the invmgmt:type=Metrics
+// MBean in jconsole or any other JMX client, and a dump to stderr every -Dinvmgmt.metricsDumpSeconds.
+class Metrics {
+
+    // A histogram of non-negative values, usually nanoseconds
+    static final class Histogram {
+        static final int SUB_BUCKET_BITS = 4;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            long seen = max.get();
+            while (value > seen && !max.compareAndSet(seen, value)) {
+                seen = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param percentile From 0 to 100
+         * @return The middle of the bucket that the percentile falls in, or 0 if nothing has been recorded
+         */
+        public long percentile(double percentile) {
+            long[] snapshot = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(middleOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        // Values below SUB_BUCKETS get a bucket each; above that, each power of two is split into SUB_BUCKETS
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long middleOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            long lowest = (1L << exponent) + (bucket % SUB_BUCKETS) * width;
+            return lowest + width / 2;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentHashMap<String, Histogram> distributions = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private static final long started = System.nanoTime();
+
+    // Database round trips made by the current thread, so an order can find out how many it took
+    private static final ThreadLocal<int[]> roundTrips = new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private static ScheduledExecutorService dumper;
+    private static boolean registered = false;
+
+    /**
+     * @param name  The operation, e.g. executeOrder or option4
+     * @param start When it started, from System.nanoTime
+     */
+    public static void time(String name, long start) {
+        timer(name).record(System.nanoTime() - start);
+    }
+
+    public static Histogram timer(String name) {
+        return lookup(timers, name);
+    }
+
+    /**
+     * Records a value that isn't a time, e.g. the number of round trips an order took
+     */
+    public static void record(String name, long value) {
+        lookup(distributions, name).record(value);
+    }
+
+    public static void count(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new LongAdder());
+            counter = counters.get(name);
+        }
+        counter.increment();
+    }
+
+    public static long counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Call once for every statement sent to the database
+     */
+    public static void roundTrip() {
+        roundTrips.get()[0]++;
+    }
+
+    /**
+     * @return How many round trips this thread has made so far - take the difference of two calls
+     */
+    public static int roundTrips() {
+        return roundTrips.get()[0];
+    }
+
+    private static Histogram lookup(ConcurrentHashMap<String, Histogram> histograms, String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers the MBean and starts the periodic dump if -Dinvmgmt.metricsDumpSeconds is set. Safe to call
+     * more than once.
+     */
+    public static synchronized void start() {
+        if (!registered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                        new ObjectName("invmgmt:type=Metrics"));
+            } catch (JMException e) {
+                System.err.println("Could not register the metrics MBean: " + e.getMessage());
+            }
+            registered = true;
+        }
+
+        long seconds = Long.getLong("invmgmt.metricsDumpSeconds", 0);
+        if (seconds > 0 && dumper == null) {
+            dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "metrics-dump");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            dumper.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    PrintWriter err = new PrintWriter(new OutputStreamWriter(System.err));
+                    err.format("-- Metrics at %tT --\n", new Date());
+                    write(err);
+                    err.flush();
+                }
+            }, seconds, seconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Writes every timer, distribution and counter as a table, sorted by name. Times are in milliseconds, and
+     * throughput is per second since the process started.
+     */
+    public static void write(PrintWriter out) {
+        double uptime = Math.max((System.nanoTime() - started) / 1e9, 1e-9);
+        out.format("%-28s %9s %9s %9s %9s %9s %9s %9s\n", "operation (ms)", "count", "per sec", "mean", "p50", "p99",
+                "p99.9", "max");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(timers).entrySet()) {
+            Histogram h = entry.getValue();
+            out.format("%-28s %9d %9.2f %9.3f %9.3f %9.3f %9.3f %9.3f\n", entry.getKey(), h.getCount(),
+                    h.getCount() / uptime, h.getMean() / 1e6, h.percentile(50) / 1e6, h.percentile(99) / 1e6,
+                    h.percentile(99.9) / 1e6, h.getMax() / 1e6);
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(distributions).entrySet()) {
+            Histogram h = entry.getValue();
+            out.format("%-28s %9d %9s %9.2f %9d %9d %9d %9d\n", entry.getKey(), h.getCount(), "", h.getMean(),
+                    h.percentile(50), h.percentile(99), h.percentile(99.9), h.getMax());
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counters).entrySet()) {
+            out.format("%-28s %9d %9.2f\n", entry.getKey(), entry.getValue().sum(), entry.getValue().sum() / uptime);
+        }
+    }
+
+    /**
+     * Option 9 - prints everything recorded since the program started
+     */
+    public static void print() {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out));
+        out.println("");
+        write(out);
+        out.println("");
+        out.flush();
+    }
+
+    // Every metric as a read-only attribute, named like executeOrder.p99Millis or order.rollbacks. The attribute
+    // list is worked out when a client asks for it, so metrics recorded for the first time show up too
+    static class MetricsMBean implements DynamicMBean {
+
+        static final String[] STATISTICS = { "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "p999Millis", "maxMillis" };
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            int dot = attribute.lastIndexOf('.');
+            if (dot > 0) {
+                String name = attribute.substring(0, dot);
+                String statistic = attribute.substring(dot + 1);
+                Histogram timer = timers.get(name);
+                if (timer != null) {
+                    Object value = statistic(timer, statistic, 1e6);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+                Histogram distribution = distributions.get(name);
+                if (distribution != null) {
+                    Object value = statistic(distribution, statistic.replace("Millis", ""), 1);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+            }
+            LongAdder counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        private static Object statistic(Histogram h, String statistic, double scale) {
+            switch (statistic) {
+                case "count": return h.getCount();
+                case "meanMillis": case "mean": return h.getMean() / scale;
+                case "p50Millis": case "p50": return h.percentile(50) / scale;
+                case "p90Millis": case "p90": return h.percentile(90) / scale;
+                case "p99Millis": case "p99": return h.percentile(99) / scale;
+                case "p999Millis": case "p999": return h.percentile(99.9) / scale;
+                case "maxMillis": case "max": return h.getMax() / scale;
+                default: return null;
+            }
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, as the interface expects
+                }
+            }
+            return list;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : new TreeSet<String>(timers.keySet())) {
+                for (String statistic : STATISTICS) {
+                    attributes.add(new MBeanAttributeInfo(name + "." + statistic,
+                            statistic.equals("count") ? "java.lang.Long" : "java.lang.Double", name + " " + statistic,
+                            true, false, false));
+                }
+            }
+            for (String name : new TreeSet<String>(distributions.keySet())) {
+                for (String statistic : STATISTICS) {
+                    String plain = statistic.replace("Millis", "");
+                    attributes.add(new MBeanAttributeInfo(name + "." + plain,
+                            plain.equals("count") ? "java.lang.Long" : "java.lang.Double", name + " " + plain,
+                            true, false, false));
+                }
+            }
+            for (String name : new TreeSet<String>(counters.keySet())) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Inventory management latency and throughput",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.sql.*;
+
+// Keeps the year partitions of orders and order_products in shape - run once in a while, e.g. every new year:
+// adds the partitions for the coming years, then moves every year before the cutoff whose orders have all been
+// completed into the archive tables with archiveOrdersBefore. The tills only ever write to the current year's
+// partition, so the archived years no longer slow down writes or vacuum, and the reports still read them.
+// It also folds the table_versions rows of connections that have closed into one (see compactTableVersions).
+class OrderArchive {
+
+    // How many years ahead to keep partitions ready for
+    static final int YEARS_AHEAD = 2;
+
+    /**
+     * @param conn       An open database connection
+     * @param cutoffYear Years before this one are archived
+     * @return The number of orders archived
+     */
+    public static long run(Connection conn, int cutoffYear) throws SQLException {
+        int thisYear = java.time.LocalDate.now().getYear();
+        CallableStatement create = conn.prepareCall("call createOrderYear(?)");
+        for (int year = thisYear; year <= thisYear + YEARS_AHEAD; year++) {
+            create.setInt(1, year);
+            create.execute();
+        }
+        create.close();
+
+        long total = 0;
+        PreparedStatement pst = conn.prepareStatement("SELECT archivedYear, archivedOrders FROM archiveOrdersBefore(?)");
+        pst.setInt(1, cutoffYear);
+        ResultSet rs = pst.executeQuery();
+        while (rs.next()) {
+            System.out.println("Archived " + rs.getLong(2) + " orders from " + rs.getInt(1));
+            total += rs.getLong(2);
+        }
+        rs.close();
+
+        // Years that couldn't be archived yet come back as notices
+        for (SQLWarning warning = pst.getWarnings(); warning != null; warning = warning.getNextWarning()) {
+            System.out.println(warning.getMessage());
+        }
+        pst.close();
+
+        CallableStatement compact = conn.prepareCall("call compactTableVersions()");
+        compact.execute();
+        compact.close();
+        return total;
+    }
+}
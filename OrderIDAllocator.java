@@ -0,0 +1,99 @@
+import java.sql.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Hands out order IDs in-process from blocks reserved from OrderIDSequence (hi-lo style), so an order knows its
+// ID before it is sent and a whole order - or many - can be composed without a sequence round trip each.
+// A block is one query, SELECT nextval(...) FROM generate_series(1, blockSize), on whichever connection needs
+// the next ID. The IDs in a block aren't always contiguous when several processes reserve at once, but they are
+// always unique, and each is only handed out once.
+// Like nextval, this leaves gaps: IDs given to orders that were then rejected, and whatever is left of the
+// block when the process exits. Both are counted (see toString) so the gaps can be accounted for.
+// The block size is -Dinvmgmt.orderIdBlockSize (default 50); 0 leaves every ID to the database as before.
+class OrderIDAllocator {
+
+    static final String RESERVE = "SELECT nextval('OrderIDSequence')::INTEGER FROM generate_series(1, ?)";
+
+    private static final OrderIDAllocator shared = new OrderIDAllocator(Integer.getInteger("invmgmt.orderIdBlockSize", 50));
+
+    private final int blockSize;
+    private int[] block = new int[0];
+    private int next = 0;
+
+    private final LongAdder blocks = new LongAdder();
+    private final LongAdder reserved = new LongAdder();
+    private final LongAdder handedOut = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    /**
+     * @param blockSize How many IDs to reserve at a time - 0 or less to not allocate IDs at all
+     */
+    public OrderIDAllocator(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return The allocator placeOrder uses
+     */
+    public static OrderIDAllocator get() {
+        return shared;
+    }
+
+    public boolean isEnabled() {
+        return blockSize > 0;
+    }
+
+    /**
+     * @param conn Used to reserve a new block if this one has run out
+     * @return An order ID no one else has been given, or null if the allocator is switched off
+     */
+    public synchronized Integer next(Connection conn) throws SQLException {
+        if (!isEnabled()) {
+            return null;
+        }
+        if (next == block.length) {
+            reserve(conn);
+        }
+        handedOut.increment();
+        return block[next++];
+    }
+
+    /**
+     * Records that an ID was handed out but the order using it was never placed, leaving a gap
+     */
+    public void abandon() {
+        abandoned.increment();
+    }
+
+    private void reserve(Connection conn) throws SQLException {
+        int[] ids = new int[blockSize];
+        int count = 0;
+        PreparedStatement pst = StatementCache.of(conn).prepare(RESERVE);
+        pst.setInt(1, blockSize);
+        Metrics.roundTrip();
+        ResultSet rs = pst.executeQuery();
+        while (rs.next() && count < ids.length) {
+            ids[count++] = rs.getInt(1);
+        }
+        rs.close();
+        if (count == 0) {
+            throw new SQLException("OrderIDSequence returned no IDs");
+        }
+        block = count == ids.length ? ids : java.util.Arrays.copyOf(ids, count);
+        next = 0;
+        blocks.increment();
+        reserved.add(count);
+    }
+
+    /**
+     * @return IDs reserved but not handed out yet - lost if the process exits now
+     */
+    public synchronized int getRemaining() {
+        return block.length - next;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("blockSize=%d blocks=%d reserved=%d handedOut=%d abandoned=%d remaining=%d", blockSize,
+                blocks.sum(), reserved.sum(), handedOut.sum(), abandoned.sum(), getRemaining());
+    }
+}
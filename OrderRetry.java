@@ -0,0 +1,107 @@
+import java.sql.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Turns contention between tills into a little extra latency rather than a lost sale.
+// An order that loses a race with another one - a deadlock (40P01), or a serialization failure (40001) under
+// REPEATABLE READ or SERIALIZABLE - did nothing wrong, so it is rolled back and run again after a short random
+// backoff that doubles each time, up to -Dinvmgmt.orderRetries times (default 5) starting from
+// -Dinvmgmt.orderRetryBackoffMs (default 5). Retries, and orders that ran out of them, are counted in Metrics.
+// The order connections run at -Dinvmgmt.orderIsolation: read_committed (the default), repeatable_read or
+// serializable.
+class OrderRetry {
+
+    static final String SERIALIZATION_FAILURE = "40001";
+    static final String DEADLOCK_DETECTED = "40P01";
+
+    static final int MAX_RETRIES = Integer.getInteger("invmgmt.orderRetries", 5);
+    static final long BACKOFF_MS = Long.getLong("invmgmt.orderRetryBackoffMs", 5);
+
+    // One go at an order, run again from the start if it loses a race
+    interface Attempt<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * @param e An exception from the order path
+     * @return True if running the order again could succeed
+     */
+    public static boolean isRetryable(SQLException e) {
+        return SERIALIZATION_FAILURE.equals(e.getSQLState()) || DEADLOCK_DETECTED.equals(e.getSQLState());
+    }
+
+    /**
+     * Runs an attempt, retrying it if it fails with a deadlock or serialization failure.
+     *
+     * @param conn    The connection the attempt uses - rolled back before each retry unless it is in autocommit mode
+     * @param attempt The order, which must be safe to run again after a rollback
+     * @return Whatever the successful attempt returned
+     * @throws SQLException The last failure, if it wasn't retryable or the retries ran out
+     */
+    public static <T> T run(Connection conn, Attempt<T> attempt) throws SQLException {
+        for (int retry = 0; ; retry++) {
+            try {
+                return attempt.run();
+            } catch (SQLException e) {
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+                if (retry >= MAX_RETRIES) {
+                    Metrics.count("order.retriesExhausted");
+                    throw e;
+                }
+                Metrics.count("order.retries");
+                if (!conn.getAutoCommit()) {
+                    Metrics.roundTrip();
+                    conn.rollback();
+                }
+                backoff(retry);
+            }
+        }
+    }
+
+    /**
+     * Sleeps for a random time between half and all of the backoff for this retry, so that two orders that
+     * collided don't collide again.
+     *
+     * @param retry How many retries there have been before this one
+     */
+    public static void backoff(int retry) throws SQLException {
+        long limit = BACKOFF_MS << Math.min(retry, 10);
+        if (limit <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(limit / 2, limit + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to retry the order");
+        }
+    }
+
+    /**
+     * @return The isolation level from -Dinvmgmt.orderIsolation, as a Connection.TRANSACTION_ constant
+     */
+    public static int isolationLevel() {
+        String level = System.getProperty("invmgmt.orderIsolation", "read_committed").trim().toLowerCase().replace(' ', '_');
+        switch (level) {
+            case "serializable":
+                return Connection.TRANSACTION_SERIALIZABLE;
+            case "repeatable_read":
+                return Connection.TRANSACTION_REPEATABLE_READ;
+            case "read_committed":
+                return Connection.TRANSACTION_READ_COMMITTED;
+            default:
+                throw new IllegalArgumentException("Unknown isolation level " + level
+                        + " - expected read_committed, repeatable_read or serializable");
+        }
+    }
+
+    /**
+     * Sets a connection that orders are placed on to the configured isolation level.
+     *
+     * @param conn A new connection
+     */
+    public static void configure(Connection conn) throws SQLException {
+        conn.setTransactionIsolation(isolationLevel());
+    }
+}
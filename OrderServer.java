@@ -0,0 +1,282 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.concurrent.*;
+
+// Server mode - lets many tills place orders through one process instead of running one menu per till.
+// Each till opens a socket and sends one command per line, getting one reply line back:
+//   ORDER|<order fields, see Order.parse>  ->  OK <orderID> <productID>:<stock>,...   or   ERR <reason>
+//   STATS                                  ->  OK <connection pool, stock ledger, group commit and order latency metrics>
+//   PING                                   ->  PONG
+//   QUIT                                   ->  closes the session
+// Every session runs on its own (virtual where available) thread, and borrows a connection from a shared
+// ConnectionPool only for as long as it takes to place each order.
+// With -Dinvmgmt.stockLedger=true, orders are first reserved against an in-process StockLedger so that
+// sold-out products are rejected without queueing on their inventory row.
+// With -Dinvmgmt.groupCommit=true, orders are placed by a GroupCommitter, many to a transaction, instead of each
+// session committing its own.
+class OrderServer {
+
+    public static final int DEFAULT_PORT = 5480;
+
+    private final ServerSocket serverSocket;
+    private final ConnectionPool pool;
+    private final ExecutorService sessions;
+    private final StockLedger ledger;
+    private final GroupCommitter committer;
+
+    /**
+     * @param port   The port tills connect to
+     * @param pool   Where sessions borrow their connections from
+     * @param ledger Reserves stock before orders reach the database, or null to go straight to the database
+     */
+    public OrderServer(int port, ConnectionPool pool, StockLedger ledger) throws IOException {
+        this(port, pool, ledger, null);
+    }
+
+    /**
+     * @param port      The port tills connect to
+     * @param pool      Where sessions borrow their connections from
+     * @param ledger    Reserves stock before orders reach the database, or null to go straight to the database
+     * @param committer Places orders in shared transactions, or null for each session to commit its own
+     */
+    public OrderServer(int port, ConnectionPool pool, StockLedger ledger, GroupCommitter committer) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.pool = pool;
+        this.ledger = ledger;
+        this.committer = committer;
+        this.sessions = newSessionExecutor();
+    }
+
+    /**
+     * Starts a server on the given port with a pool configured from system properties, and serves until the JVM exits
+     *
+     * @param port The port tills connect to
+     */
+    public static void run(int port) throws IOException {
+        ConnectionPool pool = ConnectionPool.fromProperties();
+        StockLedger ledger = null;
+        if (Boolean.getBoolean("invmgmt.stockLedger")) {
+            ledger = new StockLedger();
+            ledger.scheduleReconcile(pool, Long.getLong("invmgmt.stockLedgerReconcileMs", 5000));
+        }
+        OrderServer server = new OrderServer(port, pool, ledger, GroupCommitter.fromProperties(pool));
+        System.out.println("Order server listening on port " + server.getPort() + " with up to " + pool.getMaxSize()
+                + " database connections");
+        CollectionPurge.scheduleFromProperties();
+        Catalog.start();
+        Metrics.start();
+        CollectionExpiry.start();
+        server.serve();
+    }
+
+    // Virtual threads need Java 21 - on older JVMs fall back to one platform thread per session
+    static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Accept tills until the server socket is closed
+    public void serve() {
+        try {
+            while (!serverSocket.isClosed()) {
+                final Socket socket = serverSocket.accept();
+                sessions.submit(new Runnable() {
+                    public void run() {
+                        handleSession(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                e.printStackTrace();
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * @return The port the server is listening on - the one it was given, unless that was 0
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        sessions.shutdown();
+        if (committer != null) {
+            committer.shutdown();
+        }
+        pool.close();
+    }
+
+    private void handleSession(Socket socket) {
+        try (Socket s = socket;
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.equalsIgnoreCase("QUIT")) {
+                    break;
+                }
+                long start = System.nanoTime();
+                String reply;
+                try {
+                    reply = handleCommand(line);
+                } catch (RuntimeException e) {
+                    // A bug in handling one command mustn't cost the till its session
+                    System.err.println("Order server failed on \"" + line + "\"");
+                    e.printStackTrace();
+                    reply = "ERR " + (e.getMessage() == null ? e.toString() : firstLine(e.getMessage()));
+                }
+                out.write(reply);
+                if (line.regionMatches(true, 0, "ORDER|", 0, 6)) {
+                    Metrics.time("server.order", start);
+                }
+                out.newLine();
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The till went away - nothing to clean up beyond the socket
+        }
+    }
+
+    /**
+     * @param line One command from a till
+     * @return The single line reply to send back
+     */
+    String handleCommand(String line) {
+        if (line.equalsIgnoreCase("PING")) {
+            return "PONG";
+        }
+        if (line.equalsIgnoreCase("STATS")) {
+            return "OK pool: " + pool + (ledger == null ? "" : "; ledger: " + ledger)
+                    + (Catalog.get() == null ? "" : "; catalog: " + Catalog.get())
+                    + (OrderIDAllocator.get().isEnabled() ? "; order IDs: " + OrderIDAllocator.get() : "")
+                    + (committer == null ? "" : "; group commit: " + committer)
+                    + String.format("; orders: %d, p99 %.3fms", Metrics.timer("server.order").getCount(),
+                            Metrics.timer("server.order").percentile(99) / 1e6);
+        }
+        if (!line.regionMatches(true, 0, "ORDER|", 0, 6)) {
+            return "ERR Unknown command - expected ORDER, STATS, PING or QUIT";
+        }
+
+        Order order;
+        try {
+            order = Order.parse(line.substring(6));
+        } catch (IllegalArgumentException e) {
+            return "ERR " + e.getMessage();
+        }
+
+        // Orders that are bound to fail don't need a connection
+        String problem = Catalog.checkOrder(order.productIDsArray, order.quantitiesArray, order.staffID);
+        if (problem != null) {
+            return "ERR " + problem;
+        }
+
+        if (committer != null) {
+            return placeGrouped(order);
+        }
+
+        Connection conn = null;
+        try {
+            conn = pool.acquire();
+            if (ledger == null) {
+                return formatReply(place(conn, order));
+            }
+            return placeReserved(conn, order);
+        } catch (SQLException e) {
+            return "ERR " + firstLine(e.getMessage());
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    // Reserve the stock in the ledger first, and only go to the database if there looks to be enough
+    private String placeReserved(Connection conn, Order order) throws SQLException {
+        if (!ledger.reserve(conn, order.productIDsArray, order.quantitiesArray)) {
+            return "ERR Insufficient stock to execute order";
+        }
+        try {
+            PlacedOrder placed = place(conn, order);
+            ledger.confirm(order.productIDsArray, order.quantitiesArray);
+            return formatReply(placed);
+        } catch (SQLException e) {
+            ledger.cancel(order.productIDsArray, order.quantitiesArray, Assignment.isInsufficientStock(e));
+            throw e;
+        }
+    }
+
+    // placeOrder, run again if it deadlocks or hits a serialization failure - see OrderRetry
+    private static PlacedOrder place(final Connection conn, final Order order) throws SQLException {
+        return OrderRetry.run(conn, new OrderRetry.Attempt<PlacedOrder>() {
+            public PlacedOrder run() throws SQLException {
+                return Assignment.placeOrder(conn, order);
+            }
+        });
+    }
+
+    // As placeReserved, but the order is placed by the group committer. The session only needs a connection of
+    // its own if the ledger has to load a product
+    private String placeGrouped(Order order) {
+        try {
+            if (ledger == null) {
+                return formatReply(committer.place(order));
+            }
+            Connection conn = pool.acquire();
+            boolean reserved;
+            try {
+                reserved = ledger.reserve(conn, order.productIDsArray, order.quantitiesArray);
+            } finally {
+                pool.release(conn);
+            }
+            if (!reserved) {
+                return "ERR Insufficient stock to execute order";
+            }
+            try {
+                PlacedOrder placed = committer.place(order);
+                ledger.confirm(order.productIDsArray, order.quantitiesArray);
+                return formatReply(placed);
+            } catch (SQLException e) {
+                ledger.cancel(order.productIDsArray, order.quantitiesArray, Assignment.isInsufficientStock(e));
+                throw e;
+            }
+        } catch (SQLException e) {
+            return "ERR " + firstLine(e.getMessage());
+        }
+    }
+
+    private static String formatReply(PlacedOrder placed) {
+        StringBuilder reply = new StringBuilder("OK ").append(placed.orderID).append(' ');
+        for (int i = 0; i < placed.productIDs.length; i++) {
+            if (i > 0) {
+                reply.append(',');
+            }
+            reply.append(placed.productIDs[i]).append(':').append(placed.stockLevels[i]);
+        }
+        return reply.toString();
+    }
+
+    // Postgres puts the context of an exception on the lines after the message, which the till doesn't need
+    private static String firstLine(String message) {
+        if (message == null) {
+            return "Database error";
+        }
+        int newline = message.indexOf('\n');
+        return newline < 0 ? message : message.substring(0, newline);
+    }
+}
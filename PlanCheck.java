@@ -0,0 +1,296 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.*;
+
+// Plan regression check - a guardrail for the indexes and views in schema.sql as the schema changes.
+// Fills a scratch database with a generated dataset, runs EXPLAIN (ANALYZE, BUFFERS) on every view and option
+// query, and fails if a plan scans a table sequentially that its budget doesn't allow, or costs more than its
+// budget. The budgets live in plan-budgets.properties; --record rewrites them from the plans it sees.
+// Afterwards it deletes some orders and fails if the rollups no longer agree with the order history.
+// Usage: java PlanCheck [database] [--record]
+// The database (default deptstore_plancheck) must already have schema.sql loaded. It is emptied first, so it
+// refuses to run against deptstore.
+class PlanCheck {
+
+    static final String BUDGETS = "plan-budgets.properties";
+
+    // Large enough that the planner prefers an index for a lookup over scanning the table
+    static final int STAFF = 500;
+    static final int PRODUCTS = 2000;
+    static final int ORDERS = 60000;
+    static final int LINES_PER_ORDER = 3;
+
+    static final Pattern TOTAL_COST = Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+    // With its estimated cost, so that scans of empty partitions - free whatever the plan - can be ignored
+    static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+).*?cost=[0-9.]+\\.\\.([0-9.]+)");
+    // Scans of a year's partition (orders_y2016) are budgeted under the table they belong to
+    static final Pattern PARTITION = Pattern.compile("_(y[0-9]{4}|default)$");
+    static final Pattern BUFFERS = Pattern.compile("Buffers: shared(?: hit=(\\d+))?(?: read=(\\d+))?");
+    static final Pattern EXECUTION_TIME = Pattern.compile("Execution Time: ([0-9.]+) ms");
+
+    // A query to explain, and the values for its parameters
+    static class Check {
+        final String name;
+        final String sql;
+        final Object[] params;
+
+        Check(String name, String sql, Object... params) {
+            this.name = name;
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+
+    // The lookups the order options and ON DELETE CASCADE depend on, then the queries behind each report
+    static final Check[] CHECKS = {
+        new Check("stockLookup", "SELECT ProductStockAmount FROM inventory WHERE ProductID = ?", PRODUCTS / 2),
+        new Check("orderLines", "SELECT ProductID, ProductQuantity FROM order_products WHERE OrderID = ?", ORDERS / 2),
+        new Check("productLines", "SELECT OrderID, ProductQuantity FROM order_products WHERE ProductID = ?", PRODUCTS / 2),
+        new Check("orderStaff", "SELECT StaffID FROM staff_orders WHERE OrderID = ?", ORDERS / 2),
+        new Check("staffOrders", "SELECT OrderID FROM staff_orders WHERE StaffID = ?", STAFF / 2),
+        new Check("orderCollection", "SELECT * FROM collections WHERE OrderID = ?", ORDERS / 2 + 1),
+        new Check("orderDelivery", "SELECT * FROM deliveries WHERE OrderID = ?", ORDERS / 2 + 2),
+        new Check("option4", "SELECT * FROM profitableProductsView"),
+        new Check("option5", "SELECT o.OrderID FROM orders o INNER JOIN collections c ON c.OrderID = o.OrderID "
+                + "WHERE ?::DATE - INTERVAL '8 days' >= c.CollectionDate AND o.OrderCompleted = 0 "
+                + "ORDER BY c.CollectionDate, o.OrderID LIMIT ?", java.sql.Date.valueOf("2013-01-01"), 500),
+        new Check("uncollectedCollectionsView", "SELECT * FROM uncollectedCollectionsView WHERE ? >= collectionDate + INTERVAL '8 Days'",
+                java.sql.Date.valueOf("2013-01-01")),
+        new Check("option6", "SELECT fullName, lifetimeSales FROM lifetimeSalesView"),
+        new Check("option7", StaffPivot.QUERY),
+        new Check("option8", EmployeeOfTheYear.QUERY, java.sql.Date.valueOf("2016-01-01"), java.sql.Date.valueOf("2017-01-01")),
+        new Check("year20kItems", "SELECT * FROM year20kItems"),
+        new Check("year20kItemsIn", "SELECT * FROM year20kItemsIn(?)", 2016),
+        new Check("yearlySales30k", "SELECT * FROM yearlySales30k"),
+    };
+
+    public static void main(String[] args) throws Exception {
+        String database = "deptstore_plancheck";
+        boolean record = false;
+        for (String arg : args) {
+            if (arg.equals("--record")) {
+                record = true;
+            } else {
+                database = arg;
+            }
+        }
+        if (database.equals("deptstore")) {
+            System.out.println("PlanCheck empties the database it runs against - give it a scratch database, not deptstore");
+            System.exit(2);
+        }
+
+        Connection conn = Assignment.getConnection(database);
+        if (conn == null) {
+            System.exit(2);
+        }
+        generate(conn);
+
+        Properties budgets = new Properties();
+        File budgetFile = new File(BUDGETS);
+        if (budgetFile.exists()) {
+            try (Reader in = new InputStreamReader(new FileInputStream(budgetFile), StandardCharsets.UTF_8)) {
+                budgets.load(in);
+            }
+        }
+
+        int failures = 0;
+        Map<String, String> recorded = new LinkedHashMap<String, String>();
+        for (Check check : CHECKS) {
+            List<String> plan = explain(conn, check);
+            String top = plan.get(0);
+            Matcher cost = TOTAL_COST.matcher(top);
+            double totalCost = cost.find() ? Double.parseDouble(cost.group(1)) : 0;
+
+            Set<String> seqScans = new TreeSet<String>();
+            String buffers = "";
+            String time = "";
+            for (String line : plan) {
+                Matcher m = SEQ_SCAN.matcher(line);
+                if (m.find() && Double.parseDouble(m.group(2)) > 0) {
+                    seqScans.add(PARTITION.matcher(m.group(1).toLowerCase()).replaceFirst(""));
+                }
+                m = BUFFERS.matcher(line);
+                if (buffers.isEmpty() && m.find()) {
+                    buffers = " hit=" + (m.group(1) == null ? "0" : m.group(1)) + " read=" + (m.group(2) == null ? "0" : m.group(2));
+                }
+                m = EXECUTION_TIME.matcher(line);
+                if (m.find()) {
+                    time = m.group(1) + "ms";
+                }
+            }
+
+            if (record) {
+                recorded.put(check.name + ".seqScans", String.join(",", seqScans));
+                recorded.put(check.name + ".maxCost", Long.toString((long) Math.ceil(totalCost * 1.5)));
+                System.out.format("RECORDED %-28s cost=%.2f %s%s\n", check.name, totalCost, time, buffers);
+                continue;
+            }
+
+            List<String> problems = new ArrayList<String>();
+            String allowed = budgets.getProperty(check.name + ".seqScans");
+            if (allowed == null) {
+                problems.add("no budget in " + BUDGETS);
+            } else {
+                Set<String> unexpected = new TreeSet<String>(seqScans);
+                unexpected.removeAll(Arrays.asList(allowed.toLowerCase().split("\\s*,\\s*")));
+                if (!unexpected.isEmpty()) {
+                    problems.add("sequential scan of " + String.join(", ", unexpected));
+                }
+            }
+            String maxCost = budgets.getProperty(check.name + ".maxCost");
+            if (maxCost != null && totalCost > Double.parseDouble(maxCost)) {
+                problems.add("cost " + totalCost + " is over the budget of " + maxCost);
+            }
+
+            if (problems.isEmpty()) {
+                System.out.format("PASS %-28s cost=%.2f %s%s\n", check.name, totalCost, time, buffers);
+            } else {
+                failures++;
+                System.out.format("FAIL %-28s %s\n", check.name, String.join("; ", problems));
+                for (String line : plan) {
+                    System.out.println("    " + line);
+                }
+            }
+        }
+        int drift = record ? 0 : checkDeletes(conn);
+        conn.close();
+
+        if (record) {
+            writeBudgets(budgetFile, recorded);
+            System.out.println("Wrote " + BUDGETS);
+            return;
+        }
+        if (failures > 0) {
+            System.out.println(failures + " of " + CHECKS.length + " plans have regressed");
+        } else {
+            System.out.println("All " + CHECKS.length + " plans are within budget");
+        }
+        if (failures > 0 || drift > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Deletes the uncollected collections of 2012 with removeOldOrders and checks the rollups still agree with
+     * the orders. Each order has to come off them exactly once, although its lines and staff links are removed by
+     * cascades that fire their own triggers. Run after the plans, as it changes the dataset.
+     *
+     * @return The number of rollup rows that disagree
+     */
+    static int checkDeletes(Connection conn) throws SQLException {
+        Statement st = conn.createStatement();
+        st.execute("CALL removeOldOrders(DATE '2013-01-01')");
+        st.close();
+        return Rollups.check(conn);
+    }
+
+    /**
+     * Rewrites the budgets file with the recorded values. Budgets already in the file are changed where they are,
+     * keeping its comments and layout, and new ones go after the check's other budget, or at the end.
+     */
+    static void writeBudgets(File budgetFile, Map<String, String> recorded) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        if (budgetFile.exists()) {
+            lines.addAll(java.nio.file.Files.readAllLines(budgetFile.toPath(), StandardCharsets.UTF_8));
+        } else {
+            lines.add("# Plan budgets for PlanCheck, recorded against its generated dataset.");
+            lines.add("# <check>.seqScans - the tables the plan may scan sequentially");
+            lines.add("# <check>.maxCost  - the highest total planner cost allowed, 1.5x the recorded cost");
+        }
+        Map<String, String> remaining = new LinkedHashMap<String, String>(recorded);
+        for (int i = 0; i < lines.size(); i++) {
+            int equals = lines.get(i).indexOf('=');
+            if (lines.get(i).startsWith("#") || equals < 0) {
+                continue;
+            }
+            String key = lines.get(i).substring(0, equals).trim();
+            if (remaining.containsKey(key)) {
+                lines.set(i, key + "=" + remaining.remove(key));
+                // The check's other budget, if it's new, goes straight after this one
+                String check = key.substring(0, key.lastIndexOf('.') + 1);
+                for (String other : new ArrayList<String>(remaining.keySet())) {
+                    if (other.startsWith(check) && !containsKey(lines, other)) {
+                        lines.add(++i, other + "=" + remaining.remove(other));
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, String> budget : remaining.entrySet()) {
+            lines.add(budget.getKey() + "=" + budget.getValue());
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(budgetFile), StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+    }
+
+    private static boolean containsKey(List<String> lines, String key) {
+        for (String line : lines) {
+            if (line.startsWith(key + "=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Empties the database and fills it with staff, products and orders spread over ten years.
+     * The order lines go in before the staff links so that the triggers total each order's value once.
+     *
+     * @param conn An open connection to the scratch database
+     */
+    static void generate(Connection conn) throws SQLException {
+        long start = System.nanoTime();
+        String[] statements = {
+            "TRUNCATE inventory, orders, orders_archive, staff, product_sales, staff_yearly_sales CASCADE",
+            "INSERT INTO staff (StaffID, FName, LName) SELECT g, 'Staff', 'Member ' || g FROM generate_series(1, " + STAFF + ") g",
+            "INSERT INTO inventory (ProductID, ProductDesc, ProductPrice, ProductStockAmount) "
+                    + "SELECT g, 'Product ' || g, 1 + (g % 250), 1000000000 FROM generate_series(1, " + PRODUCTS + ") g",
+            "INSERT INTO orders (OrderID, OrderType, OrderCompleted, OrderPlaced) "
+                    + "SELECT g, CASE g % 3 WHEN 0 THEN 'InStore' WHEN 1 THEN 'Collection' ELSE 'Delivery' END, "
+                    + "CASE WHEN g % 3 = 0 OR g % 7 = 0 THEN 1 ELSE 0 END, DATE '2012-01-01' + (g % 3650) "
+                    + "FROM generate_series(1, " + ORDERS + ") g",
+            "INSERT INTO order_products (OrderID, ProductID, ProductQuantity, OrderPlaced) "
+                    + "SELECT o, 1 + ((o * 7919 + l * 104729) % " + PRODUCTS + "), 1 + ((o + l) % 5), DATE '2012-01-01' + (o % 3650) "
+                    + "FROM generate_series(1, " + ORDERS + ") o, generate_series(1, " + LINES_PER_ORDER + ") l",
+            "INSERT INTO staff_orders (StaffID, OrderID, OrderPlaced) "
+                    + "SELECT 1 + (g % " + STAFF + "), g, DATE '2012-01-01' + (g % 3650) FROM generate_series(1, " + ORDERS + ") g",
+            "INSERT INTO collections (OrderID, FName, LName, CollectionDate, OrderPlaced) "
+                    + "SELECT g, 'Customer', 'Number ' || g, DATE '2012-01-04' + (g % 3650), DATE '2012-01-01' + (g % 3650) "
+                    + "FROM generate_series(1, " + ORDERS + ") g WHERE g % 3 = 1",
+            "INSERT INTO deliveries (OrderID, FName, LName, House, Street, City, DeliveryDate, OrderPlaced) "
+                    + "SELECT g, 'Customer', 'Number ' || g, g::TEXT, 'High Street', 'Leeds', DATE '2012-01-04' + (g % 3650), "
+                    + "DATE '2012-01-01' + (g % 3650) FROM generate_series(1, " + ORDERS + ") g WHERE g % 3 = 2",
+            "SELECT setval('OrderIDSequence', " + (ORDERS + PRODUCTS) + ")",
+            "ANALYZE",
+        };
+        Statement st = conn.createStatement();
+        for (String sql : statements) {
+            st.execute(sql);
+        }
+        st.close();
+        System.out.format("Generated %d orders in %.1fs\n", ORDERS, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * @return The text plan for the check, one line per element
+     */
+    static List<String> explain(Connection conn, Check check) throws SQLException {
+        PreparedStatement pst = conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + check.sql);
+        for (int i = 0; i < check.params.length; i++) {
+            pst.setObject(i + 1, check.params[i]);
+        }
+        List<String> plan = new ArrayList<String>();
+        ResultSet rs = pst.executeQuery();
+        while (rs.next()) {
+            plan.add(rs.getString(1));
+        }
+        rs.close();
+        pst.close();
+        return plan;
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+// Keeps the output of the last few reports (options 4, 6, 7 and 8), so that looking at a report again before
+// anything has been sold costs one small query instead of the whole aggregate.
+// Every transaction that writes to order_products, staff_orders, inventory or staff bumps that table's version in
+// table_versions as it commits (see tableVersionChanged in schema.sql). Each cached report remembers the versions of the
+// tables it reads at the time it was run, and is only used again while they are unchanged. The versions are read
+// in the same snapshot as the report itself on the ReportConnection, so a cached report is never older than the
+// versions it is filed under.
+// Reports are kept in a LinkedHashMap in access order and the least recently used one is dropped when there are
+// more than -Dinvmgmt.reportCacheSize (default 32; 0 turns the cache off). Hits, misses and evictions are counted
+// in Metrics.
+class ReportCache {
+
+    static final String VERSIONS = "SELECT TableName, SUM(Version)::BIGINT FROM table_versions GROUP BY TableName";
+
+    // What each report reads - the rollups are only ever changed along with one of these
+    static final String[] PRODUCT_TABLES = {"order_products", "inventory"};
+    static final String[] STAFF_TABLES = {"order_products", "staff_orders", "inventory", "staff"};
+
+    // Reports bigger than this are run every time rather than held in memory
+    static final int MAX_CHARS = Integer.getInteger("invmgmt.reportCacheMaxChars", 1 << 20);
+
+    // Writes one report to out
+    interface Report {
+        void write(Connection conn, Writer out) throws SQLException, IOException;
+    }
+
+    static final class Entry {
+        final long version;
+        final String output;
+
+        Entry(long version, String output) {
+            this.version = version;
+            this.output = output;
+        }
+    }
+
+    private static final ReportCache shared = new ReportCache(Integer.getInteger("invmgmt.reportCacheSize", 32));
+
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * @param capacity How many reports to keep - 0 or less to always run them
+     */
+    public ReportCache(final int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, ReportCache.Entry> eldest) {
+                if (size() > capacity) {
+                    Metrics.count("reportCache.evictions");
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return The cache the menu options use
+     */
+    public static ReportCache get() {
+        return shared;
+    }
+
+    /**
+     * Writes a report, from the cache if none of the tables it reads have changed since it was last run.
+     *
+     * @param conn   The report connection, see ReportConnection
+     * @param key    The report and its parameters, e.g. option8:2016
+     * @param tables The tables the report reads
+     * @param report Runs the report if it has to be run
+     * @param out    Where to write it - flushed but not closed
+     */
+    public void write(Connection conn, String key, String[] tables, Report report, Writer out)
+            throws SQLException, IOException {
+        if (capacity <= 0) {
+            report.write(conn, out);
+            return;
+        }
+
+        long version = version(conn, tables);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.version == version) {
+            Metrics.count("reportCache.hits");
+            out.write(entry.output);
+            out.flush();
+            return;
+        }
+
+        Metrics.count("reportCache.misses");
+        StringWriter buffer = new StringWriter();
+        report.write(conn, buffer);
+        String output = buffer.toString();
+        if (output.length() <= MAX_CHARS) {
+            synchronized (this) {
+                entries.put(key, new Entry(version, output));
+            }
+        }
+        out.write(output);
+        out.flush();
+    }
+
+    // The versions only ever go up, so their sum changes whenever any one of them does
+    private long version(Connection conn, String[] tables) throws SQLException {
+        Metrics.roundTrip();
+        PreparedStatement pst = StatementCache.of(conn).prepare(VERSIONS);
+        ResultSet rs = pst.executeQuery();
+        long version = 0;
+        while (rs.next()) {
+            if (Arrays.asList(tables).contains(rs.getString(1))) {
+                version += rs.getLong(2);
+            }
+        }
+        rs.close();
+        return version;
+    }
+
+    /**
+     * Forgets every report, e.g. after changing the tables with the triggers switched off
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long hits = Metrics.counter("reportCache.hits");
+        long lookups = hits + Metrics.counter("reportCache.misses");
+        return String.format("reports=%d/%d hits=%d misses=%d hitRate=%.1f%%", entries.size(), capacity, hits,
+                lookups - hits, lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+    }
+}
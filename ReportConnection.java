@@ -0,0 +1,57 @@
+import java.sql.*;
+import java.util.Properties;
+
+// The connection the reports (options 4, 6, 7 and 8, and the exports) run on, kept apart from the one orders
+// are placed on so that a long report never queues behind, or holds up, a till.
+// It is read-only and REPEATABLE READ, with autocommit off, so every query in a report reads from the same
+// snapshot - a report can never see half of an order, or totals from one moment and details from the next.
+// Call endSnapshot when each report is done so that the next one sees fresh data and the old snapshot doesn't
+// hold back vacuum.
+// By default this is a second connection to deptstore. Set -Dinvmgmt.replicaUrl to read from a replica
+// instead - either a full JDBC URL (credentials in the URL) or just a database name on the local server, e.g.
+// a copy of deptstore standing in for the replica when testing.
+class ReportConnection {
+
+    /**
+     * @return A new read-only REPEATABLE READ connection, or null if it couldn't be opened
+     */
+    public static Connection open() {
+        String replica = System.getProperty("invmgmt.replicaUrl");
+        Connection conn;
+        try {
+            if (replica == null || replica.isEmpty()) {
+                conn = Assignment.getConnection();
+            } else if (replica.startsWith("jdbc:")) {
+                conn = DriverManager.getConnection(replica, new Properties());
+            } else {
+                conn = Assignment.getConnection(replica);
+            }
+            if (conn == null) {
+                return null;
+            }
+            conn.setReadOnly(true);
+            conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            conn.setAutoCommit(false);
+            return conn;
+        } catch (SQLException e) {
+            System.err.format("Could not open the report connection - SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Ends the report's transaction, releasing its snapshot. Does nothing on a connection in autocommit mode.
+     *
+     * @param conn The connection the report ran on
+     */
+    public static void endSnapshot(Connection conn) {
+        try {
+            if (conn != null && !conn.getAutoCommit()) {
+                // Nothing was written, so this only ends the transaction
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            System.err.format("SQL State: %s\n%s", e.getSQLState(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.*;
+import java.sql.*;
+import java.util.List;
+
+// Writes any query result as a table, CSV or JSON, a row at a time.
+// The query runs through a cursor (autocommit off with a fetch size), so the driver only holds one batch of rows
+// in memory however big the report gets, and everything goes through a buffered Writer. Column names and
+// types come from the ResultSetMetaData, so it works for any number of columns.
+// The fetch size defaults to 1000 rows and can be set with -Dinvmgmt.reportFetchSize.
+class ReportWriter {
+
+    enum Format {
+        TABLE, CSV, JSON;
+
+        /**
+         * @param name table, csv or json, in any case
+         */
+        static Format parse(String name) {
+            return valueOf(name.toUpperCase());
+        }
+    }
+
+    static final int FETCH_SIZE = Integer.getInteger("invmgmt.reportFetchSize", 1000);
+    static final int COLUMN_WIDTH = 30;
+    static final String DIVIDER = "------------------------------";
+
+    private final Format format;
+    private final Writer out;
+    private String[] headings;
+    private boolean[] currency = new boolean[0];
+
+    /**
+     * @param format How to lay out the rows
+     * @param out    Where to write them - flushed at the end of each report, but never closed
+     */
+    public ReportWriter(Format format, Writer out) {
+        this.format = format;
+        this.out = out;
+    }
+
+    /**
+     * Headings to use instead of the column names, in column order
+     */
+    public ReportWriter headings(String... headings) {
+        this.headings = headings;
+        return this;
+    }
+
+    /**
+     * Columns (counting from 1) to show in pounds in table format, e.g. £1234. CSV and JSON always get the exact value
+     */
+    public ReportWriter currency(int... columns) {
+        for (int column : columns) {
+            if (column >= currency.length) {
+                currency = java.util.Arrays.copyOf(currency, column + 1);
+            }
+            currency[column] = true;
+        }
+        return this;
+    }
+
+    /**
+     * Runs a query through a cursor and writes its rows.
+     *
+     * @param conn An open database connection. If it's in autocommit mode, it's switched out of it for the
+     *             query and then back again
+     * @param sql  The query, with no parameters
+     * @return The number of rows written
+     */
+    public long query(Connection conn, String sql) throws SQLException, IOException {
+        boolean autoCommit = conn.getAutoCommit();
+        if (autoCommit) {
+            conn.setAutoCommit(false);
+        }
+        try {
+            PreparedStatement pst = StatementCache.of(conn).prepare(sql);
+            pst.setFetchSize(FETCH_SIZE);
+            ResultSet rs = pst.executeQuery();
+            try {
+                return write(rs);
+            } finally {
+                rs.close();
+            }
+        } finally {
+            if (autoCommit) {
+                conn.commit();
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Writes every remaining row of a result set.
+     *
+     * @return The number of rows written
+     */
+    public long write(ResultSet rs) throws SQLException, IOException {
+        ResultSetMetaData md = rs.getMetaData();
+        int columns = md.getColumnCount();
+        String[] names = new String[columns];
+        boolean[] numeric = new boolean[columns];
+        for (int c = 0; c < columns; c++) {
+            names[c] = headings != null && c < headings.length ? headings[c] : md.getColumnLabel(c + 1);
+            numeric[c] = isNumeric(md.getColumnType(c + 1));
+        }
+
+        writeHeader(names);
+        long rows = 0;
+        String[] values = new String[columns];
+        while (rs.next()) {
+            for (int c = 0; c < columns; c++) {
+                values[c] = rs.getString(c + 1);
+            }
+            writeRow(names, numeric, values, rows++);
+        }
+        writeFooter(columns, rows);
+        out.flush();
+        return rows;
+    }
+
+    /**
+     * Writes rows that didn't come from a query, e.g. a report worked out by AnalyticsSnapshot.
+     *
+     * @param names   The column names, used where there are no headings
+     * @param numeric Which columns are numbers, written unquoted in JSON
+     * @param rows    The values of each row, as the database would print them
+     * @return The number of rows written
+     */
+    public long write(String[] names, boolean[] numeric, List<String[]> rows) throws IOException {
+        String[] shown = new String[names.length];
+        for (int c = 0; c < names.length; c++) {
+            shown[c] = headings != null && c < headings.length ? headings[c] : names[c];
+        }
+        writeHeader(shown);
+        long count = 0;
+        for (String[] values : rows) {
+            writeRow(shown, numeric, values, count++);
+        }
+        writeFooter(names.length, count);
+        out.flush();
+        return count;
+    }
+
+    private void writeRow(String[] names, boolean[] numeric, String[] values, long row) throws IOException {
+        if (format == Format.JSON && row > 0) {
+            out.write(",\n");
+        }
+        for (int c = 0; c < names.length; c++) {
+            writeValue(c, names[c], numeric[c], c + 1 < currency.length && currency[c + 1], values[c], names.length);
+        }
+        if (format == Format.JSON) {
+            out.write('}');
+        } else {
+            out.write('\n');
+        }
+    }
+
+    private void writeHeader(String[] names) throws IOException {
+        switch (format) {
+            case TABLE:
+                out.write('\n');
+                for (int c = 0; c < names.length; c++) {
+                    pad(names[c], c == names.length - 1);
+                }
+                out.write('\n');
+                for (int c = 0; c < names.length; c++) {
+                    pad(DIVIDER, c == names.length - 1);
+                }
+                out.write('\n');
+                break;
+            case CSV:
+                for (int c = 0; c < names.length; c++) {
+                    if (c > 0) {
+                        out.write(',');
+                    }
+                    writeCsv(names[c]);
+                }
+                out.write('\n');
+                break;
+            case JSON:
+                out.write("[\n");
+                break;
+        }
+    }
+
+    private void writeValue(int c, String name, boolean numeric, boolean pounds, String value, int columns) throws IOException {
+        boolean last = c == columns - 1;
+        switch (format) {
+            case TABLE:
+                if (value == null) {
+                    value = "";
+                } else if (pounds) {
+                    // Whole pounds, as the reports have always shown
+                    value = "£" + new java.math.BigDecimal(value).intValue();
+                }
+                pad(last ? value : value + ",", last);
+                break;
+            case CSV:
+                if (c > 0) {
+                    out.write(',');
+                }
+                if (value != null) {
+                    writeCsv(value);
+                }
+                break;
+            case JSON:
+                out.write(c == 0 ? "  {" : ", ");
+                writeJsonString(name);
+                out.write(": ");
+                if (value == null) {
+                    out.write("null");
+                } else if (numeric) {
+                    out.write(value);
+                } else {
+                    writeJsonString(value);
+                }
+                break;
+        }
+    }
+
+    private void writeFooter(int columns, long rows) throws IOException {
+        switch (format) {
+            case TABLE:
+                for (int c = 0; c < columns; c++) {
+                    pad(DIVIDER, c == columns - 1);
+                }
+                out.write("\n\n");
+                break;
+            case CSV:
+                break;
+            case JSON:
+                out.write(rows > 0 ? "\n]\n" : "]\n");
+                break;
+        }
+    }
+
+    // A fixed width column, with a space before the next one
+    private void pad(String value, boolean last) throws IOException {
+        out.write(value);
+        for (int i = value.length(); i < COLUMN_WIDTH; i++) {
+            out.write(' ');
+        }
+        if (!last) {
+            out.write(' ');
+        }
+    }
+
+    private void writeCsv(String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char ch = value.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    private void writeJsonString(String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default:
+                    if (ch < 0x20) {
+                        out.write(String.format("\\u%04x", (int) ch));
+                    } else {
+                        out.write(ch);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    private static boolean isNumeric(int type) {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
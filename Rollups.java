@@ -0,0 +1,60 @@
+import java.sql.*;
+
+// Maintenance commands for the rollup tables behind the reports - product_sales (option 4 and 7) and
+// staff_yearly_sales (options 6 and 8). The triggers keep them up to date as orders come and go; these are for
+// backfilling them after loading existing data, and for checking that they still agree with the base tables.
+class Rollups {
+
+    /**
+     * Recalculates both rollup tables from scratch. New orders wait while this runs.
+     *
+     * @param conn An open database connection
+     */
+    public static void rebuild(Connection conn) throws SQLException {
+        long start = System.nanoTime();
+        CallableStatement stmt = conn.prepareCall("call rebuildProductSales()");
+        stmt.execute();
+        stmt.close();
+
+        stmt = conn.prepareCall("call rebuildStaffYearlySales()");
+        stmt.execute();
+        stmt.close();
+
+        System.out.format("Rebuilt product_sales and staff_yearly_sales in %.1fs\n", (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Compares both rollup tables with the base tables and prints any rows that disagree.
+     *
+     * @param conn An open database connection
+     * @return The number of rows that disagree, 0 if the rollups are consistent
+     */
+    public static int check(Connection conn) throws SQLException {
+        int drift = 0;
+        Statement st = conn.createStatement();
+
+        ResultSet rs = st.executeQuery("SELECT ProductID, rollupUnits, actualUnits FROM productSalesDrift");
+        while (rs.next()) {
+            System.out.println("product_sales: product " + rs.getInt(1) + " has " + rs.getLong(2)
+                    + " units sold but order_products has " + rs.getLong(3));
+            drift++;
+        }
+        rs.close();
+
+        rs = st.executeQuery("SELECT StaffID, SalesYear, rollupSales, actualSales FROM staffYearlySalesDrift");
+        while (rs.next()) {
+            System.out.println("staff_yearly_sales: staff " + rs.getInt(1) + " in " + rs.getInt(2) + " has £"
+                    + rs.getBigDecimal(3) + " but the orders add up to £" + rs.getBigDecimal(4));
+            drift++;
+        }
+        rs.close();
+        st.close();
+
+        if (drift == 0) {
+            System.out.println("Rollups are consistent with the order history");
+        } else {
+            System.out.println(drift + " rollup rows have drifted - run with --rebuild-rollups to repair them");
+        }
+        return drift;
+    }
+}
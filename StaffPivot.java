@@ -0,0 +1,129 @@
+import java.io.*;
+import java.sql.*;
+import java.util.Arrays;
+
+// Builds the Staff Contribution table for option 7 - one row per member of staff, one column per product that
+// has sold over £20,000, holding the units that member of staff sold of it.
+// It reads highestSellingProductSellersView once, with each staff member's total value worked out by a window
+// function in the same query so the rows arrive already in display order, and pivots them using int arrays
+// and IntIntMaps rather than a boxed map per member of staff.
+// The view is read through a cursor, as ReportWriter.query does, so the driver holds one fetch of rows at a time
+// rather than the whole of it.
+class StaffPivot {
+
+    static final String QUERY = "SELECT staffID, fName, lName, ProductID, unitsSold, "
+            + "SUM(valOfProductSold) OVER (PARTITION BY staffID) AS staffValue "
+            + "FROM highestSellingProductSellersView "
+            + "ORDER BY staffValue DESC, staffID";
+
+    // ProductID -> column, in the order products were first seen
+    private final IntIntMap columns = new IntIntMap();
+    private int[] productIDs = new int[16];
+
+    // One entry per member of staff, in display order
+    private String[] names = new String[64];
+    private int staffCount = 0;
+    private int lastStaffID = 0;
+
+    // Every (staff row, product column, units) cell, kept until we know how many columns there are
+    private int[] cellRows = new int[256];
+    private int[] cellColumns = new int[256];
+    private int[] cellUnits = new int[256];
+    private int cellCount = 0;
+
+    /**
+     * Runs the report and writes it as comma separated rows.
+     *
+     * @param conn An open database connection. If it's in autocommit mode, it's switched out of it for the
+     *             query and then back again
+     * @param out  Where to write the table - flushed but not closed
+     */
+    public static void write(Connection conn, Writer out) throws SQLException, IOException {
+        StaffPivot pivot = new StaffPivot();
+        boolean autoCommit = conn.getAutoCommit();
+        if (autoCommit) {
+            conn.setAutoCommit(false);
+        }
+        try {
+            PreparedStatement pst = StatementCache.of(conn).prepare(QUERY);
+            pst.setFetchSize(ReportWriter.FETCH_SIZE);
+            ResultSet rs = pst.executeQuery();
+            try {
+                while (rs.next()) {
+                    pivot.addRow(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), rs.getInt(5));
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            if (autoCommit) {
+                conn.commit();
+                conn.setAutoCommit(true);
+            }
+        }
+
+        pivot.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Adds one row of the view. Rows for the same member of staff must arrive together.
+     */
+    public void addRow(int staffID, String fName, String lName, int productID, int units) {
+        if (staffCount == 0 || staffID != lastStaffID) {
+            if (staffCount == names.length) {
+                names = Arrays.copyOf(names, staffCount * 2);
+            }
+            names[staffCount++] = fName + " " + lName;
+            lastStaffID = staffID;
+        }
+
+        int column = columns.get(productID, -1);
+        if (column < 0) {
+            column = columns.size();
+            columns.put(productID, column);
+            if (column == productIDs.length) {
+                productIDs = Arrays.copyOf(productIDs, column * 2);
+            }
+            productIDs[column] = productID;
+        }
+
+        if (cellCount == cellRows.length) {
+            cellRows = Arrays.copyOf(cellRows, cellCount * 2);
+            cellColumns = Arrays.copyOf(cellColumns, cellCount * 2);
+            cellUnits = Arrays.copyOf(cellUnits, cellCount * 2);
+        }
+        cellRows[cellCount] = staffCount - 1;
+        cellColumns[cellCount] = column;
+        cellUnits[cellCount] = units;
+        cellCount++;
+    }
+
+    /**
+     * Writes the header and a row per member of staff. Products a member of staff hasn't sold show as 0.
+     */
+    public void writeTo(Writer out) throws IOException {
+        int columnCount = columns.size();
+        int[] matrix = new int[staffCount * columnCount];
+        for (int i = 0; i < cellCount; i++) {
+            matrix[cellRows[i] * columnCount + cellColumns[i]] += cellUnits[i];
+        }
+
+        out.write("Staff Name");
+        for (int c = 0; c < columnCount; c++) {
+            out.write(", Product ");
+            out.write(Integer.toString(productIDs[c]));
+        }
+        out.write('\n');
+
+        for (int r = 0; r < staffCount; r++) {
+            out.write(names[r]);
+            for (int c = 0; c < columnCount; c++) {
+                out.write(", ");
+                out.write(Integer.toString(matrix[r * columnCount + c]));
+            }
+            out.write('\n');
+        }
+        out.write('\n');
+    }
+}
@@ -0,0 +1,175 @@
+import java.sql.*;
+import java.util.*;
+
+// Keeps the prepared and callable statements used by the Assignment helpers open for the life of a connection,
+// rather than preparing and closing them on every call. Once a statement object has been executed a few times
+// (the driver's prepareThreshold) pgjdbc promotes it to a server-side prepared statement, so from then on the
+// database skips parsing and planning the SQL.
+// There is one cache per connection. Statements are evicted least recently used first once maxSize is reached.
+// Prepared and callable statements are cached under different keys, so the same SQL can be used as both.
+// A connection's cache should be released before the connection is closed. Any that weren't are dropped the next
+// time a cache is created - the cached statements hold on to their connection, so a weak key would never clear.
+class StatementCache {
+
+    // Connections don't override equals, so an IdentityHashMap keys the caches by the connection object itself
+    private static final Map<Connection, StatementCache> caches = new IdentityHashMap<Connection, StatementCache>();
+
+    // Key prefixes, so a call and a plain statement for the same SQL don't collide
+    private static final String PREPARED = "P:";
+    private static final String CALLABLE = "C:";
+
+    private final Connection conn;
+    private final int maxSize;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public StatementCache(Connection connection, int size) {
+        conn = connection;
+        maxSize = size;
+        // Access ordered, so the eldest entry is always the least recently used statement
+        statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= maxSize) {
+                    return false;
+                }
+                closeQuietly(eldest.getValue());
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param conn An open database connection
+     * @return The statement cache bound to this connection, created on first use. The size is taken from the
+     *         invmgmt.statementCacheSize system property, defaulting to 32 statements
+     */
+    public static StatementCache of(Connection conn) {
+        synchronized (caches) {
+            StatementCache cache = caches.get(conn);
+            if (cache == null) {
+                expungeClosed();
+                cache = new StatementCache(conn, Integer.getInteger("invmgmt.statementCacheSize", 32));
+                caches.put(conn, cache);
+            }
+            return cache;
+        }
+    }
+
+    // Drop the caches of connections that were closed without being released, so they can be collected.
+    // Only called when a new cache is made, so the map never holds more than the connections opened since
+    private static void expungeClosed() {
+        Iterator<Map.Entry<Connection, StatementCache>> entries = caches.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Connection, StatementCache> entry = entries.next();
+            boolean closed;
+            try {
+                closed = entry.getKey().isClosed();
+            } catch (SQLException e) {
+                closed = true;
+            }
+            if (closed) {
+                // An IdentityHashMap entry can't be read once it has been removed
+                StatementCache cache = entry.getValue();
+                entries.remove();
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * Closes every statement cached for this connection. Call this before closing the connection itself.
+     *
+     * @param conn The connection whose cache we're done with
+     */
+    public static void release(Connection conn) {
+        StatementCache cache;
+        synchronized (caches) {
+            cache = caches.remove(conn);
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @param sql The SQL to prepare
+     * @return A cached prepared statement for this SQL. Don't close it - it stays open for the next caller
+     * @throws SQLException If the statement can't be prepared
+     */
+    public synchronized PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = lookup(PREPARED + sql);
+        if (stmt == null) {
+            stmt = conn.prepareStatement(sql);
+            statements.put(PREPARED + sql, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * @param sql The call to prepare e.g. { call getQuantity(?) }
+     * @return A cached callable statement for this call. Don't close it - it stays open for the next caller
+     * @throws SQLException If the statement can't be prepared
+     */
+    public synchronized CallableStatement prepareCall(String sql) throws SQLException {
+        PreparedStatement stmt = lookup(CALLABLE + sql);
+        if (stmt == null) {
+            stmt = conn.prepareCall(sql);
+            statements.put(CALLABLE + sql, stmt);
+        }
+        return (CallableStatement) stmt;
+    }
+
+    // Find a statement that is still usable, counting the hit or miss
+    private PreparedStatement lookup(String key) throws SQLException {
+        PreparedStatement stmt = statements.get(key);
+        if (stmt != null && !stmt.isClosed()) {
+            hits++;
+            stmt.clearParameters();
+            return stmt;
+        }
+        statements.remove(key);
+        misses++;
+        return null;
+    }
+
+    public synchronized void clear() {
+        for (PreparedStatement stmt : statements.values()) {
+            closeQuietly(stmt);
+        }
+        statements.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d/%d statements, %d hits, %d misses, %d evictions", statements.size(), maxSize, hits,
+                misses, evictions);
+    }
+
+    private static void closeQuietly(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // The statement is being thrown away anyway
+        }
+    }
+}
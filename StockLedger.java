@@ -0,0 +1,264 @@
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// In-process reservation ledger for the order server, so that tills selling the same promoted product don't all
+// queue on its inventory row just to find out it has sold out.
+// Every product we've seen has a count of the stock we believe is available. An order reserves its quantities
+// from the ledger with a compare-and-set before it goes anywhere near the database, and hands them back if the
+// order then fails. The database stays the source of truth - reserveStock's conditional UPDATE still has the
+// final say - and the ledger is reconciled against inventory.ProductStockAmount every so often to pick up
+// changes made by other processes (restocks, purges, other servers).
+// The counters show where the contention is - compare-and-set retries mean two tills raced on the same product.
+class StockLedger {
+
+    // What the ledger knows about one product
+    private static class Entry {
+        final AtomicInteger available;
+        // Reserved by orders that haven't reached the database yet, so reconcile doesn't hand them out twice
+        final AtomicInteger pending = new AtomicInteger();
+        final LongAdder retries = new LongAdder();
+        // The database disagreed with us about this product, so its stock is reloaded before the next reservation
+        volatile boolean stale = false;
+
+        Entry(int stock) {
+            available = new AtomicInteger(stock);
+        }
+    }
+
+    private static final int STRIPES = 32;
+
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+    // Loading a product from the database happens under the lock for its stripe, so two tills seeing a product
+    // for the first time don't both load it, without making every product wait on one lock
+    private final Object[] stripes = new Object[STRIPES];
+
+    private final LongAdder reservations = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder reconciles = new LongAdder();
+
+    public StockLedger() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Reserves every line of an order, or none of them.
+     *
+     * @param conn       Used to load the stock of any product the ledger hasn't seen yet
+     * @param productIDs The products in the order
+     * @param quantities The quantity of each product, matched by index
+     * @return true if the whole order was reserved, false if any product doesn't have enough stock
+     * @throws SQLException If a product's stock couldn't be loaded
+     */
+    public boolean reserve(Connection conn, int[] productIDs, int[] quantities) throws SQLException {
+        for (int i = 0; i < productIDs.length; i++) {
+            if (!reserve(entry(conn, productIDs[i]), quantities[i])) {
+                rejections.increment();
+                release(productIDs, quantities, i);
+                return false;
+            }
+        }
+        reservations.increment();
+        return true;
+    }
+
+    /**
+     * Hands back a reservation because the order failed in the database.
+     *
+     * @param productIDs The products in the order
+     * @param quantities The quantity of each product, matched by index
+     * @param stockWasShort true if the database rejected the order for insufficient stock - the ledger was wrong
+     *                      about these products, so they are reloaded next time rather than trusted. The entries
+     *                      are reloaded in place rather than dropped, as other orders may still hold reservations
+     *                      on them
+     */
+    public void cancel(int[] productIDs, int[] quantities, boolean stockWasShort) {
+        release(productIDs, quantities, productIDs.length);
+        if (stockWasShort) {
+            conflicts.increment();
+            for (int id : productIDs) {
+                Entry entry = entries.get(id);
+                if (entry != null) {
+                    entry.stale = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks a reservation as applied once the order has been committed to the database.
+     *
+     * @param productIDs The products in the order
+     * @param quantities The quantity of each product, matched by index
+     */
+    public void confirm(int[] productIDs, int[] quantities) {
+        for (int i = 0; i < productIDs.length; i++) {
+            Entry entry = entries.get(productIDs[i]);
+            if (entry != null) {
+                entry.pending.addAndGet(-quantities[i]);
+            }
+        }
+    }
+
+    /**
+     * Reloads the stock level of every product in the ledger from the inventory table, less whatever is reserved
+     * by orders still in flight.
+     *
+     * @param conn An open database connection
+     */
+    public void reconcile(Connection conn) throws SQLException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Integer[] ids = entries.keySet().toArray(new Integer[0]);
+        PreparedStatement stmt = StatementCache.of(conn).prepare(
+                "SELECT ProductID, ProductStockAmount FROM inventory WHERE ProductID = ANY(?)");
+        stmt.setArray(1, conn.createArrayOf("integer", ids));
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            Entry entry = entries.get(rs.getInt(1));
+            if (entry != null) {
+                entry.available.set(rs.getInt(2) - entry.pending.get());
+                entry.stale = false;
+            }
+        }
+        rs.close();
+        reconciles.increment();
+    }
+
+    /**
+     * Reconciles the ledger on a timer, using its own pooled connection each time
+     *
+     * @param pool     Where to borrow a connection from
+     * @param interval How often to reconcile, in milliseconds
+     * @return The scheduler, so the caller can shut it down
+     */
+    public ScheduledExecutorService scheduleReconcile(final ConnectionPool pool, long interval) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "stock-ledger-reconcile");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                Connection conn = null;
+                try {
+                    conn = pool.acquire();
+                    reconcile(conn);
+                } catch (SQLException e) {
+                    System.err.format("Stock ledger reconcile failed - SQL State: %s\n%s\n", e.getSQLState(), e.getMessage());
+                } finally {
+                    pool.release(conn);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return scheduler;
+    }
+
+    // Take quantity from a product, retrying if another till changed the count between our read and our write
+    private boolean reserve(Entry entry, int quantity) {
+        while (true) {
+            int current = entry.available.get();
+            if (current < quantity) {
+                return false;
+            }
+            if (entry.available.compareAndSet(current, current - quantity)) {
+                entry.pending.addAndGet(quantity);
+                return true;
+            }
+            entry.retries.increment();
+            retries.increment();
+        }
+    }
+
+    // Give back the first count lines of an order
+    private void release(int[] productIDs, int[] quantities, int count) {
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries.get(productIDs[i]);
+            if (entry != null) {
+                entry.available.addAndGet(quantities[i]);
+                entry.pending.addAndGet(-quantities[i]);
+            }
+        }
+    }
+
+    private Entry entry(Connection conn, int productID) throws SQLException {
+        Entry entry = entries.get(productID);
+        if (entry != null && !entry.stale) {
+            return entry;
+        }
+        synchronized (stripes[(productID & 0x7fffffff) % STRIPES]) {
+            entry = entries.get(productID);
+            if (entry == null || entry.stale) {
+                // An unknown product gets no stock, so the order is rejected the same way the database would
+                PreparedStatement stmt = StatementCache.of(conn).prepare(
+                        "SELECT ProductStockAmount FROM inventory WHERE ProductID = ?");
+                stmt.setInt(1, productID);
+                ResultSet rs = stmt.executeQuery();
+                int stock = rs.next() ? rs.getInt(1) : 0;
+                rs.close();
+                if (entry == null) {
+                    entry = new Entry(stock);
+                    entries.put(productID, entry);
+                } else {
+                    // Keep the entry, and with it the pending count of orders still in flight, as reconcile does
+                    entry.available.set(stock - entry.pending.get());
+                    entry.stale = false;
+                }
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * @param count How many products to list
+     * @return The products with the most compare-and-set retries, as productID:retries pairs
+     */
+    public String hottestProducts(int count) {
+        List<Map.Entry<Integer, Entry>> sorted = new ArrayList<Map.Entry<Integer, Entry>>(entries.entrySet());
+        sorted.sort(new Comparator<Map.Entry<Integer, Entry>>() {
+            public int compare(Map.Entry<Integer, Entry> a, Map.Entry<Integer, Entry> b) {
+                return Long.compare(b.getValue().retries.sum(), a.getValue().retries.sum());
+            }
+        });
+        StringBuilder hottest = new StringBuilder();
+        for (int i = 0; i < Math.min(count, sorted.size()); i++) {
+            long productRetries = sorted.get(i).getValue().retries.sum();
+            if (productRetries == 0) {
+                break;
+            }
+            hottest.append(hottest.length() == 0 ? "" : ",").append(sorted.get(i).getKey()).append(':').append(productRetries);
+        }
+        return hottest.toString();
+    }
+
+    public long getReservations() {
+        return reservations.sum();
+    }
+
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d products, %d reserved, %d rejected, %d retries, %d db conflicts, %d reconciles, hottest [%s]",
+                entries.size(), reservations.sum(), rejections.sum(), retries.sum(), conflicts.sum(),
+                reconciles.sum(), hottestProducts(5));
+    }
+}
@@ -0,0 +1,166 @@
+package invmgmt.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The order and report hot paths: date parsing, reading an order typed in at the console, executeOrder, the
+// option 4 table and the option 7 pivot. Anything that would go to the database goes to a FakeDatabase instead.
+// JMH won't run benchmarks from the default package, which is where the application lives, so the entry points
+// are looked up by name once and called through method handles held in static finals, which the JIT inlines
+// like a direct call. Everything they return goes into a Blackhole so none of it can be optimised away.
+// The entry points are the ones every version of the application has had, so the same benchmarks build against
+// older checkouts for before and after numbers (see benchmarks/pom.xml). orderParse is the exception - Order.parse
+// came with the order server.
+// Run with: java -jar benchmarks/target/benchmarks.jar -prof gc
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// The report cache would otherwise turn every option 7 after the first into a cache hit
+@Fork(value = 1, jvmArgsAppend = { "-Dinvmgmt.reportCacheSize=0", "-Dinvmgmt.catalog=false" })
+public class HotPaths {
+
+    static final MethodHandle GET_SQL_DATE = handle("Assignment", "getSQLDate", String.class);
+    static final MethodHandle NEW_ORDER = handle("Order", null, String.class);
+    static final MethodHandle HANDLE_OPTION = handle("Order", "handleOption");
+    static final MethodHandle EXECUTE_ORDER = handle("Assignment", "executeOrder", Connection.class, String.class,
+            int[].class, int[].class, String.class, String.class, String.class, String.class, String.class,
+            String.class, String.class, int.class);
+    static final MethodHandle FORMAT_TABLE = handle("Assignment", "formatTable", ResultSet.class);
+    static final MethodHandle OPTION7 = handle("Assignment", "option7", Connection.class);
+    static final MethodHandle ORDER_PARSE = handle("Order", "parse", String.class);
+
+    // The answers a member of staff types in for a three product delivery
+    static final byte[] TYPED = ("1\n2\ny\n4\n1\ny\n7\n3\nn\n17-Nov-20\n20-Nov-20\nAda\nLovelace\n12\nHigh Street\n"
+            + "Leeds\n3\n").getBytes(StandardCharsets.US_ASCII);
+
+    final int[] productIDs = { 1, 4, 7 };
+    final int[] quantities = { 2, 1, 3 };
+
+    PrintStream console;
+    InputStream keyboard;
+    ByteArrayInputStream typed;
+    Connection orderConn;
+    Object[][] products;
+    Connection reportConn;
+
+    @Setup
+    public void setUp() {
+        // The code under test prints as it goes - send that nowhere rather than through the JMH fork's pipe
+        console = System.out;
+        keyboard = System.in;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        typed = new ByteArrayInputStream(TYPED);
+        System.setIn(typed);
+
+        // placeOrder answers with a row per product: the order ID, the product and its stock left
+        orderConn = new FakeDatabase()
+                .route("nextval", new Object[][] { { 1001 } })
+                .rows(new Object[][] { { 1001, 1, 48 }, { 1001, 4, 12 }, { 1001, 7, 90 } })
+                .callResult(1001)
+                .recordNothing()
+                .connect();
+
+        // Option 4 - 1000 products
+        products = new Object[1000][];
+        for (int i = 0; i < products.length; i++) {
+            products[i] = new Object[] { i + 1, "Product " + (i + 1), 1000000 - i * 37 };
+        }
+
+        // Option 7 - 1000 staff who have each sold 20 of 40 top products, in display order
+        Object[][] sold = new Object[1000 * 20][];
+        Object[][] staff = new Object[1000][];
+        for (int s = 0; s < 1000; s++) {
+            staff[s] = new Object[] { s + 1 };
+            for (int p = 0; p < 20; p++) {
+                int product = 1 + (s + p * 7) % 40;
+                sold[s * 20 + p] = new Object[] { s + 1, "Staff", "Member", product, 1 + p, (1 + p) * 10, 1000000 - s };
+            }
+        }
+        reportConn = new FakeDatabase().route("mostValuableStaff", staff).rows(sold).recordNothing().connect();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(console);
+        System.setIn(keyboard);
+    }
+
+    @Benchmark
+    public void getSQLDate(Blackhole bh) throws Throwable {
+        bh.consume((Object) GET_SQL_DATE.invokeExact((Object) "17-Nov-20"));
+    }
+
+    @Benchmark
+    public void handleOption(Blackhole bh) throws Throwable {
+        typed.reset();
+        Object order = (Object) NEW_ORDER.invokeExact((Object) "Delivery");
+        bh.consume((Object) HANDLE_OPTION.invokeExact(order));
+        bh.consume(order);
+    }
+
+    @Benchmark
+    public void executeOrder(Blackhole bh) throws Throwable {
+        bh.consume((Object) EXECUTE_ORDER.invokeExact((Object) orderConn, (Object) "Delivery", (Object) productIDs,
+                (Object) quantities, (Object) "17-Nov-20", (Object) "20-Nov-20", (Object) "Ada", (Object) "Lovelace",
+                (Object) "12", (Object) "High Street", (Object) "Leeds", (Object) 3));
+    }
+
+    @Benchmark
+    public void formatTable(Blackhole bh) throws Throwable {
+        ResultSet rs = FakeDatabase.resultSet(products);
+        bh.consume((Object) FORMAT_TABLE.invokeExact((Object) rs));
+        bh.consume(rs);
+    }
+
+    @Benchmark
+    public void option7(Blackhole bh) throws Throwable {
+        bh.consume((Object) OPTION7.invokeExact((Object) reportConn));
+    }
+
+    @Benchmark
+    public void orderParse(Blackhole bh) throws Throwable {
+        if (ORDER_PARSE == null) {
+            throw new IllegalStateException("Order.parse isn't in this version");
+        }
+        bh.consume((Object) ORDER_PARSE.invokeExact(
+                (Object) "Delivery|17-Nov-20|3|1:2,4:1,7:3|20-Nov-20|Ada|Lovelace|12|High Street|Leeds"));
+    }
+
+    // A handle to a method or constructor (name null) of an application class, taking and returning Objects so
+    // that invokeExact can be used without naming the application's types. Null if it doesn't exist
+    static MethodHandle handle(String className, String name, Class<?>... parameters) {
+        try {
+            Class<?> type = Class.forName(className);
+            Executable target = name == null ? type.getDeclaredConstructor(parameters)
+                    : type.getDeclaredMethod(name, parameters);
+            target.setAccessible(true);
+            MethodHandle handle = name == null ? MethodHandles.lookup().unreflectConstructor((Constructor<?>) target)
+                    : MethodHandles.lookup().unreflect((Method) target);
+            if (handle.type().returnType() == void.class) {
+                handle = MethodHandles.filterReturnValue(handle, MethodHandles.constant(Object.class, null));
+            }
+            return handle.asType(MethodType.genericMethodType(handle.type().parameterCount()));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
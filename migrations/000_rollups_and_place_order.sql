@@ -0,0 +1,426 @@
+-- Migration 0 - placeOrder, reserveStock, the sales rollups and set-based purging of uncollected orders
+-- For databases created from the original schema.sql, before placeOrder (one round trip per order), reserveStock,
+-- product_sales, staff_yearly_sales and purgeUncollectedOrders were added. Run it before 001, which with the later
+-- migrations expects these to exist. It backfills both rollups from the order history, locking order_products
+-- and staff_orders while it does.
+-- Everything is created inside the guard, as the later migrations replace much of it and running this again
+-- mustn't put the old versions back. Safe to run more than once:
+--     psql deptstore -f migrations/000_rollups_and_place_order.sql
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS schema_version (
+    Version         INTEGER NOT NULL,
+    Description     VARCHAR(100) NOT NULL,
+    AppliedOn       TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (Version)
+);
+
+DO $migration$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 0) THEN
+            RAISE NOTICE 'Migration 0 has already been applied';
+            RETURN;
+        END IF;
+
+        -- As in schema.sql at the time
+        -- Running total of units sold per product, kept up to date by the order_products triggers so that the
+        -- product reports don't have to re-aggregate every order line ever sold. There is one row per inventory row
+        CREATE TABLE IF NOT EXISTS product_sales (
+            ProductID       INTEGER NOT NULL,
+            UnitsSold       BIGINT NOT NULL DEFAULT 0,
+            PRIMARY KEY (ProductID),
+            FOREIGN KEY (ProductID) REFERENCES inventory(ProductID) ON DELETE CASCADE
+        );
+
+        -- Total value sold by each member of staff in each year, kept up to date by triggers on the tables it is built
+        -- from so that options 6 and 8 don't have to rebuild it from the whole order history.
+        -- No foreign key to staff - when staff are deleted the staff_orders trigger still needs to write here
+        CREATE TABLE IF NOT EXISTS staff_yearly_sales (
+            StaffID         INTEGER NOT NULL,
+            SalesYear       INTEGER NOT NULL,
+            TotalSales      NUMERIC(14,2) NOT NULL DEFAULT 0,
+            PRIMARY KEY (StaffID, SalesYear)
+        );
+
+        CREATE INDEX IF NOT EXISTS staff_yearly_sales_year ON staff_yearly_sales (SalesYear, TotalSales);
+
+        -- Check that we have sufficient stock to process order for this item
+        -- If so, reduce stock. If not, throw and exception to trigger rollback
+        -- The check and the reduction happen in the one conditional UPDATE inside reserveStock, so two tills selling
+        -- the same product can't both pass the check before either has reduced the stock
+        CREATE OR REPLACE FUNCTION checkValidOrderProduct() RETURNS TRIGGER AS $orderProductsTrigger$
+            BEGIN
+                IF reserveStock(NEW.ProductID, NEW.ProductQuantity) IS NULL THEN
+                    RAISE EXCEPTION 'Insufficient stock to execute order';
+                END IF;
+                IF TG_OP = 'UPDATE' THEN
+                    CALL adjustProductSales(OLD.ProductID, -OLD.ProductQuantity);
+                    CALL adjustStaffYearlySales(OLD.OrderID, OLD.ProductID, -OLD.ProductQuantity);
+                END IF;
+                CALL adjustProductSales(NEW.ProductID, NEW.ProductQuantity);
+                CALL adjustStaffYearlySales(NEW.OrderID, NEW.ProductID, NEW.ProductQuantity);
+                RETURN NEW;
+            END;
+            $orderProductsTrigger$
+            LANGUAGE plpgsql;
+
+        -- Atomically reduce the stock of a product if there is enough of it, returning the stock left
+        -- Returns NULL without changing anything if there isn't enough. A concurrent order holding the row lock makes us
+        -- wait, and the WHERE is then re-checked against its committed stock level, so we can never oversell
+        CREATE OR REPLACE FUNCTION reserveStock(id INTEGER, quantity INTEGER)
+            RETURNS INTEGER LANGUAGE plpgsql AS
+            $$
+            DECLARE
+                remaining INTEGER;
+            BEGIN
+                UPDATE inventory SET ProductStockAmount = ProductStockAmount - quantity
+                WHERE ProductID = id AND ProductStockAmount >= quantity
+                RETURNING ProductStockAmount INTO remaining;
+                RETURN remaining;
+            END;
+            $$;
+
+        -- Place a whole order in one call - creates the order and its staff link, every order_products row and the
+        -- collection/delivery row, then returns the new stock level of each product in the order.
+        -- The order_products insert still fires orderProductsTrigger, so insufficient stock aborts the whole call
+        CREATE OR REPLACE FUNCTION placeOrder(orderType VARCHAR, orderPlaced DATE, orderCompleted INTEGER, staffID INTEGER,
+                productIDs INTEGER[], quantities INTEGER[], fName VARCHAR, lName VARCHAR, house VARCHAR, street VARCHAR,
+                city VARCHAR, dueDate DATE)
+            RETURNS TABLE (placedOrderID INTEGER, placedProductID INTEGER, newStockAmount INTEGER) LANGUAGE plpgsql AS
+            $$
+            DECLARE
+                newID INTEGER;
+            BEGIN
+                newID := insertOrder(orderType, orderPlaced, orderCompleted, staffID);
+
+                INSERT INTO order_products (OrderID, ProductID, ProductQuantity)
+                    SELECT newID, p.id, p.quantity FROM unnest(productIDs, quantities) AS p(id, quantity);
+
+                IF orderType = 'Collection' THEN
+                    CALL insertCollection(newID, fName, lName, dueDate);
+                ELSIF orderType = 'Delivery' THEN
+                    CALL insertDelivery(newID, fName, lName, house, street, city, dueDate);
+                END IF;
+
+                RETURN QUERY
+                    SELECT newID, i.ProductID, i.ProductStockAmount
+                    FROM unnest(productIDs) WITH ORDINALITY AS p(id, n)
+                    INNER JOIN inventory i ON i.ProductID = p.id
+                    ORDER BY p.n;
+            END;
+            $$;
+
+        -- Cancel a chunk of uncollected collection orders in one go. Each product is restocked and has its sales total
+        -- reduced once for the whole chunk, rather than once per order line by the row triggers, which are switched off
+        -- for this transaction. Orders that have been collected since they were chosen are skipped
+        CREATE OR REPLACE FUNCTION cancelUncollectedOrders(orderIDs INTEGER[]) RETURNS TABLE(cancelledOrderID INTEGER) AS $$
+            DECLARE
+                cancelled INTEGER[];
+            BEGIN
+                PERFORM set_config('invmgmt.bulk_maintenance', 'on', true);
+
+                cancelled := ARRAY(
+                    SELECT o.OrderID FROM orders o
+                    WHERE o.OrderID = ANY(orderIDs)
+                    AND o.OrderCompleted = 0
+                    AND EXISTS (SELECT 1 FROM collections c WHERE c.OrderID = o.OrderID)
+                    ORDER BY o.OrderID
+                    FOR UPDATE OF o);
+
+                -- Take the orders off the staff totals while we can still tell which year they belong to
+                UPDATE staff_yearly_sales r SET TotalSales = r.TotalSales - s.value
+                FROM (
+                    SELECT so.StaffID, DATE_PART('year', o.OrderPlaced) AS SalesYear, SUM(op.ProductQuantity * i.ProductPrice) AS value
+                    FROM orders o
+                    INNER JOIN staff_orders so ON so.OrderID = o.OrderID
+                    INNER JOIN order_products op ON op.OrderID = o.OrderID
+                    INNER JOIN inventory i ON i.ProductID = op.ProductID
+                    WHERE o.OrderID = ANY(cancelled) AND o.OrderPlaced IS NOT NULL
+                    GROUP BY so.StaffID, DATE_PART('year', o.OrderPlaced)
+                ) s
+                WHERE r.StaffID = s.StaffID AND r.SalesYear = s.SalesYear;
+
+                -- One restock and one sales adjustment per product, however many lines the chunk had
+                WITH lines AS (
+                    DELETE FROM order_products WHERE OrderID = ANY(cancelled)
+                    RETURNING ProductID, ProductQuantity
+                ), units AS (
+                    SELECT ProductID, SUM(ProductQuantity) AS quantity FROM lines GROUP BY ProductID
+                ), restocked AS (
+                    UPDATE inventory i SET ProductStockAmount = i.ProductStockAmount + u.quantity
+                    FROM units u WHERE i.ProductID = u.ProductID
+                )
+                UPDATE product_sales p SET UnitsSold = p.UnitsSold - u.quantity
+                FROM units u WHERE p.ProductID = u.ProductID;
+
+                -- Collections and staff links go with the orders by ON DELETE CASCADE
+                RETURN QUERY DELETE FROM orders WHERE OrderID = ANY(cancelled) RETURNING OrderID;
+
+                PERFORM set_config('invmgmt.bulk_maintenance', 'off', true);
+            END;
+            $$
+            LANGUAGE plpgsql;
+
+        -- Cancel up to chunkSize of the collection orders that are 8 days older than the date provided, oldest first.
+        -- Call it repeatedly, committing in between, until it returns no rows - each call only holds its locks for one chunk
+        CREATE OR REPLACE FUNCTION purgeUncollectedOrders(removeFromDate DATE, chunkSize INTEGER) RETURNS TABLE(cancelledOrderID INTEGER) AS $$
+            BEGIN
+                RETURN QUERY SELECT * FROM cancelUncollectedOrders(ARRAY(
+                    SELECT o.OrderID FROM orders o
+                    INNER JOIN collections c ON c.OrderID = o.OrderID
+                    WHERE removeFromDate - INTERVAL '8 days' >= c.CollectionDate
+                    AND o.OrderCompleted = 0
+                    ORDER BY c.CollectionDate, o.OrderID
+                    LIMIT chunkSize));
+            END;
+            $$
+            LANGUAGE plpgsql;
+
+        -- True while a set-based function such as cancelUncollectedOrders is maintaining stock and the rollups itself,
+        -- so the row triggers below should leave them alone
+        CREATE OR REPLACE FUNCTION bulkMaintenance() RETURNS BOOLEAN AS $$
+            SELECT COALESCE(current_setting('invmgmt.bulk_maintenance', true) = 'on', false);
+            $$
+            LANGUAGE sql;
+
+        -- Triggered when we delete from order_products in opt 5 - adds items back to inventory
+        CREATE OR REPLACE FUNCTION addUncollectedStock() RETURNS TRIGGER AS $removeOrders$
+            BEGIN
+                IF bulkMaintenance() THEN
+                    RETURN OLD;
+                END IF;
+                UPDATE inventory SET ProductStockAmount = ProductStockAmount + OLD.ProductQuantity WHERE ProductID = OLD.ProductID;
+                CALL adjustProductSales(OLD.ProductID, -OLD.ProductQuantity);
+                CALL adjustStaffYearlySales(OLD.OrderID, OLD.ProductID, -OLD.ProductQuantity);
+                RETURN OLD;
+            END;
+            $removeOrders$
+            LANGUAGE plpgsql;
+
+        -- Add or remove units from a product's running sales total
+        CREATE OR REPLACE PROCEDURE adjustProductSales(id INTEGER, units INTEGER)
+            LANGUAGE plpgsql AS
+            $$
+            BEGIN
+                UPDATE product_sales SET UnitsSold = UnitsSold + units WHERE ProductID = id;
+            END;
+            $$;
+
+        -- Every new product starts with a sales total of 0
+        CREATE OR REPLACE FUNCTION addProductSales() RETURNS TRIGGER AS $newProductTrigger$
+            BEGIN
+                INSERT INTO product_sales (ProductID, UnitsSold) VALUES (NEW.ProductID, 0);
+                RETURN NEW;
+            END;
+            $newProductTrigger$
+            LANGUAGE plpgsql;
+
+        CREATE TRIGGER newProductTrigger AFTER INSERT
+            ON inventory
+            FOR EACH ROW EXECUTE FUNCTION addProductSales();
+
+        -- Recalculate every product's sales total from order_products, e.g. after loading data with the triggers disabled
+        -- Blocks new orders while it runs so that no sale is missed
+        CREATE OR REPLACE PROCEDURE rebuildProductSales()
+            LANGUAGE plpgsql AS
+            $$
+            BEGIN
+                LOCK TABLE order_products IN SHARE MODE;
+                DELETE FROM product_sales;
+                INSERT INTO product_sales (ProductID, UnitsSold)
+                    SELECT i.ProductID, COALESCE(SUM(op.ProductQuantity), 0)
+                    FROM inventory i
+                    LEFT OUTER JOIN order_products op ON op.ProductID = i.ProductID
+                    GROUP BY i.ProductID;
+            END;
+            $$;
+
+
+        -- Add or remove the value of some units of a product to the yearly total of the staff who sold the order
+        -- Does nothing if the order has already gone - removeOrderSales has accounted for it before it was deleted
+        CREATE OR REPLACE PROCEDURE adjustStaffYearlySales(ordID INTEGER, prodID INTEGER, units INTEGER)
+            LANGUAGE plpgsql AS
+            $$
+            BEGIN
+                INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+                    SELECT so.StaffID, DATE_PART('year', o.OrderPlaced), units * i.ProductPrice
+                    FROM staff_orders so
+                    INNER JOIN orders o ON o.OrderID = so.OrderID
+                    INNER JOIN inventory i ON i.ProductID = prodID
+                    WHERE so.OrderID = ordID AND o.OrderPlaced IS NOT NULL
+                ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+            END;
+            $$;
+
+        -- Add or remove the value of a whole order from one staff member's yearly total
+        CREATE OR REPLACE PROCEDURE adjustStaffOrderSales(staffMember INTEGER, ordID INTEGER, direction INTEGER)
+            LANGUAGE plpgsql AS
+            $$
+            BEGIN
+                INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+                    SELECT staffMember, DATE_PART('year', o.OrderPlaced), direction * SUM(op.ProductQuantity * i.ProductPrice)
+                    FROM orders o
+                    INNER JOIN order_products op ON op.OrderID = o.OrderID
+                    INNER JOIN inventory i ON i.ProductID = op.ProductID
+                    WHERE o.OrderID = ordID AND o.OrderPlaced IS NOT NULL
+                    GROUP BY o.OrderPlaced
+                ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+            END;
+            $$;
+
+        -- Linking staff to an order (or removing the link) moves the value of the order onto (or off) their total
+        CREATE OR REPLACE FUNCTION staffOrderSales() RETURNS TRIGGER AS $staffOrdersTrigger$
+            BEGIN
+                IF bulkMaintenance() THEN
+                    RETURN NULL;
+                END IF;
+                IF TG_OP = 'DELETE' THEN
+                    CALL adjustStaffOrderSales(OLD.StaffID, OLD.OrderID, -1);
+                    RETURN OLD;
+                END IF;
+                CALL adjustStaffOrderSales(NEW.StaffID, NEW.OrderID, 1);
+                RETURN NEW;
+            END;
+            $staffOrdersTrigger$
+            LANGUAGE plpgsql;
+
+        CREATE TRIGGER staffOrdersTrigger AFTER INSERT OR DELETE
+            ON staff_orders
+            FOR EACH ROW EXECUTE FUNCTION staffOrderSales();
+
+        -- When an order is deleted its lines and staff links are removed by ON DELETE CASCADE after the order row has
+        -- gone, so by then we can no longer tell which year they belonged to. Take the order off the totals first
+        CREATE OR REPLACE FUNCTION removeOrderSales() RETURNS TRIGGER AS $removeOrderSalesTrigger$
+            DECLARE
+                link RECORD;
+            BEGIN
+                IF bulkMaintenance() THEN
+                    RETURN OLD;
+                END IF;
+                FOR link IN SELECT StaffID FROM staff_orders WHERE OrderID = OLD.OrderID LOOP
+                    CALL adjustStaffOrderSales(link.StaffID, OLD.OrderID, -1);
+                END LOOP;
+                RETURN OLD;
+            END;
+            $removeOrderSalesTrigger$
+            LANGUAGE plpgsql;
+
+        CREATE TRIGGER removeOrderSalesTrigger BEFORE DELETE
+            ON orders
+            FOR EACH ROW EXECUTE FUNCTION removeOrderSales();
+
+        -- Sales are valued at the current price, so a price change revalues everything sold of that product, and
+        -- deleting a product removes its sales (its order lines are then removed by ON DELETE CASCADE)
+        CREATE OR REPLACE FUNCTION revalueProductSales() RETURNS TRIGGER AS $productPriceTrigger$
+            DECLARE
+                priceChange NUMERIC;
+            BEGIN
+                IF TG_OP = 'DELETE' THEN
+                    priceChange := -OLD.ProductPrice;
+                ELSE
+                    priceChange := NEW.ProductPrice - OLD.ProductPrice;
+                END IF;
+                INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+                    SELECT so.StaffID, DATE_PART('year', o.OrderPlaced), priceChange * SUM(op.ProductQuantity)
+                    FROM order_products op
+                    INNER JOIN orders o ON o.OrderID = op.OrderID
+                    INNER JOIN staff_orders so ON so.OrderID = op.OrderID
+                    WHERE op.ProductID = OLD.ProductID AND o.OrderPlaced IS NOT NULL
+                    GROUP BY so.StaffID, DATE_PART('year', o.OrderPlaced)
+                ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+                IF TG_OP = 'DELETE' THEN
+                    RETURN OLD;
+                END IF;
+                RETURN NEW;
+            END;
+            $productPriceTrigger$
+            LANGUAGE plpgsql;
+
+        CREATE TRIGGER productPriceTrigger BEFORE UPDATE OF ProductPrice OR DELETE
+            ON inventory
+            FOR EACH ROW EXECUTE FUNCTION revalueProductSales();
+
+        -- Recalculate every staff member's yearly totals from the order history, for backfilling or repairing drift
+        -- Blocks new orders while it runs so that no sale is missed
+        CREATE OR REPLACE PROCEDURE rebuildStaffYearlySales()
+            LANGUAGE plpgsql AS
+            $$
+            BEGIN
+                LOCK TABLE order_products, staff_orders IN SHARE MODE;
+                DELETE FROM staff_yearly_sales;
+                INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+                    SELECT StaffID, DATE_PART('year', OrderPlaced), SUM(saleValue)
+                    FROM allSaleValues
+                    WHERE OrderPlaced IS NOT NULL
+                    GROUP BY StaffID, DATE_PART('year', OrderPlaced);
+            END;
+            $$;
+
+        -- The views below replace these, and yearlySales30k changes its columns
+
+        DROP VIEW IF EXISTS staffYearly20kProductSales, staff20kItems, mostValuableStaff, yearlySales30k;
+
+        -- View - gets the highest selling products in descending order of total value
+        -- Uses in opt4 and opt7
+        -- Reads the running totals in product_sales, so it costs one row per product rather than one per order line
+        CREATE OR REPLACE VIEW profitableProductsView AS
+            SELECT i.ProductID, i.ProductDesc, COALESCE(i.ProductPrice * p.UnitsSold,0) AS totalValue FROM inventory i
+            LEFT OUTER JOIN product_sales p ON i.ProductID = p.ProductID
+            ORDER BY totalValue DESC;
+
+        -- View - Get the lifetime sales of all members of staff over 50,000
+        -- Works by getting the total value of each order, then linking with the staff table
+        -- It then groups by staffID, summing the order values for that staff member. A final HAVING checks that this total is >= 50k
+        -- The yearly totals come from the staff_yearly_sales rollup, so this is a few rows per member of staff
+        CREATE OR REPLACE VIEW lifetimeSalesView AS
+            SELECT s.fName || ' ' || s.lName AS fullName, r.StaffID, SUM(r.TotalSales) AS lifetimeSales
+            FROM staff_yearly_sales r
+            INNER JOIN staff s ON s.StaffID = r.StaffID
+            GROUP BY r.StaffID, fullName
+            HAVING SUM(r.TotalSales) >= 50000
+            ORDER BY lifetimeSales DESC;
+
+        -- Get staff that have sold 30k this year - an index lookup on the staff_yearly_sales rollup
+        CREATE OR REPLACE VIEW yearlySales30k AS
+            SELECT StaffID, SalesYear AS yr
+            FROM staff_yearly_sales
+            WHERE TotalSales >= 30000
+            ORDER BY TotalSales DESC;
+
+        -- CONSISTENCY CHECKS
+        -- Rows where a rollup table disagrees with the base tables it summarises. Both should always be empty -
+        -- if not, CALL rebuildProductSales() / rebuildStaffYearlySales() to repair them
+        CREATE OR REPLACE VIEW productSalesDrift AS
+            SELECT i.ProductID, COALESCE(p.UnitsSold, 0) AS rollupUnits, COALESCE(x.units, 0) AS actualUnits
+            FROM inventory i
+            LEFT OUTER JOIN product_sales p ON p.ProductID = i.ProductID
+            LEFT OUTER JOIN (
+                SELECT ProductID, SUM(ProductQuantity) AS units
+                FROM order_products
+                GROUP BY ProductID
+            ) x ON x.ProductID = i.ProductID
+            WHERE COALESCE(p.UnitsSold, 0) <> COALESCE(x.units, 0);
+
+        CREATE OR REPLACE VIEW staffYearlySalesDrift AS
+            SELECT COALESCE(r.StaffID, x.StaffID) AS StaffID, COALESCE(r.SalesYear, x.SalesYear) AS SalesYear,
+                COALESCE(r.TotalSales, 0) AS rollupSales, COALESCE(x.TotalSales, 0) AS actualSales
+            FROM staff_yearly_sales r
+            FULL OUTER JOIN (
+                SELECT StaffID, DATE_PART('year', OrderPlaced)::INTEGER AS SalesYear, SUM(saleValue) AS TotalSales
+                FROM allSaleValues
+                WHERE OrderPlaced IS NOT NULL
+                GROUP BY StaffID, DATE_PART('year', OrderPlaced)
+            ) x ON x.StaffID = r.StaffID AND x.SalesYear = r.SalesYear
+            WHERE COALESCE(r.TotalSales, 0) <> COALESCE(x.TotalSales, 0);
+
+        -- Backfill the rollups from the order history
+        CALL rebuildProductSales();
+        CALL rebuildStaffYearlySales();
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (0, 'placeOrder, reserveStock, sales rollups and set-based purging');
+    END;
+    $migration$;
+
+COMMIT;
@@ -0,0 +1,45 @@
+-- Migration 1 - keys and indexes for order lines, staff links, collections and deliveries
+-- For databases created from schema.sql before these were added, after 000_rollups_and_place_order.sql.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/001_keys_and_indexes.sql
+-- Adding the primary keys fails if an order has two collection or delivery rows, or is linked to the same
+-- member of staff twice - remove the duplicates and run it again.
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS schema_version (
+    Version         INTEGER NOT NULL,
+    Description     VARCHAR(100) NOT NULL,
+    AppliedOn       TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (Version)
+);
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 1) THEN
+            RAISE NOTICE 'Migration 1 has already been applied';
+            RETURN;
+        END IF;
+
+        ALTER TABLE deliveries ADD PRIMARY KEY (OrderID);
+        ALTER TABLE collections ADD PRIMARY KEY (OrderID);
+        ALTER TABLE staff_orders ADD PRIMARY KEY (OrderID, StaffID);
+
+        CREATE INDEX IF NOT EXISTS order_products_order ON order_products (OrderID, ProductID) INCLUDE (ProductQuantity);
+        CREATE INDEX IF NOT EXISTS order_products_product ON order_products (ProductID, OrderID) INCLUDE (ProductQuantity);
+        CREATE INDEX IF NOT EXISTS staff_orders_staff ON staff_orders (StaffID, OrderID);
+        CREATE INDEX IF NOT EXISTS collections_date ON collections (CollectionDate, OrderID);
+        CREATE INDEX IF NOT EXISTS orders_placed ON orders (OrderPlaced);
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (1, 'Keys and indexes for order lines, staff links, collections and deliveries');
+    END;
+    $$;
+
+COMMIT;
+
+ANALYZE order_products;
+ANALYZE staff_orders;
+ANALYZE collections;
+ANALYZE deliveries;
+ANALYZE orders;
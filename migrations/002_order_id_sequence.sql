@@ -0,0 +1,74 @@
+-- Migration 2 - a sequence of its own for order IDs, and order IDs chosen by the client
+-- Order IDs used to come from ProductIDSequence, one nextval per order inside insertOrder. OrderIDAllocator now
+-- reserves them a block at a time from OrderIDSequence and passes each one in to placeOrder.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/002_order_id_sequence.sql
+
+BEGIN;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 2) THEN
+            RAISE NOTICE 'Migration 2 has already been applied';
+            RETURN;
+        END IF;
+
+        -- Carry on after every ID that has been handed out, whichever way it was
+        CREATE SEQUENCE IF NOT EXISTS OrderIDSequence START 1 INCREMENT BY 1;
+        PERFORM setval('OrderIDSequence', GREATEST(
+            (SELECT COALESCE(MAX(OrderID), 0) FROM orders),
+            (SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM ProductIDSequence),
+            1), true);
+
+        -- The new versions take an extra argument, so the old ones have to go rather than be replaced
+        DROP FUNCTION IF EXISTS placeOrder(VARCHAR, DATE, INTEGER, INTEGER, INTEGER[], INTEGER[], VARCHAR, VARCHAR,
+            VARCHAR, VARCHAR, VARCHAR, DATE);
+        DROP FUNCTION IF EXISTS insertOrder(VARCHAR, DATE, INTEGER, INTEGER);
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (2, 'OrderIDSequence, and order IDs chosen by the client');
+    END;
+    $$;
+
+-- As in schema.sql
+CREATE OR REPLACE FUNCTION insertOrder(orderType VARCHAR, orderPlaced DATE, orderCompleted INTEGER, staffID INTEGER,
+        orderID INTEGER DEFAULT NULL)
+    RETURNS INTEGER LANGUAGE plpgsql AS
+    $$
+    DECLARE
+        newID INTEGER;
+    BEGIN
+        INSERT INTO orders (OrderID, OrderType, OrderCompleted, orderPlaced) VALUES (COALESCE(insertOrder.orderID, nextval('OrderIDSequence')), orderType, orderCompleted, orderPlaced) RETURNING orders.OrderID INTO newID;
+        CALL insertStaffOrder(staffID, newID);
+        RETURN newID;
+    END;
+    $$;
+
+CREATE OR REPLACE FUNCTION placeOrder(orderType VARCHAR, orderPlaced DATE, orderCompleted INTEGER, staffID INTEGER,
+        productIDs INTEGER[], quantities INTEGER[], fName VARCHAR, lName VARCHAR, house VARCHAR, street VARCHAR,
+        city VARCHAR, dueDate DATE, orderID INTEGER DEFAULT NULL)
+    RETURNS TABLE (placedOrderID INTEGER, placedProductID INTEGER, newStockAmount INTEGER) LANGUAGE plpgsql AS
+    $$
+    DECLARE
+        newID INTEGER;
+    BEGIN
+        newID := insertOrder(orderType, orderPlaced, orderCompleted, staffID, placeOrder.orderID);
+
+        INSERT INTO order_products (OrderID, ProductID, ProductQuantity)
+            SELECT newID, p.id, p.quantity FROM unnest(productIDs, quantities) AS p(id, quantity);
+
+        IF orderType = 'Collection' THEN
+            CALL insertCollection(newID, fName, lName, dueDate);
+        ELSIF orderType = 'Delivery' THEN
+            CALL insertDelivery(newID, fName, lName, house, street, city, dueDate);
+        END IF;
+
+        RETURN QUERY
+            SELECT newID, i.ProductID, i.ProductStockAmount
+            FROM unnest(productIDs) WITH ORDINALITY AS p(id, n)
+            INNER JOIN inventory i ON i.ProductID = p.id
+            ORDER BY p.n;
+    END;
+    $$;
+
+COMMIT;
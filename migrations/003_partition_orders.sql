@@ -0,0 +1,485 @@
+-- Migration 3 - orders and order_products partitioned by the year the order was placed, with an archive
+-- Both tables are rebuilt as partitioned tables and every row is copied across, so the tills should be closed
+-- while it runs. staff_orders, collections and deliveries gain an OrderPlaced column to go with their OrderID.
+-- Every order needs an OrderPlaced first - the migration stops if any doesn't have one. Safe to run more than once:
+--     psql deptstore -f migrations/003_partition_orders.sql
+
+BEGIN;
+
+-- As in schema.sql - the DO block below needs it
+CREATE OR REPLACE PROCEDURE createOrderYear(yr INTEGER)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        IF to_regclass('orders_y' || yr) IS NOT NULL THEN
+            RETURN;
+        END IF;
+        EXECUTE format('CREATE TABLE %I PARTITION OF orders FOR VALUES FROM (%L) TO (%L)',
+            'orders_y' || yr, make_date(yr, 1, 1), make_date(yr + 1, 1, 1));
+        EXECUTE format('CREATE TABLE %I PARTITION OF order_products FOR VALUES FROM (%L) TO (%L)',
+            'order_products_y' || yr, make_date(yr, 1, 1), make_date(yr + 1, 1, 1));
+    END;
+    $$;
+
+CREATE OR REPLACE FUNCTION orderPlacedOf(id INTEGER) RETURNS DATE AS $$
+    SELECT OrderPlaced FROM orders WHERE OrderID = id;
+    $$
+    LANGUAGE sql STABLE;
+
+CREATE OR REPLACE FUNCTION fillOrderPlaced() RETURNS TRIGGER AS $fillOrderPlacedTrigger$
+    BEGIN
+        IF NEW.OrderPlaced IS NULL THEN
+            NEW.OrderPlaced := orderPlacedOf(NEW.OrderID);
+        END IF;
+        RETURN NEW;
+    END;
+    $fillOrderPlacedTrigger$
+    LANGUAGE plpgsql;
+
+DO $$
+    DECLARE
+        undated BIGINT;
+        firstYear INTEGER;
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 3) THEN
+            RAISE NOTICE 'Migration 3 has already been applied';
+            RETURN;
+        END IF;
+
+        SELECT COUNT(*) INTO undated FROM orders WHERE OrderPlaced IS NULL;
+        IF undated > 0 THEN
+            RAISE EXCEPTION '% orders have no OrderPlaced - give them one before partitioning', undated;
+        END IF;
+
+        -- The views are rebuilt below, against the new tables
+        DROP VIEW IF EXISTS staffYearlySalesDrift, productSalesDrift, year20kItems, highestSellingProductSellersView,
+            uncollectedCollectionsView, allSaleValues CASCADE;
+
+        -- Move the old tables out of the way. Dropping the key on orders drops every foreign key that uses it,
+        -- and the index names are wanted for the new tables
+        ALTER TABLE orders RENAME TO orders_unpartitioned;
+        ALTER TABLE order_products RENAME TO order_products_unpartitioned;
+        ALTER TABLE orders_unpartitioned DROP CONSTRAINT orders_pkey CASCADE;
+        DROP INDEX IF EXISTS orders_placed, order_products_order, order_products_product;
+
+        CREATE TABLE orders (
+            OrderID        INTEGER NOT NULL,
+            OrderType      VARCHAR(30) NOT NULL,
+            OrderCompleted INTEGER NOT NULL,
+            OrderPlaced    DATE NOT NULL,
+            PRIMARY KEY (OrderID, OrderPlaced),
+            CONSTRAINT order_type_cons CHECK (OrderTYPE='InStore' OR OrderType='Collection' OR OrderType='Delivery'),
+            CONSTRAINT order_comp_cons CHECK (OrderCompleted = 0 OR OrderCompleted = 1)
+        ) PARTITION BY RANGE (OrderPlaced);
+
+        CREATE TABLE order_products (
+            OrderID         INTEGER NOT NULL,
+            ProductID       INTEGER NOT NULL,
+            ProductQuantity INTEGER NOT NULL,
+            OrderPlaced     DATE NOT NULL,
+            FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders(OrderID, OrderPlaced) ON DELETE CASCADE,
+            FOREIGN KEY (ProductID) REFERENCES inventory(ProductID) ON DELETE CASCADE
+        ) PARTITION BY RANGE (OrderPlaced);
+
+        CREATE TABLE orders_default PARTITION OF orders DEFAULT;
+        CREATE TABLE order_products_default PARTITION OF order_products DEFAULT;
+
+        -- Every year there are orders for, and up to two years from now
+        SELECT LEAST(2000, COALESCE(MIN(DATE_PART('year', OrderPlaced))::INTEGER, 2000)) INTO firstYear
+            FROM orders_unpartitioned;
+        FOR yr IN firstYear .. DATE_PART('year', CURRENT_DATE)::INTEGER + 2 LOOP
+            CALL createOrderYear(yr);
+        END LOOP;
+
+        -- The triggers aren't on the new tables yet, so the copy leaves stock and the rollups as they are
+        INSERT INTO orders (OrderID, OrderType, OrderCompleted, OrderPlaced)
+            SELECT OrderID, OrderType, OrderCompleted, OrderPlaced FROM orders_unpartitioned;
+        INSERT INTO order_products (OrderID, ProductID, ProductQuantity, OrderPlaced)
+            SELECT op.OrderID, op.ProductID, op.ProductQuantity, o.OrderPlaced
+            FROM order_products_unpartitioned op
+            INNER JOIN orders_unpartitioned o ON o.OrderID = op.OrderID;
+
+        DROP TABLE order_products_unpartitioned;
+        DROP TABLE orders_unpartitioned;
+
+        CREATE INDEX order_products_order ON order_products (OrderID, ProductID) INCLUDE (ProductQuantity);
+        CREATE INDEX order_products_product ON order_products (ProductID, OrderID) INCLUDE (ProductQuantity);
+        CREATE INDEX orders_placed ON orders (OrderPlaced);
+
+        CREATE TRIGGER orderProductsTrigger AFTER INSERT OR UPDATE
+            ON order_products
+            FOR EACH ROW EXECUTE FUNCTION checkValidOrderProduct();
+        CREATE TRIGGER removeOrders BEFORE DELETE
+            ON order_products
+            FOR EACH ROW EXECUTE FUNCTION addUncollectedStock();
+        CREATE TRIGGER removeOrderSalesTrigger BEFORE DELETE
+            ON orders
+            FOR EACH ROW EXECUTE FUNCTION removeOrderSales();
+
+        -- The tables that refer to an order now refer to it by (OrderID, OrderPlaced)
+        ALTER TABLE staff_orders ADD COLUMN IF NOT EXISTS OrderPlaced DATE;
+        UPDATE staff_orders so SET OrderPlaced = o.OrderPlaced FROM orders o WHERE o.OrderID = so.OrderID;
+        DELETE FROM staff_orders WHERE OrderPlaced IS NULL;
+        ALTER TABLE staff_orders ALTER COLUMN OrderPlaced SET NOT NULL,
+            ADD FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders(OrderID, OrderPlaced) ON DELETE CASCADE;
+
+        ALTER TABLE collections ADD COLUMN IF NOT EXISTS OrderPlaced DATE;
+        UPDATE collections c SET OrderPlaced = o.OrderPlaced FROM orders o WHERE o.OrderID = c.OrderID;
+        DELETE FROM collections WHERE OrderPlaced IS NULL;
+        ALTER TABLE collections ALTER COLUMN OrderPlaced SET NOT NULL,
+            ADD FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders(OrderID, OrderPlaced) ON DELETE CASCADE;
+
+        ALTER TABLE deliveries ADD COLUMN IF NOT EXISTS OrderPlaced DATE;
+        UPDATE deliveries d SET OrderPlaced = o.OrderPlaced FROM orders o WHERE o.OrderID = d.OrderID;
+        DELETE FROM deliveries WHERE OrderPlaced IS NULL;
+        ALTER TABLE deliveries ALTER COLUMN OrderPlaced SET NOT NULL,
+            ADD FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders(OrderID, OrderPlaced);
+
+        CREATE TRIGGER fillOrderPlacedTrigger BEFORE INSERT
+            ON staff_orders
+            FOR EACH ROW EXECUTE FUNCTION fillOrderPlaced();
+        CREATE TRIGGER fillOrderPlacedTrigger BEFORE INSERT
+            ON collections
+            FOR EACH ROW EXECUTE FUNCTION fillOrderPlaced();
+        CREATE TRIGGER fillOrderPlacedTrigger BEFORE INSERT
+            ON deliveries
+            FOR EACH ROW EXECUTE FUNCTION fillOrderPlaced();
+
+        CREATE TABLE orders_archive (
+            LIKE orders INCLUDING CONSTRAINTS,
+            PRIMARY KEY (OrderID, OrderPlaced)
+        ) PARTITION BY RANGE (OrderPlaced);
+        CREATE TABLE order_products_archive (
+            LIKE order_products,
+            FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders_archive(OrderID, OrderPlaced),
+            FOREIGN KEY (ProductID) REFERENCES inventory(ProductID) ON DELETE CASCADE
+        ) PARTITION BY RANGE (OrderPlaced);
+        CREATE TABLE staff_orders_archive (
+            LIKE staff_orders,
+            PRIMARY KEY (OrderID, StaffID),
+            FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders_archive(OrderID, OrderPlaced)
+        );
+        CREATE TABLE collections_archive (
+            LIKE collections,
+            PRIMARY KEY (OrderID),
+            FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders_archive(OrderID, OrderPlaced)
+        );
+        CREATE TABLE deliveries_archive (
+            LIKE deliveries,
+            PRIMARY KEY (OrderID),
+            FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders_archive(OrderID, OrderPlaced)
+        );
+        CREATE INDEX order_products_archive_product ON order_products_archive (ProductID, OrderID) INCLUDE (ProductQuantity);
+        CREATE INDEX staff_orders_archive_staff ON staff_orders_archive (StaffID, OrderID);
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (3, 'Orders and order lines partitioned by year, with an archive');
+    END;
+    $$;
+
+-- As in schema.sql
+CREATE OR REPLACE FUNCTION insertOrder(orderType VARCHAR, orderPlaced DATE, orderCompleted INTEGER, staffID INTEGER,
+        orderID INTEGER DEFAULT NULL)
+    RETURNS INTEGER LANGUAGE plpgsql AS
+    $$ 
+    DECLARE
+        newID INTEGER; 
+    BEGIN 
+        INSERT INTO orders (OrderID, OrderType, OrderCompleted, orderPlaced) VALUES (COALESCE(insertOrder.orderID, nextval('OrderIDSequence')), orderType, orderCompleted, orderPlaced) RETURNING orders.OrderID INTO newID;
+        INSERT INTO staff_orders (StaffID, OrderID, OrderPlaced) VALUES (staffID, newID, orderPlaced);
+        RETURN newID; 
+    END; 
+    $$; 
+
+CREATE OR REPLACE PROCEDURE insertOrderProduct(ordID INTEGER, prodID INTEGER, prodQuantity INTEGER)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO order_products (OrderID, ProductID, ProductQuantity, OrderPlaced) VALUES (ordID, prodID, prodQuantity, orderPlacedOf(ordID)); 
+    END;
+    $$;
+
+CREATE OR REPLACE FUNCTION archiveOrdersBefore(cutoffYear INTEGER) RETURNS TABLE(archivedYear INTEGER, archivedOrders BIGINT) AS $$
+    DECLARE
+        yr INTEGER;
+        fk NAME;
+        fromDate DATE;
+        toDate DATE;
+    BEGIN
+        PERFORM set_config('invmgmt.bulk_maintenance', 'on', true);
+
+        FOR yr IN
+            SELECT substring(c.relname FROM 9)::INTEGER FROM pg_inherits h
+            INNER JOIN pg_class c ON c.oid = h.inhrelid
+            WHERE h.inhparent = 'orders'::regclass AND c.relname ~ '^orders_y[0-9]{4}$'
+            AND substring(c.relname FROM 9)::INTEGER < cutoffYear
+            ORDER BY 1
+        LOOP
+            fromDate := make_date(yr, 1, 1);
+            toDate := make_date(yr + 1, 1, 1);
+
+            -- Collections still waiting to be collected keep their year live
+            IF EXISTS (SELECT 1 FROM orders WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate AND OrderCompleted = 0) THEN
+                RAISE NOTICE 'Not archiving % - some of its orders have not been completed', yr;
+                CONTINUE;
+            END IF;
+
+            -- The lines first, dropping their key to the live orders so that those can be detached too
+            EXECUTE format('ALTER TABLE order_products DETACH PARTITION %I', 'order_products_y' || yr);
+            FOR fk IN
+                SELECT conname FROM pg_constraint
+                WHERE conrelid = ('order_products_y' || yr)::regclass AND contype = 'f' AND confrelid = 'orders'::regclass
+            LOOP
+                EXECUTE format('ALTER TABLE %I DROP CONSTRAINT %I', 'order_products_y' || yr, fk);
+            END LOOP;
+
+            INSERT INTO staff_orders_archive SELECT * FROM staff_orders WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            DELETE FROM staff_orders WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            INSERT INTO collections_archive SELECT * FROM collections WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            DELETE FROM collections WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            INSERT INTO deliveries_archive SELECT * FROM deliveries WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            DELETE FROM deliveries WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+
+            EXECUTE format('ALTER TABLE orders DETACH PARTITION %I', 'orders_y' || yr);
+            EXECUTE format('ALTER TABLE orders_archive ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                'orders_y' || yr, fromDate, toDate);
+            EXECUTE format('ALTER TABLE order_products_archive ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                'order_products_y' || yr, fromDate, toDate);
+
+            archivedYear := yr;
+            EXECUTE format('SELECT COUNT(*) FROM %I', 'orders_y' || yr) INTO archivedOrders;
+            RETURN NEXT;
+        END LOOP;
+    END;
+    $$
+    LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION placeOrder(orderType VARCHAR, orderPlaced DATE, orderCompleted INTEGER, staffID INTEGER,
+        productIDs INTEGER[], quantities INTEGER[], fName VARCHAR, lName VARCHAR, house VARCHAR, street VARCHAR,
+        city VARCHAR, dueDate DATE, orderID INTEGER DEFAULT NULL)
+    RETURNS TABLE (placedOrderID INTEGER, placedProductID INTEGER, newStockAmount INTEGER) LANGUAGE plpgsql AS
+    $$
+    DECLARE
+        newID INTEGER;
+    BEGIN
+        newID := insertOrder(orderType, orderPlaced, orderCompleted, staffID, placeOrder.orderID);
+
+        INSERT INTO order_products (OrderID, ProductID, ProductQuantity, OrderPlaced)
+            SELECT newID, p.id, p.quantity, orderPlaced FROM unnest(productIDs, quantities) AS p(id, quantity);
+
+        -- Given OrderPlaced rather than leaving fillOrderPlaced to look it up
+        IF orderType = 'Collection' THEN
+            INSERT INTO collections (OrderID, FName, LName, CollectionDate, OrderPlaced) VALUES (newID, fName, lName, dueDate, orderPlaced);
+        ELSIF orderType = 'Delivery' THEN
+            INSERT INTO deliveries (OrderID, FName, LName, House, Street, City, DeliveryDate, OrderPlaced)
+                VALUES (newID, fName, lName, house, street, city, dueDate, orderPlaced);
+        END IF;
+
+        RETURN QUERY
+            SELECT newID, i.ProductID, i.ProductStockAmount
+            FROM unnest(productIDs) WITH ORDINALITY AS p(id, n)
+            INNER JOIN inventory i ON i.ProductID = p.id
+            ORDER BY p.n;
+    END;
+    $$;
+
+CREATE OR REPLACE FUNCTION cancelUncollectedOrders(orderIDs INTEGER[]) RETURNS TABLE(cancelledOrderID INTEGER) AS $$
+    DECLARE
+        cancelled INTEGER[];
+    BEGIN
+        PERFORM set_config('invmgmt.bulk_maintenance', 'on', true);
+
+        cancelled := ARRAY(
+            SELECT o.OrderID FROM orders o
+            WHERE o.OrderID = ANY(orderIDs)
+            AND o.OrderCompleted = 0
+            AND EXISTS (SELECT 1 FROM collections c WHERE c.OrderID = o.OrderID)
+            ORDER BY o.OrderID
+            FOR UPDATE OF o);
+
+        -- Take the orders off the staff totals while we can still tell which year they belong to
+        UPDATE staff_yearly_sales r SET TotalSales = r.TotalSales - s.value
+        FROM (
+            SELECT so.StaffID, DATE_PART('year', op.OrderPlaced) AS SalesYear, SUM(op.ProductQuantity * i.ProductPrice) AS value
+            FROM staff_orders so
+            INNER JOIN order_products op ON op.OrderID = so.OrderID AND op.OrderPlaced = so.OrderPlaced
+            INNER JOIN inventory i ON i.ProductID = op.ProductID
+            WHERE so.OrderID = ANY(cancelled)
+            GROUP BY so.StaffID, DATE_PART('year', op.OrderPlaced)
+        ) s
+        WHERE r.StaffID = s.StaffID AND r.SalesYear = s.SalesYear;
+
+        -- One restock and one sales adjustment per product, however many lines the chunk had
+        WITH lines AS (
+            DELETE FROM order_products WHERE OrderID = ANY(cancelled)
+            RETURNING ProductID, ProductQuantity
+        ), units AS (
+            SELECT ProductID, SUM(ProductQuantity) AS quantity FROM lines GROUP BY ProductID
+        ), restocked AS (
+            UPDATE inventory i SET ProductStockAmount = i.ProductStockAmount + u.quantity
+            FROM units u WHERE i.ProductID = u.ProductID
+        )
+        UPDATE product_sales p SET UnitsSold = p.UnitsSold - u.quantity
+        FROM units u WHERE p.ProductID = u.ProductID;
+
+        -- Collections and staff links go with the orders by ON DELETE CASCADE
+        RETURN QUERY DELETE FROM orders WHERE OrderID = ANY(cancelled) RETURNING OrderID;
+
+        PERFORM set_config('invmgmt.bulk_maintenance', 'off', true);
+    END;
+    $$
+    LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION purgeUncollectedOrders(removeFromDate DATE, chunkSize INTEGER) RETURNS TABLE(cancelledOrderID INTEGER) AS $$
+    BEGIN
+        RETURN QUERY SELECT * FROM cancelUncollectedOrders(ARRAY(
+            SELECT o.OrderID FROM orders o
+            INNER JOIN collections c ON c.OrderID = o.OrderID AND c.OrderPlaced = o.OrderPlaced
+            WHERE removeFromDate - INTERVAL '8 days' >= c.CollectionDate
+            AND o.OrderCompleted = 0
+            ORDER BY c.CollectionDate, o.OrderID
+            LIMIT chunkSize));
+    END;
+    $$
+    LANGUAGE plpgsql;
+
+CREATE OR REPLACE PROCEDURE rebuildProductSales()
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        LOCK TABLE order_products IN SHARE MODE;
+        DELETE FROM product_sales;
+        INSERT INTO product_sales (ProductID, UnitsSold)
+            SELECT i.ProductID, COALESCE(SUM(op.ProductQuantity), 0)
+            FROM inventory i
+            LEFT OUTER JOIN allOrderLines op ON op.ProductID = i.ProductID
+            GROUP BY i.ProductID;
+    END;
+    $$;
+
+CREATE OR REPLACE PROCEDURE adjustStaffYearlySales(ordID INTEGER, prodID INTEGER, units INTEGER)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT so.StaffID, DATE_PART('year', so.OrderPlaced), units * i.ProductPrice
+            FROM staff_orders so
+            INNER JOIN inventory i ON i.ProductID = prodID
+            WHERE so.OrderID = ordID
+        ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+    END;
+    $$;
+
+CREATE OR REPLACE PROCEDURE adjustStaffOrderSales(staffMember INTEGER, ordID INTEGER, direction INTEGER)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT staffMember, DATE_PART('year', op.OrderPlaced), direction * SUM(op.ProductQuantity * i.ProductPrice)
+            FROM order_products op
+            INNER JOIN inventory i ON i.ProductID = op.ProductID
+            WHERE op.OrderID = ordID
+            GROUP BY op.OrderPlaced
+        ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+    END;
+    $$;
+
+CREATE OR REPLACE FUNCTION revalueProductSales() RETURNS TRIGGER AS $productPriceTrigger$
+    DECLARE
+        priceChange NUMERIC;
+    BEGIN
+        IF TG_OP = 'DELETE' THEN
+            priceChange := -OLD.ProductPrice;
+        ELSE
+            priceChange := NEW.ProductPrice - OLD.ProductPrice;
+        END IF;
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT so.StaffID, DATE_PART('year', op.OrderPlaced), priceChange * SUM(op.ProductQuantity)
+            FROM allOrderLines op
+            INNER JOIN allStaffOrders so ON so.OrderID = op.OrderID AND so.OrderPlaced = op.OrderPlaced
+            WHERE op.ProductID = OLD.ProductID
+            GROUP BY so.StaffID, DATE_PART('year', op.OrderPlaced)
+        ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+        IF TG_OP = 'DELETE' THEN
+            RETURN OLD;
+        END IF;
+        RETURN NEW;
+    END;
+    $productPriceTrigger$
+    LANGUAGE plpgsql;
+
+CREATE OR REPLACE VIEW allOrderLines AS
+    SELECT OrderID, ProductID, ProductQuantity, OrderPlaced FROM order_products
+    UNION ALL
+    SELECT OrderID, ProductID, ProductQuantity, OrderPlaced FROM order_products_archive;
+
+CREATE OR REPLACE VIEW allStaffOrders AS
+    SELECT StaffID, OrderID, OrderPlaced FROM staff_orders
+    UNION ALL
+    SELECT StaffID, OrderID, OrderPlaced FROM staff_orders_archive;
+
+CREATE OR REPLACE VIEW allSaleValues AS 
+    SELECT so.StaffID, op.OrderPlaced, op.productID, op.OrderID AS id, op.ProductQuantity * i.ProductPrice AS saleValue 
+    FROM allOrderLines op 
+    INNER JOIN inventory i ON op.ProductID = i.ProductID
+    INNER JOIN allStaffOrders so ON op.OrderID = so.OrderID AND op.OrderPlaced = so.OrderPlaced;
+
+CREATE OR REPLACE VIEW uncollectedCollectionsView AS 
+    SELECT o.OrderID AS OrderID, c.CollectionDate FROM orders o
+    INNER JOIN collections c
+    ON o.OrderID = c.OrderID AND o.OrderPlaced = c.OrderPlaced
+    WHERE o.OrderCompleted = 0;
+
+CREATE OR REPLACE VIEW highestSellingProductSellersView AS
+    SELECT staffID, fName, lName, ProductID, SUM(ProductQuantity) AS unitsSold, SUM(salePrice) AS valOfProductSold FROM (
+        SELECT s.StaffID, s.fName as fName, s.lName AS lName, i.ProductID AS ProductID, op.ProductQuantity AS ProductQuantity, op.ProductQuantity * i.ProductPrice AS salePrice
+        FROM allOrderLines op 
+        INNER JOIN allStaffOrders so ON op.OrderID = so.OrderID AND op.OrderPlaced = so.OrderPlaced
+        INNER JOIN inventory i ON i.ProductID = op.ProductID
+        INNER JOIN staff s ON so.StaffID = s.StaffID
+        INNER JOIN (
+            SELECT ProductID FROM profitableProductsView 
+            WHERE totalValue > 20000
+        ) x ON i.ProductID = x.ProductID
+    ) AS x 
+    GROUP BY staffID, fName, lName, ProductID;
+
+CREATE OR REPLACE VIEW year20kItems AS 
+    SELECT DATE_PART('year',orderPlaced) AS yr, ProductID, SUM(saleValue) 
+    FROM allSaleValues 
+    GROUP BY yr, ProductID
+    HAVING SUM(saleValue) > 20000;
+
+CREATE OR REPLACE FUNCTION year20kItemsIn(year INTEGER) RETURNS TABLE(yr INTEGER, ProductID INTEGER, sum NUMERIC) AS $$
+    SELECT year, v.ProductID, SUM(v.saleValue)
+    FROM allSaleValues v
+    WHERE v.OrderPlaced >= make_date(year, 1, 1) AND v.OrderPlaced < make_date(year + 1, 1, 1)
+    GROUP BY v.ProductID
+    HAVING SUM(v.saleValue) > 20000;
+    $$
+    LANGUAGE sql STABLE;
+
+CREATE OR REPLACE VIEW productSalesDrift AS
+    SELECT i.ProductID, COALESCE(p.UnitsSold, 0) AS rollupUnits, COALESCE(x.units, 0) AS actualUnits
+    FROM inventory i
+    LEFT OUTER JOIN product_sales p ON p.ProductID = i.ProductID
+    LEFT OUTER JOIN (
+        SELECT ProductID, SUM(ProductQuantity) AS units
+        FROM allOrderLines
+        GROUP BY ProductID
+    ) x ON x.ProductID = i.ProductID
+    WHERE COALESCE(p.UnitsSold, 0) <> COALESCE(x.units, 0);
+
+CREATE OR REPLACE VIEW staffYearlySalesDrift AS
+    SELECT COALESCE(r.StaffID, x.StaffID) AS StaffID, COALESCE(r.SalesYear, x.SalesYear) AS SalesYear,
+        COALESCE(r.TotalSales, 0) AS rollupSales, COALESCE(x.TotalSales, 0) AS actualSales
+    FROM staff_yearly_sales r
+    FULL OUTER JOIN (
+        SELECT StaffID, DATE_PART('year', OrderPlaced)::INTEGER AS SalesYear, SUM(saleValue) AS TotalSales
+        FROM allSaleValues
+        WHERE OrderPlaced IS NOT NULL
+        GROUP BY StaffID, DATE_PART('year', OrderPlaced)
+    ) x ON x.StaffID = r.StaffID AND x.SalesYear = r.SalesYear
+    WHERE COALESCE(r.TotalSales, 0) <> COALESCE(x.TotalSales, 0);
+
+COMMIT;
@@ -0,0 +1,89 @@
+-- Migration 4 - write versions of the tables the reports read, for ReportCache
+-- Every statement that changes order_products, staff_orders, inventory or staff bumps that table's counter in
+-- table_versions, and a cached report is only shown again while the counters of the tables it reads are unchanged.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/004_table_versions.sql
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS table_versions (
+    TableName       VARCHAR(30) NOT NULL,
+    Shard           INTEGER NOT NULL,
+    Version         BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (TableName, Shard)
+);
+
+-- As in schema.sql
+CREATE OR REPLACE PROCEDURE bumpTableVersion(changedTable VARCHAR)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO table_versions (TableName, Shard, Version) VALUES (changedTable, pg_backend_pid() % 8, 1)
+        ON CONFLICT (TableName, Shard) DO UPDATE SET Version = table_versions.Version + 1;
+    END;
+    $$;
+
+CREATE OR REPLACE FUNCTION tableVersionChanged() RETURNS TRIGGER AS $tableVersionTrigger$
+    BEGIN
+        CALL bumpTableVersion(TG_TABLE_NAME::VARCHAR);
+        RETURN NULL;
+    END;
+    $tableVersionTrigger$
+    LANGUAGE plpgsql;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 4) THEN
+            RAISE NOTICE 'Migration 4 has already been applied';
+            RETURN;
+        END IF;
+
+        CREATE TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+            ON order_products
+            FOR EACH STATEMENT EXECUTE FUNCTION tableVersionChanged();
+        CREATE TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+            ON staff_orders
+            FOR EACH STATEMENT EXECUTE FUNCTION tableVersionChanged();
+        CREATE TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+            ON inventory
+            FOR EACH STATEMENT EXECUTE FUNCTION tableVersionChanged();
+        CREATE TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+            ON staff
+            FOR EACH STATEMENT EXECUTE FUNCTION tableVersionChanged();
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (4, 'Write versions of the tables the reports read');
+    END;
+    $$;
+
+CREATE OR REPLACE PROCEDURE rebuildProductSales()
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        LOCK TABLE order_products IN SHARE MODE;
+        DELETE FROM product_sales;
+        INSERT INTO product_sales (ProductID, UnitsSold)
+            SELECT i.ProductID, COALESCE(SUM(op.ProductQuantity), 0)
+            FROM inventory i
+            LEFT OUTER JOIN allOrderLines op ON op.ProductID = i.ProductID
+            GROUP BY i.ProductID;
+        CALL bumpTableVersion('order_products');
+    END;
+    $$;
+
+CREATE OR REPLACE PROCEDURE rebuildStaffYearlySales()
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        LOCK TABLE order_products, staff_orders IN SHARE MODE;
+        DELETE FROM staff_yearly_sales;
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT StaffID, DATE_PART('year', OrderPlaced), SUM(saleValue)
+            FROM allSaleValues
+            WHERE OrderPlaced IS NOT NULL
+            GROUP BY StaffID, DATE_PART('year', OrderPlaced);
+        CALL bumpTableVersion('staff_orders');
+    END;
+    $$;
+
+COMMIT;
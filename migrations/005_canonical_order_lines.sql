@@ -0,0 +1,55 @@
+-- Migration 5 - placeOrder merges an order's lines by product and inserts them in ProductID order
+-- Two orders for the same products then always lock the inventory rows in the same order, so they wait for each
+-- other instead of deadlocking, and a product listed twice only fires orderProductsTrigger once.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/005_canonical_order_lines.sql
+
+BEGIN;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 5) THEN
+            RAISE NOTICE 'Migration 5 has already been applied';
+            RETURN;
+        END IF;
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (5, 'placeOrder merges and sorts its lines by product');
+    END;
+    $$;
+
+-- As in schema.sql
+CREATE OR REPLACE FUNCTION placeOrder(orderType VARCHAR, orderPlaced DATE, orderCompleted INTEGER, staffID INTEGER,
+        productIDs INTEGER[], quantities INTEGER[], fName VARCHAR, lName VARCHAR, house VARCHAR, street VARCHAR,
+        city VARCHAR, dueDate DATE, orderID INTEGER DEFAULT NULL)
+    RETURNS TABLE (placedOrderID INTEGER, placedProductID INTEGER, newStockAmount INTEGER) LANGUAGE plpgsql AS
+    $$
+    DECLARE
+        newID INTEGER;
+    BEGIN
+        newID := insertOrder(orderType, orderPlaced, orderCompleted, staffID, placeOrder.orderID);
+
+        -- One line per product in ProductID order, so that concurrent orders lock their inventory rows in the same
+        -- order and can't deadlock, and a product listed twice only fires orderProductsTrigger once
+        INSERT INTO order_products (OrderID, ProductID, ProductQuantity, OrderPlaced)
+            SELECT newID, p.id, SUM(p.quantity), orderPlaced FROM unnest(productIDs, quantities) AS p(id, quantity)
+            GROUP BY p.id
+            ORDER BY p.id;
+
+        -- Given OrderPlaced rather than leaving fillOrderPlaced to look it up
+        IF orderType = 'Collection' THEN
+            INSERT INTO collections (OrderID, FName, LName, CollectionDate, OrderPlaced) VALUES (newID, fName, lName, dueDate, orderPlaced);
+        ELSIF orderType = 'Delivery' THEN
+            INSERT INTO deliveries (OrderID, FName, LName, House, Street, City, DeliveryDate, OrderPlaced)
+                VALUES (newID, fName, lName, house, street, city, dueDate, orderPlaced);
+        END IF;
+
+        RETURN QUERY
+            SELECT newID, i.ProductID, i.ProductStockAmount
+            FROM unnest(productIDs) WITH ORDINALITY AS p(id, n)
+            INNER JOIN inventory i ON i.ProductID = p.id
+            ORDER BY p.n;
+    END;
+    $$;
+
+COMMIT;
@@ -0,0 +1,48 @@
+-- Migration 6 - inventory only sends catalog notifications for new, removed, renamed and repriced products
+-- Every committing transaction that has sent a notification takes the same lock on the notification queue, so
+-- notifying on every stock change made each sale queue behind the others at commit. The Catalog now reads stock
+-- levels in batches instead. Databases from before the Catalog get notifyCatalogChange and the staff trigger too.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/006_catalog_notify_columns.sql
+
+BEGIN;
+
+-- As in schema.sql
+CREATE OR REPLACE FUNCTION notifyCatalogChange() RETURNS TRIGGER AS $catalogTrigger$
+    DECLARE
+        changed JSONB;
+    BEGIN
+        IF TG_OP = 'DELETE' THEN
+            changed := to_jsonb(OLD);
+        ELSE
+            changed := to_jsonb(NEW);
+        END IF;
+        PERFORM pg_notify(LOWER(TG_TABLE_NAME) || '_changes', (changed || jsonb_build_object('op', TG_OP))::TEXT);
+        RETURN NULL;
+    END;
+    $catalogTrigger$
+    LANGUAGE plpgsql;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 6) THEN
+            RAISE NOTICE 'Migration 6 has already been applied';
+            RETURN;
+        END IF;
+
+        DROP TRIGGER IF EXISTS inventoryCatalogTrigger ON inventory;
+        CREATE TRIGGER inventoryCatalogTrigger AFTER INSERT OR DELETE OR UPDATE OF ProductDesc, ProductPrice
+            ON inventory
+            FOR EACH ROW EXECUTE FUNCTION notifyCatalogChange();
+
+        DROP TRIGGER IF EXISTS staffCatalogTrigger ON staff;
+        CREATE TRIGGER staffCatalogTrigger AFTER INSERT OR UPDATE OR DELETE
+            ON staff
+            FOR EACH ROW EXECUTE FUNCTION notifyCatalogChange();
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (6, 'Catalog notifications only for product changes, not stock');
+    END;
+    $$;
+
+COMMIT;
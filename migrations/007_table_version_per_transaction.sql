@@ -0,0 +1,80 @@
+-- Migration 7 - table versions are bumped once per transaction at commit, on a row per connection
+-- The statement triggers of migration 4 bumped a version for every statement, and held the row of one of 8 shards
+-- locked until commit, so with more than 8 connections the tills queued on it, and orders under REPEATABLE READ
+-- or SERIALIZABLE failed with 40001 when another till had bumped the same row. Old shards 0-7 are kept, as their
+-- counts are part of each table's total.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/007_table_version_per_transaction.sql
+
+BEGIN;
+
+-- As in schema.sql
+CREATE OR REPLACE PROCEDURE bumpTableVersion(changedTable VARCHAR)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO table_versions (TableName, Shard, Version) VALUES (changedTable, pg_backend_pid(), 1)
+        ON CONFLICT (TableName, Shard) DO UPDATE SET Version = table_versions.Version + 1;
+    END;
+    $$;
+
+CREATE OR REPLACE FUNCTION tableVersionChanged() RETURNS TRIGGER AS $tableVersionTrigger$
+    BEGIN
+        IF current_setting('invmgmt.version_bumped_' || TG_TABLE_NAME, true) = 'on' THEN
+            RETURN NULL;
+        END IF;
+        PERFORM set_config('invmgmt.version_bumped_' || TG_TABLE_NAME, 'on', true);
+        CALL bumpTableVersion(TG_TABLE_NAME::VARCHAR);
+        RETURN NULL;
+    END;
+    $tableVersionTrigger$
+    LANGUAGE plpgsql;
+
+CREATE OR REPLACE PROCEDURE compactTableVersions()
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        WITH gone AS (
+            DELETE FROM table_versions v
+            WHERE v.Shard <> 0 AND NOT EXISTS (SELECT 1 FROM pg_stat_activity a WHERE a.pid = v.Shard)
+            RETURNING v.TableName, v.Version)
+        INSERT INTO table_versions (TableName, Shard, Version)
+            SELECT TableName, 0, SUM(Version) FROM gone GROUP BY TableName
+        ON CONFLICT (TableName, Shard) DO UPDATE SET Version = table_versions.Version + EXCLUDED.Version;
+    END;
+    $$;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 7) THEN
+            RAISE NOTICE 'Migration 7 has already been applied';
+            RETURN;
+        END IF;
+
+        DROP TRIGGER IF EXISTS tableVersionTrigger ON order_products;
+        DROP TRIGGER IF EXISTS tableVersionTrigger ON staff_orders;
+        DROP TRIGGER IF EXISTS tableVersionTrigger ON inventory;
+        DROP TRIGGER IF EXISTS tableVersionTrigger ON staff;
+        CREATE CONSTRAINT TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+            ON order_products
+            DEFERRABLE INITIALLY DEFERRED
+            FOR EACH ROW EXECUTE FUNCTION tableVersionChanged();
+        CREATE CONSTRAINT TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+            ON staff_orders
+            DEFERRABLE INITIALLY DEFERRED
+            FOR EACH ROW EXECUTE FUNCTION tableVersionChanged();
+        CREATE CONSTRAINT TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+            ON inventory
+            DEFERRABLE INITIALLY DEFERRED
+            FOR EACH ROW EXECUTE FUNCTION tableVersionChanged();
+        CREATE CONSTRAINT TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+            ON staff
+            DEFERRABLE INITIALLY DEFERRED
+            FOR EACH ROW EXECUTE FUNCTION tableVersionChanged();
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (7, 'Table versions bumped once per transaction, on a row per connection');
+    END;
+    $$;
+
+COMMIT;
@@ -0,0 +1,22 @@
+-- Migration 8 - drops reduceStock
+-- placeOrder takes stock through reserveStock, which never oversells, and nothing has called reduceStock since.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/008_drop_reduce_stock.sql
+
+BEGIN;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 8) THEN
+            RAISE NOTICE 'Migration 8 has already been applied';
+            RETURN;
+        END IF;
+
+        DROP PROCEDURE IF EXISTS reduceStock(INTEGER, INTEGER);
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (8, 'reduceStock dropped, as orders take stock through reserveStock');
+    END;
+    $$;
+
+COMMIT;
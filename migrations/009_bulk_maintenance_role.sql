@@ -0,0 +1,42 @@
+-- Migration 9 - only members of invmgmt_maintenance can switch the row triggers off
+-- Any session can set invmgmt.bulk_maintenance, so a till could set it and place orders without the stock check.
+-- bulkMaintenance now also asks for membership of invmgmt_maintenance. cancelUncollectedOrders runs as its owner,
+-- so the tills can still cancel collections. Run this as the owner of the schema, who is made a member, and grant
+-- the role to whoever runs BulkImport, e.g. GRANT invmgmt_maintenance TO importer;
+-- Safe to run more than once:
+--     psql deptstore -f migrations/009_bulk_maintenance_role.sql
+
+BEGIN;
+
+DO $$
+    BEGIN
+        IF NOT EXISTS (SELECT 1 FROM pg_roles WHERE rolname = 'invmgmt_maintenance') THEN
+            CREATE ROLE invmgmt_maintenance NOLOGIN;
+        END IF;
+    END;
+    $$;
+GRANT invmgmt_maintenance TO CURRENT_USER;
+
+-- As in schema.sql
+CREATE OR REPLACE FUNCTION bulkMaintenance() RETURNS BOOLEAN AS $$
+    SELECT CASE WHEN current_setting('invmgmt.bulk_maintenance', true) = 'on'
+        THEN pg_has_role(current_user, 'invmgmt_maintenance', 'MEMBER')
+        ELSE false END;
+    $$
+    LANGUAGE sql;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 9) THEN
+            RAISE NOTICE 'Migration 9 has already been applied';
+            RETURN;
+        END IF;
+
+        ALTER FUNCTION cancelUncollectedOrders(INTEGER[]) SECURITY DEFINER SET search_path = public, pg_temp;
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (9, 'Only invmgmt_maintenance can switch the row triggers off');
+    END;
+    $$;
+
+COMMIT;
@@ -0,0 +1,53 @@
+-- Migration 10 - staff sales are only adjusted while the order still exists
+-- Deleting an order takes its value off staff_yearly_sales in removeOrderSales, before the order goes. The
+-- versions of adjustStaffYearlySales and adjustStaffOrderSales from migration 3 then took it off again from the
+-- cascades to its lines and staff links, so removeOldOrders and any other DELETE FROM orders counted it twice.
+-- Run java Assignment --check-rollups afterwards, and --rebuild-rollups if orders were deleted in the meantime.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/010_staff_sales_existing_orders.sql
+
+BEGIN;
+
+-- As in schema.sql
+CREATE OR REPLACE PROCEDURE adjustStaffYearlySales(ordID INTEGER, prodID INTEGER, units INTEGER)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT so.StaffID, DATE_PART('year', so.OrderPlaced), units * i.ProductPrice
+            FROM staff_orders so
+            INNER JOIN inventory i ON i.ProductID = prodID
+            WHERE so.OrderID = ordID
+            AND EXISTS (SELECT 1 FROM orders o WHERE o.OrderID = ordID AND o.OrderPlaced = so.OrderPlaced)
+        ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+    END;
+    $$;
+
+CREATE OR REPLACE PROCEDURE adjustStaffOrderSales(staffMember INTEGER, ordID INTEGER, direction INTEGER)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT staffMember, DATE_PART('year', op.OrderPlaced), direction * SUM(op.ProductQuantity * i.ProductPrice)
+            FROM order_products op
+            INNER JOIN inventory i ON i.ProductID = op.ProductID
+            WHERE op.OrderID = ordID
+            AND EXISTS (SELECT 1 FROM orders o WHERE o.OrderID = ordID AND o.OrderPlaced = op.OrderPlaced)
+            GROUP BY op.OrderPlaced
+        ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+    END;
+    $$;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 10) THEN
+            RAISE NOTICE 'Migration 10 has already been applied';
+            RETURN;
+        END IF;
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (10, 'Staff sales only adjusted while the order exists');
+    END;
+    $$;
+
+COMMIT;
@@ -0,0 +1,100 @@
+-- Migration 11 - cancelUncollectedOrders checks the 8 days itself, and only the tills may call it
+-- Migration 9 made it run as its owner, but anyone could call it, with any order IDs, and only its caller
+-- purgeUncollectedOrders checked that the orders were 8 days past their collection date - so any session could
+-- cancel and restock a pending collection early. It now takes the date to count from, and never counts from
+-- later than today. EXECUTE is revoked from PUBLIC and granted to invmgmt_till, which the tills log in as members
+-- of, e.g. GRANT invmgmt_till TO till;
+-- Safe to run more than once:
+--     psql deptstore -f migrations/011_cancel_uncollected_for_tills.sql
+
+BEGIN;
+
+DO $$
+    BEGIN
+        IF NOT EXISTS (SELECT 1 FROM pg_roles WHERE rolname = 'invmgmt_till') THEN
+            CREATE ROLE invmgmt_till NOLOGIN;
+        END IF;
+    END;
+    $$;
+
+-- As in schema.sql
+DROP FUNCTION IF EXISTS cancelUncollectedOrders(INTEGER[]);
+CREATE OR REPLACE FUNCTION cancelUncollectedOrders(orderIDs INTEGER[], removeFromDate DATE) RETURNS TABLE(cancelledOrderID INTEGER) AS $$
+    DECLARE
+        cancelled INTEGER[];
+    BEGIN
+        PERFORM set_config('invmgmt.bulk_maintenance', 'on', true);
+
+        cancelled := ARRAY(
+            SELECT o.OrderID FROM orders o
+            WHERE o.OrderID = ANY(orderIDs)
+            AND o.OrderCompleted = 0
+            AND EXISTS (
+                SELECT 1 FROM collections c
+                WHERE c.OrderID = o.OrderID
+                AND LEAST(removeFromDate, CURRENT_DATE) - INTERVAL '8 days' >= c.CollectionDate)
+            ORDER BY o.OrderID
+            FOR UPDATE OF o);
+
+        -- Take the orders off the staff totals while we can still tell which year they belong to
+        UPDATE staff_yearly_sales r SET TotalSales = r.TotalSales - s.value
+        FROM (
+            SELECT so.StaffID, DATE_PART('year', op.OrderPlaced) AS SalesYear, SUM(op.ProductQuantity * i.ProductPrice) AS value
+            FROM staff_orders so
+            INNER JOIN order_products op ON op.OrderID = so.OrderID AND op.OrderPlaced = so.OrderPlaced
+            INNER JOIN inventory i ON i.ProductID = op.ProductID
+            WHERE so.OrderID = ANY(cancelled)
+            GROUP BY so.StaffID, DATE_PART('year', op.OrderPlaced)
+        ) s
+        WHERE r.StaffID = s.StaffID AND r.SalesYear = s.SalesYear;
+
+        -- One restock and one sales adjustment per product, however many lines the chunk had
+        WITH lines AS (
+            DELETE FROM order_products WHERE OrderID = ANY(cancelled)
+            RETURNING ProductID, ProductQuantity
+        ), units AS (
+            SELECT ProductID, SUM(ProductQuantity) AS quantity FROM lines GROUP BY ProductID
+        ), restocked AS (
+            UPDATE inventory i SET ProductStockAmount = i.ProductStockAmount + u.quantity
+            FROM units u WHERE i.ProductID = u.ProductID
+        )
+        UPDATE product_sales p SET UnitsSold = p.UnitsSold - u.quantity
+        FROM units u WHERE p.ProductID = u.ProductID;
+
+        -- Collections and staff links go with the orders by ON DELETE CASCADE
+        RETURN QUERY DELETE FROM orders WHERE OrderID = ANY(cancelled) RETURNING OrderID;
+
+        PERFORM set_config('invmgmt.bulk_maintenance', 'off', true);
+    END;
+    $$
+    LANGUAGE plpgsql SECURITY DEFINER SET search_path = public, pg_temp;
+
+CREATE OR REPLACE FUNCTION purgeUncollectedOrders(removeFromDate DATE, chunkSize INTEGER) RETURNS TABLE(cancelledOrderID INTEGER) AS $$
+    BEGIN
+        RETURN QUERY SELECT * FROM cancelUncollectedOrders(ARRAY(
+            SELECT o.OrderID FROM orders o
+            INNER JOIN collections c ON c.OrderID = o.OrderID AND c.OrderPlaced = o.OrderPlaced
+            WHERE LEAST(removeFromDate, CURRENT_DATE) - INTERVAL '8 days' >= c.CollectionDate
+            AND o.OrderCompleted = 0
+            ORDER BY c.CollectionDate, o.OrderID
+            LIMIT chunkSize), removeFromDate);
+    END;
+    $$
+    LANGUAGE plpgsql;
+
+REVOKE EXECUTE ON FUNCTION cancelUncollectedOrders(INTEGER[], DATE) FROM PUBLIC;
+GRANT EXECUTE ON FUNCTION cancelUncollectedOrders(INTEGER[], DATE) TO invmgmt_till;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 11) THEN
+            RAISE NOTICE 'Migration 11 has already been applied';
+            RETURN;
+        END IF;
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (11, 'cancelUncollectedOrders checks the 8 days itself, for tills only');
+    END;
+    $$;
+
+COMMIT;
@@ -0,0 +1,42 @@
+-- Migration 12 - the order_products stock check stands aside for bulk loads
+-- BulkImport checks and takes the stock for all its lines at once, so checkValidOrderProduct must not take it
+-- again for each line. Run this after 009, which limits bulkMaintenance to members of invmgmt_maintenance.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/012_bulk_import_stock_check.sql
+
+BEGIN;
+
+-- As in schema.sql
+CREATE OR REPLACE FUNCTION checkValidOrderProduct() RETURNS TRIGGER AS $orderProductsTrigger$
+    BEGIN
+        -- Bulk loads check and take the stock for all their lines at once
+        IF bulkMaintenance() THEN
+            RETURN NEW;
+        END IF;
+        IF reserveStock(NEW.ProductID, NEW.ProductQuantity) IS NULL THEN
+            RAISE EXCEPTION 'Insufficient stock to execute order';
+        END IF;
+        IF TG_OP = 'UPDATE' THEN
+            CALL adjustProductSales(OLD.ProductID, -OLD.ProductQuantity);
+            CALL adjustStaffYearlySales(OLD.OrderID, OLD.ProductID, -OLD.ProductQuantity);
+        END IF;
+        CALL adjustProductSales(NEW.ProductID, NEW.ProductQuantity);
+        CALL adjustStaffYearlySales(NEW.OrderID, NEW.ProductID, NEW.ProductQuantity);
+        RETURN NEW;
+    END; 
+    $orderProductsTrigger$
+    LANGUAGE plpgsql;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 12) THEN
+            RAISE NOTICE 'Migration 12 has already been applied';
+            RETURN;
+        END IF;
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (12, 'The order_products stock check stands aside for bulk loads');
+    END;
+    $$;
+
+COMMIT;
@@ -0,0 +1,45 @@
+-- Migration 13 - stock_changes, for the Catalog to follow stock levels
+-- The Catalog used to read the stock of every product each second. Every change to a stock level now adds a row
+-- to stock_changes, and the Catalog only reads the products in the rows added since its last read.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/013_stock_changes.sql
+
+BEGIN;
+
+-- As in schema.sql
+CREATE OR REPLACE FUNCTION recordStockChange() RETURNS TRIGGER AS $stockChangeTrigger$
+    BEGIN
+        INSERT INTO stock_changes (ProductID) VALUES (NEW.ProductID);
+        RETURN NULL;
+    END;
+    $stockChangeTrigger$
+    LANGUAGE plpgsql;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 13) THEN
+            RAISE NOTICE 'Migration 13 has already been applied';
+            RETURN;
+        END IF;
+
+        CREATE SEQUENCE IF NOT EXISTS StockChangeSequence START 1 INCREMENT BY 1;
+        CREATE TABLE IF NOT EXISTS stock_changes (
+            ChangeID        BIGINT NOT NULL DEFAULT nextval('StockChangeSequence'),
+            TxID            BIGINT NOT NULL DEFAULT txid_current(),
+            ProductID       INTEGER NOT NULL,
+            PRIMARY KEY (ChangeID)
+        );
+        CREATE INDEX IF NOT EXISTS stock_changes_tx ON stock_changes (TxID, ProductID);
+
+        DROP TRIGGER IF EXISTS stockChangeTrigger ON inventory;
+        CREATE TRIGGER stockChangeTrigger AFTER UPDATE OF ProductStockAmount
+            ON inventory
+            FOR EACH ROW WHEN (OLD.ProductStockAmount IS DISTINCT FROM NEW.ProductStockAmount)
+            EXECUTE FUNCTION recordStockChange();
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (13, 'stock_changes, for the Catalog to follow stock levels');
+    END;
+    $$;
+
+COMMIT;
@@ -0,0 +1,26 @@
+-- Migration 14 - drops insertOrderProduct, insertStaffOrder, insertCollection and insertDelivery
+-- placeOrder inserts an order's lines, staff link and collection or delivery itself, and nothing has called
+-- these since. insertOrder stays, as placeOrder still uses it.
+-- Safe to run more than once:
+--     psql deptstore -f migrations/014_drop_order_helpers.sql
+
+BEGIN;
+
+DO $$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM schema_version WHERE Version = 14) THEN
+            RAISE NOTICE 'Migration 14 has already been applied';
+            RETURN;
+        END IF;
+
+        DROP PROCEDURE IF EXISTS insertOrderProduct(INTEGER, INTEGER, INTEGER);
+        DROP PROCEDURE IF EXISTS insertStaffOrder(INTEGER, INTEGER);
+        DROP PROCEDURE IF EXISTS insertCollection(INTEGER, VARCHAR, VARCHAR, DATE);
+        DROP PROCEDURE IF EXISTS insertDelivery(INTEGER, VARCHAR, VARCHAR, VARCHAR, VARCHAR, VARCHAR, DATE);
+
+        INSERT INTO schema_version (Version, Description)
+            VALUES (14, 'Unused order helper procedures dropped');
+    END;
+    $$;
+
+COMMIT;
@@ -1,5 +1,8 @@
+-- Order IDs. Clients reserve them a block at a time (see OrderIDAllocator), so an ID can be known before the
+-- order is sent
 DROP SEQUENCE IF EXISTS ProductIDSequence;
-CREATE SEQUENCE ProductIDSequence START 1 INCREMENT BY 1;
+DROP SEQUENCE IF EXISTS OrderIDSequence;
+CREATE SEQUENCE OrderIDSequence START 1 INCREMENT BY 1;
 
 --- ############################ ---         
 --- #########  TABLES  ######### ---
@@ -14,25 +17,35 @@ CREATE TABLE inventory (
     PRIMARY KEY (ProductID)
 );
 
+-- Partitioned by the year the order was placed (see createOrderYear), so that option 8 and the yearly views only
+-- read the years they ask about, tills only ever write to this year's partition, and whole years can be moved
+-- to the archive (see archiveOrdersBefore) without deleting anything. The primary key has to include the
+-- partition key - OrderID on its own is still unique, as every ID comes from OrderIDSequence
 DROP TABLE orders CASCADE;
 CREATE TABLE orders (
     OrderID        INTEGER NOT NULL, 
     OrderType      VARCHAR(30) NOT NULL , -- 'InStore', 'Collection' or 'Delivery' - should be an enum ideally
     OrderCompleted INTEGER NOT NULL, -- 0 or 1 
-    OrderPlaced    DATE, 
-    PRIMARY KEY (OrderID), 
+    OrderPlaced    DATE NOT NULL, 
+    PRIMARY KEY (OrderID, OrderPlaced), 
     CONSTRAINT order_type_cons CHECK (OrderTYPE='InStore' OR OrderType='Collection' OR OrderType='Delivery'),
     CONSTRAINT order_comp_cons CHECK (OrderCompleted = 0 OR OrderCompleted = 1)
-);
+) PARTITION BY RANGE (OrderPlaced);
 
+-- Each line carries its order's OrderPlaced so that the lines are partitioned the same way as the orders
 DROP TABLE order_products CASCADE;
 CREATE TABLE order_products (
     OrderID         INTEGER NOT NULL,
     ProductID       INTEGER NOT NULL, 
     ProductQuantity INTEGER NOT NULL, 
-    FOREIGN KEY (OrderID) REFERENCES orders(OrderID) ON DELETE CASCADE, 
+    OrderPlaced     DATE NOT NULL,
+    FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders(OrderID, OrderPlaced) ON DELETE CASCADE, 
     FOREIGN KEY (ProductID) REFERENCES inventory(ProductID) ON DELETE CASCADE
-);
+) PARTITION BY RANGE (OrderPlaced);
+
+-- Anything placed in a year that has no partition of its own
+CREATE TABLE orders_default PARTITION OF orders DEFAULT;
+CREATE TABLE order_products_default PARTITION OF order_products DEFAULT;
 
 DROP TABLE deliveries CASCADE;
 CREATE TABLE deliveries (
@@ -43,7 +56,9 @@ CREATE TABLE deliveries (
     Street        VARCHAR(30) NOT NULL,
     City          VARCHAR(30) NOT NULL,
     DeliveryDate  date,
-    FOREIGN KEY (OrderID) REFERENCES orders(OrderID)
+    OrderPlaced   DATE NOT NULL, -- Filled in from orders by fillOrderPlaced
+    PRIMARY KEY (OrderID),
+    FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders(OrderID, OrderPlaced)
 );
 
 DROP TABLE collections CASCADE;
@@ -52,7 +67,9 @@ CREATE TABLE collections (
     FName           VARCHAR(30) NOT NULL,
     LName           VARCHAR(30) NOT NULL,
     CollectionDate  date,
-    FOREIGN KEY (OrderID) REFERENCES orders(OrderID) ON DELETE CASCADE
+    OrderPlaced     DATE NOT NULL, -- Filled in from orders by fillOrderPlaced
+    PRIMARY KEY (OrderID),
+    FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders(OrderID, OrderPlaced) ON DELETE CASCADE
 );
 
 DROP TABLE staff CASCADE;
@@ -67,49 +84,173 @@ DROP TABLE staff_orders CASCADE;
 CREATE TABLE staff_orders (
     StaffID         INTEGER NOT NULL,
     OrderID         INTEGER NOT NULL,
+    OrderPlaced     DATE NOT NULL, -- Filled in from orders by fillOrderPlaced
+    PRIMARY KEY (OrderID, StaffID),
     FOREIGN KEY (StaffID) REFERENCES staff(StaffID) ON DELETE CASCADE,
-    FOREIGN KEY (OrderID) REFERENCES orders(OrderID) ON DELETE CASCADE 
+    FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders(OrderID, OrderPlaced) ON DELETE CASCADE 
+);
+
+-- Running total of units sold per product, kept up to date by the order_products triggers so that the
+-- product reports don't have to re-aggregate every order line ever sold. There is one row per inventory row
+DROP TABLE product_sales CASCADE;
+CREATE TABLE product_sales (
+    ProductID       INTEGER NOT NULL,
+    UnitsSold       BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (ProductID),
+    FOREIGN KEY (ProductID) REFERENCES inventory(ProductID) ON DELETE CASCADE
+);
+
+-- Total value sold by each member of staff in each year, kept up to date by triggers on the tables it is built
+-- from so that options 6 and 8 don't have to rebuild it from the whole order history.
+-- No foreign key to staff - when staff are deleted the staff_orders trigger still needs to write here
+DROP TABLE staff_yearly_sales CASCADE;
+CREATE TABLE staff_yearly_sales (
+    StaffID         INTEGER NOT NULL,
+    SalesYear       INTEGER NOT NULL,
+    TotalSales      NUMERIC(14,2) NOT NULL DEFAULT 0,
+    PRIMARY KEY (StaffID, SalesYear)
+);
+
+CREATE INDEX staff_yearly_sales_year ON staff_yearly_sales (SalesYear, TotalSales);
+
+-- Indexes for the joins in the views and for ON DELETE CASCADE, which would otherwise scan the whole child table
+-- for every order or product deleted. order_products has no primary key because an order can list the same
+-- product twice. The INCLUDE columns let the report joins answer from the index alone
+CREATE INDEX order_products_order ON order_products (OrderID, ProductID) INCLUDE (ProductQuantity);
+CREATE INDEX order_products_product ON order_products (ProductID, OrderID) INCLUDE (ProductQuantity);
+CREATE INDEX staff_orders_staff ON staff_orders (StaffID, OrderID);
+CREATE INDEX collections_date ON collections (CollectionDate, OrderID);
+CREATE INDEX orders_placed ON orders (OrderPlaced);
+
+-- Which migrations in migrations/ have been applied. This script creates the latest schema, so it records them all
+DROP TABLE schema_version CASCADE;
+CREATE TABLE schema_version (
+    Version         INTEGER NOT NULL,
+    Description     VARCHAR(100) NOT NULL,
+    AppliedOn       TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (Version)
+);
+
+INSERT INTO schema_version (Version, Description) VALUES (0, 'placeOrder, reserveStock, sales rollups and set-based purging');
+INSERT INTO schema_version (Version, Description) VALUES (1, 'Keys and indexes for order lines, staff links, collections and deliveries');
+INSERT INTO schema_version (Version, Description) VALUES (2, 'OrderIDSequence, and order IDs chosen by the client');
+INSERT INTO schema_version (Version, Description) VALUES (3, 'Orders and order lines partitioned by year, with an archive');
+INSERT INTO schema_version (Version, Description) VALUES (4, 'Write versions of the tables the reports read');
+INSERT INTO schema_version (Version, Description) VALUES (5, 'placeOrder merges and sorts its lines by product');
+INSERT INTO schema_version (Version, Description) VALUES (6, 'Catalog notifications only for product changes, not stock');
+INSERT INTO schema_version (Version, Description) VALUES (7, 'Table versions bumped once per transaction, on a row per connection');
+INSERT INTO schema_version (Version, Description) VALUES (8, 'reduceStock dropped, as orders take stock through reserveStock');
+INSERT INTO schema_version (Version, Description) VALUES (9, 'Only invmgmt_maintenance can switch the row triggers off');
+INSERT INTO schema_version (Version, Description) VALUES (10, 'Staff sales only adjusted while the order exists');
+INSERT INTO schema_version (Version, Description) VALUES (11, 'cancelUncollectedOrders checks the 8 days itself, for tills only');
+INSERT INTO schema_version (Version, Description) VALUES (12, 'The order_products stock check stands aside for bulk loads');
+INSERT INTO schema_version (Version, Description) VALUES (13, 'stock_changes, for the Catalog to follow stock levels');
+INSERT INTO schema_version (Version, Description) VALUES (14, 'Unused order helper procedures dropped');
+
+-- A counter per table that goes up with every transaction that changes it, so that ReportCache can tell whether a
+-- cached report is still current. Each table's counter is spread over a row per connection (Shard is the backend
+-- pid, 0 for connections that have gone), so that tills committing at the same time don't queue on one row - its
+-- version is the sum of its rows
+DROP TABLE table_versions CASCADE;
+CREATE TABLE table_versions (
+    TableName       VARCHAR(30) NOT NULL,
+    Shard           INTEGER NOT NULL,
+    Version         BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (TableName, Shard)
+);
+
+-- A row for every change to a product's stock level, which the Catalog reads to follow them (see
+-- recordStockChange). TxID is the transaction that made the change, and is the Catalog's high-water mark. The
+-- Catalog also deletes the rows it has finished with
+DROP TABLE stock_changes CASCADE;
+DROP SEQUENCE IF EXISTS StockChangeSequence;
+CREATE SEQUENCE StockChangeSequence START 1 INCREMENT BY 1;
+CREATE TABLE stock_changes (
+    ChangeID        BIGINT NOT NULL DEFAULT nextval('StockChangeSequence'),
+    TxID            BIGINT NOT NULL DEFAULT txid_current(),
+    ProductID       INTEGER NOT NULL,
+    PRIMARY KEY (ChangeID)
+);
+
+CREATE INDEX stock_changes_tx ON stock_changes (TxID, ProductID);
+
+-- Years of orders that archiveOrdersBefore has moved out of the live tables. The partitions of orders and
+-- order_products are attached here as they are; the staff links, collections and deliveries are moved across
+DROP TABLE orders_archive CASCADE;
+CREATE TABLE orders_archive (
+    LIKE orders INCLUDING CONSTRAINTS,
+    PRIMARY KEY (OrderID, OrderPlaced)
+) PARTITION BY RANGE (OrderPlaced);
+
+DROP TABLE order_products_archive CASCADE;
+CREATE TABLE order_products_archive (
+    LIKE order_products,
+    FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders_archive(OrderID, OrderPlaced),
+    FOREIGN KEY (ProductID) REFERENCES inventory(ProductID) ON DELETE CASCADE
+) PARTITION BY RANGE (OrderPlaced);
+
+DROP TABLE staff_orders_archive CASCADE;
+CREATE TABLE staff_orders_archive (
+    LIKE staff_orders,
+    PRIMARY KEY (OrderID, StaffID),
+    FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders_archive(OrderID, OrderPlaced)
+);
+
+DROP TABLE collections_archive CASCADE;
+CREATE TABLE collections_archive (
+    LIKE collections,
+    PRIMARY KEY (OrderID),
+    FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders_archive(OrderID, OrderPlaced)
+);
+
+DROP TABLE deliveries_archive CASCADE;
+CREATE TABLE deliveries_archive (
+    LIKE deliveries,
+    PRIMARY KEY (OrderID),
+    FOREIGN KEY (OrderID, OrderPlaced) REFERENCES orders_archive(OrderID, OrderPlaced)
 );
 
+CREATE INDEX order_products_archive_product ON order_products_archive (ProductID, OrderID) INCLUDE (ProductQuantity);
+CREATE INDEX staff_orders_archive_staff ON staff_orders_archive (StaffID, OrderID);
+
 --- ############################################ ---         
 --- #########  FUNCTIONS & PROCEDURES  ######### ---
 --- ############################################ --- 
 
--- Create a new order in orders and return its ID created by sequence
-CREATE OR REPLACE FUNCTION insertOrder(orderType VARCHAR, orderPlaced DATE, orderCompleted INTEGER, staffID INTEGER)
+-- Create a new order in orders and return its ID - the one given, which the client reserved from
+-- OrderIDSequence beforehand, or the next from the sequence if it is null
+CREATE OR REPLACE FUNCTION insertOrder(orderType VARCHAR, orderPlaced DATE, orderCompleted INTEGER, staffID INTEGER,
+        orderID INTEGER DEFAULT NULL)
     RETURNS INTEGER LANGUAGE plpgsql AS
     $$ 
     DECLARE
         newID INTEGER; 
     BEGIN 
-        INSERT INTO orders (OrderID, OrderType, OrderCompleted, orderPlaced) VALUES (nextval('ProductIDSequence'), orderType, orderCompleted, orderPlaced) RETURNING OrderID INTO newID;
-        CALL insertStaffOrder(staffID, newID);
+        INSERT INTO orders (OrderID, OrderType, OrderCompleted, orderPlaced) VALUES (COALESCE(insertOrder.orderID, nextval('OrderIDSequence')), orderType, orderCompleted, orderPlaced) RETURNING orders.OrderID INTO newID;
+        INSERT INTO staff_orders (StaffID, OrderID, OrderPlaced) VALUES (staffID, newID, orderPlaced);
         RETURN newID; 
     END; 
     $$; 
 
--- Create a new row in order products
--- Triggers checkValidOrderProduct call
-CREATE OR REPLACE PROCEDURE insertOrderProduct(ordID INTEGER, prodID INTEGER, prodQuantity INTEGER)
-    LANGUAGE plpgsql AS
-    $$
-    BEGIN
-        INSERT INTO order_products (OrderID, ProductID, ProductQuantity) VALUES (ordID, prodID, prodQuantity); 
-    END;
-    $$;
-
 -- Check that we have sufficient stock to process order for this item
 -- If so, reduce stock. If not, throw and exception to trigger rollback
+-- The check and the reduction happen in the one conditional UPDATE inside reserveStock, so two tills selling
+-- the same product can't both pass the check before either has reduced the stock
 CREATE OR REPLACE FUNCTION checkValidOrderProduct() RETURNS TRIGGER AS $orderProductsTrigger$
-    DECLARE
-    isSufficient BOOLEAN;
     BEGIN
-        SELECT sufficientStock(NEW.ProductID, NEW.ProductQuantity) INTO isSufficient;
-        IF NOT (isSufficient) THEN
+        -- Bulk loads check and take the stock for all their lines at once
+        IF bulkMaintenance() THEN
+            RETURN NEW;
+        END IF;
+        IF reserveStock(NEW.ProductID, NEW.ProductQuantity) IS NULL THEN
             RAISE EXCEPTION 'Insufficient stock to execute order';
-        ELSE 
-            CALL reduceStock(NEW.ProductID, NEW.ProductQuantity);
         END IF;
+        IF TG_OP = 'UPDATE' THEN
+            CALL adjustProductSales(OLD.ProductID, -OLD.ProductQuantity);
+            CALL adjustStaffYearlySales(OLD.OrderID, OLD.ProductID, -OLD.ProductQuantity);
+        END IF;
+        CALL adjustProductSales(NEW.ProductID, NEW.ProductQuantity);
+        CALL adjustStaffYearlySales(NEW.OrderID, NEW.ProductID, NEW.ProductQuantity);
         RETURN NEW;
     END; 
     $orderProductsTrigger$
@@ -133,6 +274,22 @@ CREATE OR REPLACE FUNCTION sufficientStock(id INTEGER, quantity INTEGER)
     END;
     $$;
 
+-- Atomically reduce the stock of a product if there is enough of it, returning the stock left
+-- Returns NULL without changing anything if there isn't enough. A concurrent order holding the row lock makes us
+-- wait, and the WHERE is then re-checked against its committed stock level, so we can never oversell
+CREATE OR REPLACE FUNCTION reserveStock(id INTEGER, quantity INTEGER)
+    RETURNS INTEGER LANGUAGE plpgsql AS
+    $$
+    DECLARE
+        remaining INTEGER;
+    BEGIN
+        UPDATE inventory SET ProductStockAmount = ProductStockAmount - quantity
+        WHERE ProductID = id AND ProductStockAmount >= quantity
+        RETURNING ProductStockAmount INTO remaining;
+        RETURN remaining;
+    END;
+    $$;
+
 -- Called in display inventory to show the stock amount for the required product
 CREATE OR REPLACE FUNCTION getQuantity(id INTEGER)
     RETURNS INTEGER LANGUAGE plpgsql AS
@@ -145,41 +302,157 @@ CREATE OR REPLACE FUNCTION getQuantity(id INTEGER)
     END;
     $$;
 
--- Reduce the stock of the given product in the inventory by given amount
-CREATE OR REPLACE PROCEDURE reduceStock(id INTEGER, soldQuantity INTEGER)
-    LANGUAGE plpgsql AS
+-- When an order was placed, which the tables that refer to an order need as part of its key. Has to look in
+-- every partition of orders, so the order functions pass OrderPlaced along instead where they can
+CREATE OR REPLACE FUNCTION orderPlacedOf(id INTEGER) RETURNS DATE AS $$
+    SELECT OrderPlaced FROM orders WHERE OrderID = id;
     $$
+    LANGUAGE sql STABLE;
+
+-- Lets staff_orders, collections and deliveries rows be inserted with just their OrderID, as before the
+-- partitioning
+CREATE OR REPLACE FUNCTION fillOrderPlaced() RETURNS TRIGGER AS $fillOrderPlacedTrigger$
     BEGIN
-        UPDATE inventory SET ProductStockAmount = ProductStockAmount - soldQuantity WHERE ProductID = id;     
+        IF NEW.OrderPlaced IS NULL THEN
+            NEW.OrderPlaced := orderPlacedOf(NEW.OrderID);
+        END IF;
+        RETURN NEW;
     END;
-    $$;
+    $fillOrderPlacedTrigger$
+    LANGUAGE plpgsql;
+
+CREATE TRIGGER fillOrderPlacedTrigger BEFORE INSERT
+    ON staff_orders
+    FOR EACH ROW EXECUTE FUNCTION fillOrderPlaced();
+
+CREATE TRIGGER fillOrderPlacedTrigger BEFORE INSERT
+    ON collections
+    FOR EACH ROW EXECUTE FUNCTION fillOrderPlaced();
 
--- Add a row to the staff orders table with the new order ID 
-CREATE OR REPLACE PROCEDURE insertStaffOrder(staffID INTEGER, orderID INTEGER)
+CREATE TRIGGER fillOrderPlacedTrigger BEFORE INSERT
+    ON deliveries
+    FOR EACH ROW EXECUTE FUNCTION fillOrderPlaced();
+
+-- Create the partitions of orders and order_products for a year, unless it already has them (live or archived)
+CREATE OR REPLACE PROCEDURE createOrderYear(yr INTEGER)
     LANGUAGE plpgsql AS
     $$
     BEGIN
-        INSERT INTO staff_orders (StaffID, OrderID) VALUES (staffID, orderID); 
+        IF to_regclass('orders_y' || yr) IS NOT NULL THEN
+            RETURN;
+        END IF;
+        EXECUTE format('CREATE TABLE %I PARTITION OF orders FOR VALUES FROM (%L) TO (%L)',
+            'orders_y' || yr, make_date(yr, 1, 1), make_date(yr + 1, 1, 1));
+        EXECUTE format('CREATE TABLE %I PARTITION OF order_products FOR VALUES FROM (%L) TO (%L)',
+            'order_products_y' || yr, make_date(yr, 1, 1), make_date(yr + 1, 1, 1));
     END;
     $$;
 
--- Create a new order in orders and return it's ID created by sequence
-CREATE OR REPLACE PROCEDURE insertCollection(orderID INTEGER, fName VARCHAR, lName VARCHAR, collectionDate DATE)
-    LANGUAGE plpgsql AS
-    $$ 
-    BEGIN 
-        INSERT INTO collections (orderID, FName, LName, CollectionDate) VALUES (orderID, fName, lName, collectionDate);
-    END; 
-    $$; 
+-- A partition for every year from 2000 to two years from now. Run java Assignment --archive to add later years
+DO $$
+    BEGIN
+        FOR yr IN 2000 .. DATE_PART('year', CURRENT_DATE)::INTEGER + 2 LOOP
+            CALL createOrderYear(yr);
+        END LOOP;
+    END;
+    $$;
 
--- Create a new order in orders and return it's ID created by sequence
-CREATE OR REPLACE PROCEDURE insertDelivery(orderID INTEGER, fName VARCHAR, lName VARCHAR, house VARCHAR, street VARCHAR, city VARCHAR, deliveryDate DATE)
-    LANGUAGE plpgsql AS
-    $$ 
-    BEGIN 
-        INSERT INTO deliveries (orderID, FName, LName, House, Street, City, DeliveryDate) VALUES (orderID, fName, lName, house, street, city, deliveryDate);
-    END; 
-    $$; 
+-- Move every year before cutoffYear whose orders have all been completed from the live tables to the archive.
+-- The partitions of orders and order_products are detached and attached to orders_archive and
+-- order_products_archive, so nothing is copied or deleted and the live tables are left with nothing to vacuum.
+-- Their staff links, collections and deliveries are moved across. The rollups aren't touched, so the lifetime
+-- reports come out the same, and the views read the archive as well as the live tables
+CREATE OR REPLACE FUNCTION archiveOrdersBefore(cutoffYear INTEGER) RETURNS TABLE(archivedYear INTEGER, archivedOrders BIGINT) AS $$
+    DECLARE
+        yr INTEGER;
+        fk NAME;
+        fromDate DATE;
+        toDate DATE;
+    BEGIN
+        PERFORM set_config('invmgmt.bulk_maintenance', 'on', true);
+
+        FOR yr IN
+            SELECT substring(c.relname FROM 9)::INTEGER FROM pg_inherits h
+            INNER JOIN pg_class c ON c.oid = h.inhrelid
+            WHERE h.inhparent = 'orders'::regclass AND c.relname ~ '^orders_y[0-9]{4}$'
+            AND substring(c.relname FROM 9)::INTEGER < cutoffYear
+            ORDER BY 1
+        LOOP
+            fromDate := make_date(yr, 1, 1);
+            toDate := make_date(yr + 1, 1, 1);
+
+            -- Collections still waiting to be collected keep their year live
+            IF EXISTS (SELECT 1 FROM orders WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate AND OrderCompleted = 0) THEN
+                RAISE NOTICE 'Not archiving % - some of its orders have not been completed', yr;
+                CONTINUE;
+            END IF;
+
+            -- The lines first, dropping their key to the live orders so that those can be detached too
+            EXECUTE format('ALTER TABLE order_products DETACH PARTITION %I', 'order_products_y' || yr);
+            FOR fk IN
+                SELECT conname FROM pg_constraint
+                WHERE conrelid = ('order_products_y' || yr)::regclass AND contype = 'f' AND confrelid = 'orders'::regclass
+            LOOP
+                EXECUTE format('ALTER TABLE %I DROP CONSTRAINT %I', 'order_products_y' || yr, fk);
+            END LOOP;
+
+            INSERT INTO staff_orders_archive SELECT * FROM staff_orders WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            DELETE FROM staff_orders WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            INSERT INTO collections_archive SELECT * FROM collections WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            DELETE FROM collections WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            INSERT INTO deliveries_archive SELECT * FROM deliveries WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+            DELETE FROM deliveries WHERE OrderPlaced >= fromDate AND OrderPlaced < toDate;
+
+            EXECUTE format('ALTER TABLE orders DETACH PARTITION %I', 'orders_y' || yr);
+            EXECUTE format('ALTER TABLE orders_archive ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                'orders_y' || yr, fromDate, toDate);
+            EXECUTE format('ALTER TABLE order_products_archive ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+                'order_products_y' || yr, fromDate, toDate);
+
+            archivedYear := yr;
+            EXECUTE format('SELECT COUNT(*) FROM %I', 'orders_y' || yr) INTO archivedOrders;
+            RETURN NEXT;
+        END LOOP;
+    END;
+    $$
+    LANGUAGE plpgsql;
+
+-- Place a whole order in one call - creates the order and its staff link, every order_products row and the
+-- collection/delivery row, then returns the new stock level of each product in the order.
+-- The order_products insert still fires orderProductsTrigger, so insufficient stock aborts the whole call.
+-- orderID is one the client has reserved from OrderIDSequence, or null to take the next one
+CREATE OR REPLACE FUNCTION placeOrder(orderType VARCHAR, orderPlaced DATE, orderCompleted INTEGER, staffID INTEGER,
+        productIDs INTEGER[], quantities INTEGER[], fName VARCHAR, lName VARCHAR, house VARCHAR, street VARCHAR,
+        city VARCHAR, dueDate DATE, orderID INTEGER DEFAULT NULL)
+    RETURNS TABLE (placedOrderID INTEGER, placedProductID INTEGER, newStockAmount INTEGER) LANGUAGE plpgsql AS
+    $$
+    DECLARE
+        newID INTEGER;
+    BEGIN
+        newID := insertOrder(orderType, orderPlaced, orderCompleted, staffID, placeOrder.orderID);
+
+        -- One line per product in ProductID order, so that concurrent orders lock their inventory rows in the same
+        -- order and can't deadlock, and a product listed twice only fires orderProductsTrigger once
+        INSERT INTO order_products (OrderID, ProductID, ProductQuantity, OrderPlaced)
+            SELECT newID, p.id, SUM(p.quantity), orderPlaced FROM unnest(productIDs, quantities) AS p(id, quantity)
+            GROUP BY p.id
+            ORDER BY p.id;
+
+        -- Given OrderPlaced rather than leaving fillOrderPlaced to look it up
+        IF orderType = 'Collection' THEN
+            INSERT INTO collections (OrderID, FName, LName, CollectionDate, OrderPlaced) VALUES (newID, fName, lName, dueDate, orderPlaced);
+        ELSIF orderType = 'Delivery' THEN
+            INSERT INTO deliveries (OrderID, FName, LName, House, Street, City, DeliveryDate, OrderPlaced)
+                VALUES (newID, fName, lName, house, street, city, dueDate, orderPlaced);
+        END IF;
+
+        RETURN QUERY
+            SELECT newID, i.ProductID, i.ProductStockAmount
+            FROM unnest(productIDs) WITH ORDINALITY AS p(id, n)
+            INNER JOIN inventory i ON i.ProductID = p.id
+            ORDER BY p.n;
+    END;
+    $$;
 
 -- Remove all orders that are 8 days older than the date provided
 CREATE OR REPLACE PROCEDURE removeOldOrders(removeFromDate DATE)
@@ -194,10 +467,116 @@ CREATE OR REPLACE PROCEDURE removeOldOrders(removeFromDate DATE)
     END;
     $$;
 
+-- Cancel a chunk of uncollected collection orders in one go. Each product is restocked and has its sales total
+-- reduced once for the whole chunk, rather than once per order line by the row triggers, which are switched off
+-- for this transaction. Orders that have been collected since they were chosen are skipped, and so are orders
+-- that aren't yet 8 days past their collection date - counted from removeFromDate, but never from later than today.
+-- Runs as its owner, who is in invmgmt_maintenance, so that the tills can call it without being able to switch the
+-- triggers off themselves (see bulkMaintenance). Only invmgmt_till may call it
+DROP FUNCTION IF EXISTS cancelUncollectedOrders(INTEGER[]);
+CREATE OR REPLACE FUNCTION cancelUncollectedOrders(orderIDs INTEGER[], removeFromDate DATE) RETURNS TABLE(cancelledOrderID INTEGER) AS $$
+    DECLARE
+        cancelled INTEGER[];
+    BEGIN
+        PERFORM set_config('invmgmt.bulk_maintenance', 'on', true);
+
+        cancelled := ARRAY(
+            SELECT o.OrderID FROM orders o
+            WHERE o.OrderID = ANY(orderIDs)
+            AND o.OrderCompleted = 0
+            AND EXISTS (
+                SELECT 1 FROM collections c
+                WHERE c.OrderID = o.OrderID
+                AND LEAST(removeFromDate, CURRENT_DATE) - INTERVAL '8 days' >= c.CollectionDate)
+            ORDER BY o.OrderID
+            FOR UPDATE OF o);
+
+        -- Take the orders off the staff totals while we can still tell which year they belong to
+        UPDATE staff_yearly_sales r SET TotalSales = r.TotalSales - s.value
+        FROM (
+            SELECT so.StaffID, DATE_PART('year', op.OrderPlaced) AS SalesYear, SUM(op.ProductQuantity * i.ProductPrice) AS value
+            FROM staff_orders so
+            INNER JOIN order_products op ON op.OrderID = so.OrderID AND op.OrderPlaced = so.OrderPlaced
+            INNER JOIN inventory i ON i.ProductID = op.ProductID
+            WHERE so.OrderID = ANY(cancelled)
+            GROUP BY so.StaffID, DATE_PART('year', op.OrderPlaced)
+        ) s
+        WHERE r.StaffID = s.StaffID AND r.SalesYear = s.SalesYear;
+
+        -- One restock and one sales adjustment per product, however many lines the chunk had
+        WITH lines AS (
+            DELETE FROM order_products WHERE OrderID = ANY(cancelled)
+            RETURNING ProductID, ProductQuantity
+        ), units AS (
+            SELECT ProductID, SUM(ProductQuantity) AS quantity FROM lines GROUP BY ProductID
+        ), restocked AS (
+            UPDATE inventory i SET ProductStockAmount = i.ProductStockAmount + u.quantity
+            FROM units u WHERE i.ProductID = u.ProductID
+        )
+        UPDATE product_sales p SET UnitsSold = p.UnitsSold - u.quantity
+        FROM units u WHERE p.ProductID = u.ProductID;
+
+        -- Collections and staff links go with the orders by ON DELETE CASCADE
+        RETURN QUERY DELETE FROM orders WHERE OrderID = ANY(cancelled) RETURNING OrderID;
+
+        PERFORM set_config('invmgmt.bulk_maintenance', 'off', true);
+    END;
+    $$
+    LANGUAGE plpgsql SECURITY DEFINER SET search_path = public, pg_temp;
+
+-- Cancel up to chunkSize of the collection orders that are 8 days older than the date provided, oldest first.
+-- Call it repeatedly, committing in between, until it returns no rows - each call only holds its locks for one chunk
+CREATE OR REPLACE FUNCTION purgeUncollectedOrders(removeFromDate DATE, chunkSize INTEGER) RETURNS TABLE(cancelledOrderID INTEGER) AS $$
+    BEGIN
+        RETURN QUERY SELECT * FROM cancelUncollectedOrders(ARRAY(
+            SELECT o.OrderID FROM orders o
+            INNER JOIN collections c ON c.OrderID = o.OrderID AND c.OrderPlaced = o.OrderPlaced
+            WHERE LEAST(removeFromDate, CURRENT_DATE) - INTERVAL '8 days' >= c.CollectionDate
+            AND o.OrderCompleted = 0
+            ORDER BY c.CollectionDate, o.OrderID
+            LIMIT chunkSize), removeFromDate);
+    END;
+    $$
+    LANGUAGE plpgsql;
+
+-- Only members of invmgmt_maintenance can switch the row triggers off. Any session can set
+-- invmgmt.bulk_maintenance, so the setting alone would let a till skip the stock check. Whoever creates the schema
+-- is made a member, and so owns cancelUncollectedOrders and can run --archive. Grant it to the role BulkImport
+-- logs in as, but not to the tills. The tills log in as members of invmgmt_till instead, which is all that may
+-- call cancelUncollectedOrders
+DO $$
+    BEGIN
+        IF NOT EXISTS (SELECT 1 FROM pg_roles WHERE rolname = 'invmgmt_maintenance') THEN
+            CREATE ROLE invmgmt_maintenance NOLOGIN;
+        END IF;
+        IF NOT EXISTS (SELECT 1 FROM pg_roles WHERE rolname = 'invmgmt_till') THEN
+            CREATE ROLE invmgmt_till NOLOGIN;
+        END IF;
+    END;
+    $$;
+GRANT invmgmt_maintenance TO CURRENT_USER;
+REVOKE EXECUTE ON FUNCTION cancelUncollectedOrders(INTEGER[], DATE) FROM PUBLIC;
+GRANT EXECUTE ON FUNCTION cancelUncollectedOrders(INTEGER[], DATE) TO invmgmt_till;
+
+-- True while a set-based operation such as cancelUncollectedOrders or BulkImport is maintaining stock and the
+-- rollups itself, so the row triggers should leave them alone. The setting is ignored unless the current user is
+-- in invmgmt_maintenance, which inside cancelUncollectedOrders is its owner
+CREATE OR REPLACE FUNCTION bulkMaintenance() RETURNS BOOLEAN AS $$
+    SELECT CASE WHEN current_setting('invmgmt.bulk_maintenance', true) = 'on'
+        THEN pg_has_role(current_user, 'invmgmt_maintenance', 'MEMBER')
+        ELSE false END;
+    $$
+    LANGUAGE sql;
+
 -- Triggered when we delete from order_products in opt 5 - adds items back to inventory
 CREATE OR REPLACE FUNCTION addUncollectedStock() RETURNS TRIGGER AS $removeOrders$
     BEGIN
+        IF bulkMaintenance() THEN
+            RETURN OLD;
+        END IF;
         UPDATE inventory SET ProductStockAmount = ProductStockAmount + OLD.ProductQuantity WHERE ProductID = OLD.ProductID;     
+        CALL adjustProductSales(OLD.ProductID, -OLD.ProductQuantity);
+        CALL adjustStaffYearlySales(OLD.OrderID, OLD.ProductID, -OLD.ProductQuantity);
         RETURN OLD;
     END; 
     $removeOrders$
@@ -209,64 +588,337 @@ CREATE TRIGGER removeOrders BEFORE DELETE
     FOR EACH ROW EXECUTE FUNCTION addUncollectedStock();  
 
 
+-- Add or remove units from a product's running sales total
+CREATE OR REPLACE PROCEDURE adjustProductSales(id INTEGER, units INTEGER)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        UPDATE product_sales SET UnitsSold = UnitsSold + units WHERE ProductID = id;
+    END;
+    $$;
+
+-- Every new product starts with a sales total of 0
+CREATE OR REPLACE FUNCTION addProductSales() RETURNS TRIGGER AS $newProductTrigger$
+    BEGIN
+        INSERT INTO product_sales (ProductID, UnitsSold) VALUES (NEW.ProductID, 0);
+        RETURN NEW;
+    END;
+    $newProductTrigger$
+    LANGUAGE plpgsql;
+
+CREATE TRIGGER newProductTrigger AFTER INSERT
+    ON inventory
+    FOR EACH ROW EXECUTE FUNCTION addProductSales();
+
+-- Recalculate every product's sales total from the order lines, live and archived, e.g. after loading data with
+-- the triggers disabled
+-- Blocks new orders while it runs so that no sale is missed
+CREATE OR REPLACE PROCEDURE rebuildProductSales()
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        LOCK TABLE order_products IN SHARE MODE;
+        DELETE FROM product_sales;
+        INSERT INTO product_sales (ProductID, UnitsSold)
+            SELECT i.ProductID, COALESCE(SUM(op.ProductQuantity), 0)
+            FROM inventory i
+            LEFT OUTER JOIN allOrderLines op ON op.ProductID = i.ProductID
+            GROUP BY i.ProductID;
+        CALL bumpTableVersion('order_products');
+    END;
+    $$;
+
+
+-- Add or remove the value of some units of a product to the yearly total of the staff who sold the order
+-- Does nothing if the order has already gone - removeOrderSales has accounted for it before it was deleted
+CREATE OR REPLACE PROCEDURE adjustStaffYearlySales(ordID INTEGER, prodID INTEGER, units INTEGER)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT so.StaffID, DATE_PART('year', so.OrderPlaced), units * i.ProductPrice
+            FROM staff_orders so
+            INNER JOIN inventory i ON i.ProductID = prodID
+            WHERE so.OrderID = ordID
+            AND EXISTS (SELECT 1 FROM orders o WHERE o.OrderID = ordID AND o.OrderPlaced = so.OrderPlaced)
+        ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+    END;
+    $$;
+
+-- Add or remove the value of a whole order from one staff member's yearly total
+-- Does nothing if the order has already gone, as for adjustStaffYearlySales
+CREATE OR REPLACE PROCEDURE adjustStaffOrderSales(staffMember INTEGER, ordID INTEGER, direction INTEGER)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT staffMember, DATE_PART('year', op.OrderPlaced), direction * SUM(op.ProductQuantity * i.ProductPrice)
+            FROM order_products op
+            INNER JOIN inventory i ON i.ProductID = op.ProductID
+            WHERE op.OrderID = ordID
+            AND EXISTS (SELECT 1 FROM orders o WHERE o.OrderID = ordID AND o.OrderPlaced = op.OrderPlaced)
+            GROUP BY op.OrderPlaced
+        ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+    END;
+    $$;
+
+-- Linking staff to an order (or removing the link) moves the value of the order onto (or off) their total
+CREATE OR REPLACE FUNCTION staffOrderSales() RETURNS TRIGGER AS $staffOrdersTrigger$
+    BEGIN
+        IF bulkMaintenance() THEN
+            RETURN NULL;
+        END IF;
+        IF TG_OP = 'DELETE' THEN
+            CALL adjustStaffOrderSales(OLD.StaffID, OLD.OrderID, -1);
+            RETURN OLD;
+        END IF;
+        CALL adjustStaffOrderSales(NEW.StaffID, NEW.OrderID, 1);
+        RETURN NEW;
+    END;
+    $staffOrdersTrigger$
+    LANGUAGE plpgsql;
+
+CREATE TRIGGER staffOrdersTrigger AFTER INSERT OR DELETE
+    ON staff_orders
+    FOR EACH ROW EXECUTE FUNCTION staffOrderSales();
+
+-- When an order is deleted its lines and staff links are removed by ON DELETE CASCADE after the order row has
+-- gone, so by then we can no longer tell which year they belonged to. Take the order off the totals first
+CREATE OR REPLACE FUNCTION removeOrderSales() RETURNS TRIGGER AS $removeOrderSalesTrigger$
+    DECLARE
+        link RECORD;
+    BEGIN
+        IF bulkMaintenance() THEN
+            RETURN OLD;
+        END IF;
+        FOR link IN SELECT StaffID FROM staff_orders WHERE OrderID = OLD.OrderID LOOP
+            CALL adjustStaffOrderSales(link.StaffID, OLD.OrderID, -1);
+        END LOOP;
+        RETURN OLD;
+    END;
+    $removeOrderSalesTrigger$
+    LANGUAGE plpgsql;
+
+CREATE TRIGGER removeOrderSalesTrigger BEFORE DELETE
+    ON orders
+    FOR EACH ROW EXECUTE FUNCTION removeOrderSales();
+
+-- Sales are valued at the current price, so a price change revalues everything sold of that product, and
+-- deleting a product removes its sales (its order lines are then removed by ON DELETE CASCADE)
+CREATE OR REPLACE FUNCTION revalueProductSales() RETURNS TRIGGER AS $productPriceTrigger$
+    DECLARE
+        priceChange NUMERIC;
+    BEGIN
+        IF TG_OP = 'DELETE' THEN
+            priceChange := -OLD.ProductPrice;
+        ELSE
+            priceChange := NEW.ProductPrice - OLD.ProductPrice;
+        END IF;
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT so.StaffID, DATE_PART('year', op.OrderPlaced), priceChange * SUM(op.ProductQuantity)
+            FROM allOrderLines op
+            INNER JOIN allStaffOrders so ON so.OrderID = op.OrderID AND so.OrderPlaced = op.OrderPlaced
+            WHERE op.ProductID = OLD.ProductID
+            GROUP BY so.StaffID, DATE_PART('year', op.OrderPlaced)
+        ON CONFLICT (StaffID, SalesYear) DO UPDATE SET TotalSales = staff_yearly_sales.TotalSales + EXCLUDED.TotalSales;
+        IF TG_OP = 'DELETE' THEN
+            RETURN OLD;
+        END IF;
+        RETURN NEW;
+    END;
+    $productPriceTrigger$
+    LANGUAGE plpgsql;
+
+CREATE TRIGGER productPriceTrigger BEFORE UPDATE OF ProductPrice OR DELETE
+    ON inventory
+    FOR EACH ROW EXECUTE FUNCTION revalueProductSales();
+
+-- Recalculate every staff member's yearly totals from the order history, for backfilling or repairing drift
+-- Blocks new orders while it runs so that no sale is missed
+CREATE OR REPLACE PROCEDURE rebuildStaffYearlySales()
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        LOCK TABLE order_products, staff_orders IN SHARE MODE;
+        DELETE FROM staff_yearly_sales;
+        INSERT INTO staff_yearly_sales (StaffID, SalesYear, TotalSales)
+            SELECT StaffID, DATE_PART('year', OrderPlaced), SUM(saleValue)
+            FROM allSaleValues
+            WHERE OrderPlaced IS NOT NULL
+            GROUP BY StaffID, DATE_PART('year', OrderPlaced);
+        CALL bumpTableVersion('staff_orders');
+    END;
+    $$;
+
+-- Bump a table's write version, invalidating the cached reports that read it.
+-- Each connection has a row of its own, keyed by its backend pid, so two connections never wait on the same row
+-- and a REPEATABLE READ or SERIALIZABLE order never finds its row changed by someone else
+CREATE OR REPLACE PROCEDURE bumpTableVersion(changedTable VARCHAR)
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        INSERT INTO table_versions (TableName, Shard, Version) VALUES (changedTable, pg_backend_pid(), 1)
+        ON CONFLICT (TableName, Shard) DO UPDATE SET Version = table_versions.Version + 1;
+    END;
+    $$;
+
+-- Deferred to commit, and only the first row a transaction changes in each table bumps it, so an order is one
+-- bump per table however many lines and statements it has, and the version row is only locked while it commits.
+-- Regardless of bulkMaintenance
+CREATE OR REPLACE FUNCTION tableVersionChanged() RETURNS TRIGGER AS $tableVersionTrigger$
+    BEGIN
+        IF current_setting('invmgmt.version_bumped_' || TG_TABLE_NAME, true) = 'on' THEN
+            RETURN NULL;
+        END IF;
+        PERFORM set_config('invmgmt.version_bumped_' || TG_TABLE_NAME, 'on', true);
+        CALL bumpTableVersion(TG_TABLE_NAME::VARCHAR);
+        RETURN NULL;
+    END;
+    $tableVersionTrigger$
+    LANGUAGE plpgsql;
+
+CREATE CONSTRAINT TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+    ON order_products
+    DEFERRABLE INITIALLY DEFERRED
+    FOR EACH ROW EXECUTE FUNCTION tableVersionChanged();
+
+CREATE CONSTRAINT TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+    ON staff_orders
+    DEFERRABLE INITIALLY DEFERRED
+    FOR EACH ROW EXECUTE FUNCTION tableVersionChanged();
+
+CREATE CONSTRAINT TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+    ON inventory
+    DEFERRABLE INITIALLY DEFERRED
+    FOR EACH ROW EXECUTE FUNCTION tableVersionChanged();
+
+CREATE CONSTRAINT TRIGGER tableVersionTrigger AFTER INSERT OR UPDATE OR DELETE
+    ON staff
+    DEFERRABLE INITIALLY DEFERRED
+    FOR EACH ROW EXECUTE FUNCTION tableVersionChanged();
+
+-- Fold the version rows of connections that have gone into shard 0, keeping every table's total, so that
+-- table_versions doesn't keep a row for every connection there has ever been. Run by OrderArchive
+CREATE OR REPLACE PROCEDURE compactTableVersions()
+    LANGUAGE plpgsql AS
+    $$
+    BEGIN
+        WITH gone AS (
+            DELETE FROM table_versions v
+            WHERE v.Shard <> 0 AND NOT EXISTS (SELECT 1 FROM pg_stat_activity a WHERE a.pid = v.Shard)
+            RETURNING v.TableName, v.Version)
+        INSERT INTO table_versions (TableName, Shard, Version)
+            SELECT TableName, 0, SUM(Version) FROM gone GROUP BY TableName
+        ON CONFLICT (TableName, Shard) DO UPDATE SET Version = table_versions.Version + EXCLUDED.Version;
+    END;
+    $$;
+
+-- Tell anyone listening (see Catalog) about every change to a product or member of staff, so that they can keep
+-- an in-memory copy up to date. The payload is the changed row as JSON plus the operation, on the channel
+-- inventory_changes or staff_changes. Notifications are only sent when the transaction commits.
+-- Every committing transaction that has notified takes the same lock on the notification queue, so sales must
+-- not notify: on inventory only new, removed, renamed and repriced products do. The Catalog picks up stock
+-- levels by reading them in batches instead
+CREATE OR REPLACE FUNCTION notifyCatalogChange() RETURNS TRIGGER AS $catalogTrigger$
+    DECLARE
+        changed JSONB;
+    BEGIN
+        IF TG_OP = 'DELETE' THEN
+            changed := to_jsonb(OLD);
+        ELSE
+            changed := to_jsonb(NEW);
+        END IF;
+        PERFORM pg_notify(LOWER(TG_TABLE_NAME) || '_changes', (changed || jsonb_build_object('op', TG_OP))::TEXT);
+        RETURN NULL;
+    END;
+    $catalogTrigger$
+    LANGUAGE plpgsql;
+
+CREATE TRIGGER inventoryCatalogTrigger AFTER INSERT OR DELETE OR UPDATE OF ProductDesc, ProductPrice
+    ON inventory
+    FOR EACH ROW EXECUTE FUNCTION notifyCatalogChange();
+
+CREATE TRIGGER staffCatalogTrigger AFTER INSERT OR UPDATE OR DELETE
+    ON staff
+    FOR EACH ROW EXECUTE FUNCTION notifyCatalogChange();
+
+-- Note which product's stock changed in stock_changes, for the Catalog to read its new level. Unlike a
+-- notification this takes no lock that other transactions wait for when they commit
+CREATE OR REPLACE FUNCTION recordStockChange() RETURNS TRIGGER AS $stockChangeTrigger$
+    BEGIN
+        INSERT INTO stock_changes (ProductID) VALUES (NEW.ProductID);
+        RETURN NULL;
+    END;
+    $stockChangeTrigger$
+    LANGUAGE plpgsql;
+
+CREATE TRIGGER stockChangeTrigger AFTER UPDATE OF ProductStockAmount
+    ON inventory
+    FOR EACH ROW WHEN (OLD.ProductStockAmount IS DISTINCT FROM NEW.ProductStockAmount)
+    EXECUTE FUNCTION recordStockChange();
+
 --- ########################### ---         
 --- #########  VIEWS  ######### ---
 --- ########################### --- 
 
+-- Every order line and staff link, live and archived. A filter on OrderPlaced reaches both halves, so only the
+-- partitions for the dates asked about are read
+CREATE OR REPLACE VIEW allOrderLines AS
+    SELECT OrderID, ProductID, ProductQuantity, OrderPlaced FROM order_products
+    UNION ALL
+    SELECT OrderID, ProductID, ProductQuantity, OrderPlaced FROM order_products_archive;
+
+CREATE OR REPLACE VIEW allStaffOrders AS
+    SELECT StaffID, OrderID, OrderPlaced FROM staff_orders
+    UNION ALL
+    SELECT StaffID, OrderID, OrderPlaced FROM staff_orders_archive;
+
 -- View - gets a table of product IDs with the price * quantity sold for that product in the order_product row 
 -- used in opt6 as a componenet part to simplify the query
+-- OrderPlaced comes from the order lines themselves, so filtering on it prunes their partitions
 CREATE OR REPLACE VIEW allSaleValues AS 
-    SELECT so.StaffID, o.OrderPlaced, op.productID, op.OrderID AS id, op.ProductQuantity * i.ProductPrice AS saleValue 
-    FROM order_products op 
+    SELECT so.StaffID, op.OrderPlaced, op.productID, op.OrderID AS id, op.ProductQuantity * i.ProductPrice AS saleValue 
+    FROM allOrderLines op 
     INNER JOIN inventory i ON op.ProductID = i.ProductID
-    INNER JOIN orders o ON op.OrderID = o.OrderID
-    INNER JOIN staff_orders so ON o.OrderID = so.OrderID;
+    INNER JOIN allStaffOrders so ON op.OrderID = so.OrderID AND op.OrderPlaced = so.OrderPlaced;
 
 -- View all collections that have not been collected, regardless of date. We can then filter this view further later
 CREATE OR REPLACE VIEW uncollectedCollectionsView AS 
     SELECT o.OrderID AS OrderID, c.CollectionDate FROM orders o
     INNER JOIN collections c
-    ON o.OrderID = c.OrderID
+    ON o.OrderID = c.OrderID AND o.OrderPlaced = c.OrderPlaced
     WHERE o.OrderCompleted = 0;
 
 -- View - gets the highest selling products in descending order of total value
 -- Uses in opt4 and opt7
+-- Reads the running totals in product_sales, so it costs one row per product rather than one per order line
 CREATE OR REPLACE VIEW profitableProductsView AS 
-    SELECT i.ProductID, i.ProductDesc, COALESCE(i.ProductPrice * sales,0) AS totalValue FROM inventory i 
-    LEFT OUTER JOIN (
-        SELECT ProductID, SUM(ProductQuantity) AS sales 
-        FROM order_products 
-        GROUP BY ProductID
-    ) p ON i.ProductID = p.ProductID
+    SELECT i.ProductID, i.ProductDesc, COALESCE(i.ProductPrice * p.UnitsSold,0) AS totalValue FROM inventory i 
+    LEFT OUTER JOIN product_sales p ON i.ProductID = p.ProductID
     ORDER BY totalValue DESC; 
 
 -- View - Get the lifetime sales of all members of staff over 50,000
 -- Works by getting the total value of each order, then linking with the staff table
 -- It then groups by staffID, summing the order values for that staff member. A final HAVING checks that this total is >= 50k 
+-- The yearly totals come from the staff_yearly_sales rollup, so this is a few rows per member of staff
 CREATE OR REPLACE VIEW lifetimeSalesView AS
-    SELECT s.fName || ' ' || s.lName AS fullName, so.StaffID, SUM(totalOrderValue) AS lifetimeSales 
-    FROM staff_orders so 
-    INNER JOIN (
-        SELECT w.id as id, SUM(saleValue) As totalOrderValue 
-        FROM allSaleValues w 
-        GROUP BY w.id
-    ) x 
-    ON x.id = so.OrderID 
-    INNER JOIN staff s ON s.StaffID = so.StaffID
-    GROUP BY so.StaffID, fullName
-    HAVING SUM(totalOrderValue) >= 50000
+    SELECT s.fName || ' ' || s.lName AS fullName, r.StaffID, SUM(r.TotalSales) AS lifetimeSales 
+    FROM staff_yearly_sales r 
+    INNER JOIN staff s ON s.StaffID = r.StaffID
+    GROUP BY r.StaffID, fullName
+    HAVING SUM(r.TotalSales) >= 50000
     ORDER BY lifetimeSales DESC;
     
 
 -- OPTION 7
 -- View -- Uses opt4's view to get the profitableProducts > 20k and then joins with inventory, order_products, staff_orders and staff
 -- to return a table with staff info, products sold, units of said product sold, and value of said product sold
--- we then do a minor amount of formatting in the calling Java to render it in the correct way
+-- we then do a minor amount of formatting in the calling Java to render it in the correct way - see StaffPivot
 CREATE OR REPLACE VIEW highestSellingProductSellersView AS
     SELECT staffID, fName, lName, ProductID, SUM(ProductQuantity) AS unitsSold, SUM(salePrice) AS valOfProductSold FROM (
         SELECT s.StaffID, s.fName as fName, s.lName AS lName, i.ProductID AS ProductID, op.ProductQuantity AS ProductQuantity, op.ProductQuantity * i.ProductPrice AS salePrice
-        FROM order_products op 
-        INNER JOIN staff_orders so ON op.OrderID = so.OrderID
+        FROM allOrderLines op 
+        INNER JOIN allStaffOrders so ON op.OrderID = so.OrderID AND op.OrderPlaced = so.OrderPlaced
         INNER JOIN inventory i ON i.ProductID = op.ProductID
         INNER JOIN staff s ON so.StaffID = s.StaffID
         INNER JOIN (
@@ -276,15 +928,9 @@ CREATE OR REPLACE VIEW highestSellingProductSellersView AS
     ) AS x 
     GROUP BY staffID, fName, lName, ProductID;
 
--- Get the staff in order of value of items they've sold that have sold > 20k 
-CREATE OR REPLACE VIEW mostValuableStaff AS
-    SELECT staffID FROM (
-        SELECT staffID, SUM(valOfProductSold) FROM highestSellingProductSellersView 
-        GROUP BY staffID 
-        ORDER BY SUM(valOfProductSold) DESC
-    ) AS pv; 
-    
 -- OPTION 8
+-- Option 8 itself is evaluated by EmployeeOfTheYear from a single pass over allSaleValues. These views give the
+-- same building blocks for ad-hoc queries
 -- Get all items that have done 20k this year
 CREATE OR REPLACE VIEW year20kItems AS 
     SELECT DATE_PART('year',orderPlaced) AS yr, ProductID, SUM(saleValue) 
@@ -292,35 +938,46 @@ CREATE OR REPLACE VIEW year20kItems AS
     GROUP BY yr, ProductID
     HAVING SUM(saleValue) > 20000;
 
--- Get all staff sales of products that have done 20k this year
-CREATE OR REPLACE VIEW staff20kItems AS 
-    SELECT y.yr, so.StaffID, op.ProductID FROM order_products op 
-    INNER JOIN staff_orders so ON op.OrderID = so.OrderID
-    INNER JOIN year20kItems y ON y.ProductID = op.ProductID
-    GROUP BY so.staffID, op.productID, y.yr;
+-- year20kItems for one year. Filtering the view on yr would still read every year, as a condition on
+-- DATE_PART can't prune partitions - this filters on the OrderPlaced range instead, so it reads just that year
+CREATE OR REPLACE FUNCTION year20kItemsIn(year INTEGER) RETURNS TABLE(yr INTEGER, ProductID INTEGER, sum NUMERIC) AS $$
+    SELECT year, v.ProductID, SUM(v.saleValue)
+    FROM allSaleValues v
+    WHERE v.OrderPlaced >= make_date(year, 1, 1) AND v.OrderPlaced < make_date(year + 1, 1, 1)
+    GROUP BY v.ProductID
+    HAVING SUM(v.saleValue) > 20000;
+    $$
+    LANGUAGE sql STABLE;
 
--- Get staff that have sold 30k this year
+-- Get staff that have sold 30k this year - an index lookup on the staff_yearly_sales rollup
 CREATE OR REPLACE VIEW yearlySales30k AS
-    SELECT s.StaffID, DATE_PART('year', o.OrderPlaced) AS yr
-    FROM staff_orders s 
-    INNER JOIN (
-        SELECT w.id as id, SUM(saleValue) As totalOrderValue 
-        FROM allSaleValues w 
-        GROUP BY w.id
-    ) x 
-    ON x.id = s.OrderID 
-    INNER JOIN orders o ON o.OrderID = s.OrderID
-    GROUP BY s.StaffID, yr
-    HAVING SUM(totalOrderValue) >= 30000
-    ORDER BY SUM(totalOrderValue) DESC;
-
--- All staff that have sold 30k stock and count > 0 of products they've sold that have sold > 20k 
-CREATE OR REPLACE VIEW staffYearly20kProductSales AS 
-    SELECT DISTINCT s.fName || ' ' || s.lName AS fullName, q.staffid, q.yr, q.count FROM (
-        SELECT StaffID, yr, COUNT(ProductID)
-        FROM staff20kItems d
-        GROUP BY StaffID, yr
-    ) q 
-    INNER JOIN yearlySales30k y ON y.StaffID = q.StaffID
-    INNER JOIN yearlySales30k x ON x.yr = q.yr
-    INNER JOIN staff s ON s.StaffID = q.StaffID; 
+    SELECT StaffID, SalesYear AS yr
+    FROM staff_yearly_sales
+    WHERE TotalSales >= 30000
+    ORDER BY TotalSales DESC;
+
+-- CONSISTENCY CHECKS
+-- Rows where a rollup table disagrees with the base tables it summarises. Both should always be empty -
+-- if not, CALL rebuildProductSales() / rebuildStaffYearlySales() to repair them
+CREATE OR REPLACE VIEW productSalesDrift AS
+    SELECT i.ProductID, COALESCE(p.UnitsSold, 0) AS rollupUnits, COALESCE(x.units, 0) AS actualUnits
+    FROM inventory i
+    LEFT OUTER JOIN product_sales p ON p.ProductID = i.ProductID
+    LEFT OUTER JOIN (
+        SELECT ProductID, SUM(ProductQuantity) AS units
+        FROM allOrderLines
+        GROUP BY ProductID
+    ) x ON x.ProductID = i.ProductID
+    WHERE COALESCE(p.UnitsSold, 0) <> COALESCE(x.units, 0);
+
+CREATE OR REPLACE VIEW staffYearlySalesDrift AS
+    SELECT COALESCE(r.StaffID, x.StaffID) AS StaffID, COALESCE(r.SalesYear, x.SalesYear) AS SalesYear,
+        COALESCE(r.TotalSales, 0) AS rollupSales, COALESCE(x.TotalSales, 0) AS actualSales
+    FROM staff_yearly_sales r
+    FULL OUTER JOIN (
+        SELECT StaffID, DATE_PART('year', OrderPlaced)::INTEGER AS SalesYear, SUM(saleValue) AS TotalSales
+        FROM allSaleValues
+        WHERE OrderPlaced IS NOT NULL
+        GROUP BY StaffID, DATE_PART('year', OrderPlaced)
+    ) x ON x.StaffID = r.StaffID AND x.SalesYear = r.SalesYear
+    WHERE COALESCE(r.TotalSales, 0) <> COALESCE(x.TotalSales, 0);
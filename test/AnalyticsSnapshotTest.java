@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AnalyticsSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void optionFourFromAnExportedSnapshot() throws Exception {
+        // The count queries come first - the first matching fragment wins
+        FakeDatabase db = new FakeDatabase()
+                .route("COUNT(*) FROM allOrderLines", new Object[] { 3L })
+                .route("COUNT(*) FROM allStaffOrders", new Object[] { 2L })
+                .route("(SELECT COUNT(*) FROM orders)", new Object[] { 2L })
+                .route("FROM allOrderLines", new Object[] { 1, 1, 4, 18000 }, new Object[] { 2, 2, 3, 18001 },
+                        new Object[] { 2, 1, 1, 18001 })
+                .route("FROM allStaffOrders", new Object[] { 1, 7 }, new Object[] { 2, 7 })
+                .route("FROM orders_archive", new Object[] { 1, 0, 1, 18000 }, new Object[] { 2, 2, 0, 18001 })
+                .route("FROM inventory", new Object[] { 1, 250L, 10, "Widget" }, new Object[] { 2, 10000L, 5, "Gadget" })
+                .route("FROM staff", new Object[] { 7, "Ada", "Lovelace" });
+        String path = dir.resolve("snapshot").toString();
+
+        assertEquals(3, AnalyticsSnapshot.export(db.connect(), path));
+        assertEquals(1, db.commits);
+
+        List<String[]> rows = AnalyticsSnapshot.open(path).option4();
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[] { "2", "Gadget", "300.00" }, rows.get(0));
+        assertArrayEquals(new String[] { "1", "Widget", "12.50" }, rows.get(1));
+    }
+
+    // Four members of staff over two years. In 2020 (from epoch day 18262) Ada and Alan sell both of the £20,000
+    // products, Sofa and Lamp, and Grace sells more than either of them but no Lamps. Alan's 2019 Lamps make him the
+    // biggest seller of all time.
+    private AnalyticsSnapshot salesFixture() throws Exception {
+        FakeDatabase db = new FakeDatabase()
+                .route("COUNT(*) FROM allOrderLines", new Object[] { 7L })
+                .route("COUNT(*) FROM allStaffOrders", new Object[] { 5L })
+                .route("(SELECT COUNT(*) FROM orders)", new Object[] { 5L })
+                .route("FROM allOrderLines",
+                        new Object[] { 1, 1, 3, 18300 }, new Object[] { 1, 2, 2, 18300 },
+                        new Object[] { 2, 1, 2, 18301 }, new Object[] { 2, 2, 5, 18301 },
+                        new Object[] { 3, 1, 5, 18302 },
+                        new Object[] { 4, 2, 10, 18000 },
+                        new Object[] { 5, 3, 3, 18303 })
+                .route("FROM allStaffOrders", new Object[] { 1, 1 }, new Object[] { 2, 2 }, new Object[] { 3, 3 },
+                        new Object[] { 4, 2 }, new Object[] { 5, 4 })
+                .route("FROM orders_archive", new Object[] { 1, 0, 1, 18300 }, new Object[] { 2, 0, 1, 18301 },
+                        new Object[] { 3, 0, 1, 18302 }, new Object[] { 4, 0, 1, 18000 }, new Object[] { 5, 0, 1, 18303 })
+                .route("FROM inventory", new Object[] { 1, 1000000L, 10, "Sofa" }, new Object[] { 2, 500000L, 10, "Lamp" },
+                        new Object[] { 3, 10000L, 10, "Rug" })
+                .route("FROM staff", new Object[] { 1, "Ada", "Lovelace" }, new Object[] { 2, "Alan", "Turing" },
+                        new Object[] { 3, "Grace", "Hopper" }, new Object[] { 4, "Edsger", "Dijkstra" });
+        String path = dir.resolve("sales").toString();
+        assertEquals(7, AnalyticsSnapshot.export(db.connect(), path));
+        return AnalyticsSnapshot.open(path);
+    }
+
+    @Test
+    void optionSixListsLifetimeSalesOfFiftyThousandOrMore() throws Exception {
+        List<String[]> rows = salesFixture().option6();
+        // Grace is exactly on the threshold, Ada just under it
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[] { "Alan Turing", "95000.00" }, rows.get(0));
+        assertArrayEquals(new String[] { "Grace Hopper", "50000.00" }, rows.get(1));
+    }
+
+    @Test
+    void optionSevenOrdersStaffByTheirSalesOfTheTopProducts() throws Exception {
+        StringWriter out = new StringWriter();
+        salesFixture().option7(out);
+        // Edsger sold only Rugs, which are under £20,000, so he has no row
+        assertEquals("Staff Name, Product 1, Product 2\n"
+                + "Alan Turing, 2, 15\n"
+                + "Grace Hopper, 5, 0\n"
+                + "Ada Lovelace, 3, 2\n"
+                + "\n", out.toString());
+    }
+
+    @Test
+    void optionEightNeedsThirtyThousandAndEveryTwentyThousandProduct() throws Exception {
+        AnalyticsSnapshot snapshot = salesFixture();
+        // Grace's £50,000 in 2020 doesn't count without a Lamp
+        assertEquals(Arrays.asList("Alan Turing", "Ada Lovelace"), snapshot.option8(2020));
+        assertEquals(Arrays.asList("Alan Turing"), snapshot.option8(2019));
+        assertEquals(Arrays.asList(), snapshot.option8(2021));
+    }
+
+    @Test
+    void refusesFilesThatAreNotSnapshots() throws Exception {
+        File file = Files.write(dir.resolve("other"), "not a snapshot".getBytes()).toFile();
+        assertThrows(java.io.IOException.class, () -> AnalyticsSnapshot.open(file.getPath()));
+    }
+}
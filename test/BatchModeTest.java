@@ -0,0 +1,50 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.sql.Connection;
+import java.util.*;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchModeTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void stopsReadingWhenPlacingAnOrderThrows() throws Exception {
+        // Far more orders than the queue holds, so the reader is waiting for room when the first one fails
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            lines.add("InStore|17-Nov-20|3|1:2");
+        }
+        File file = Files.write(dir.resolve("orders.txt"), lines).toFile();
+        Connection broken = FakeDatabase.proxy(Connection.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                throw new IllegalStateException("the database went away");
+            }
+        });
+
+        assertThrows(IllegalStateException.class, () -> new BatchMode(2).run(broken, file.getPath(), true));
+        StatementCache.release(broken);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (readerRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(readerRunning());
+    }
+
+    static boolean readerRunning() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("batch-reader") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
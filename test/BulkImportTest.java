@@ -0,0 +1,34 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Connection;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+
+class BulkImportTest {
+
+    @Test
+    void refusesToLoadUnlessTheRowTriggersStandAside() throws Exception {
+        // Not a member of invmgmt_maintenance, so setting invmgmt.bulk_maintenance did nothing
+        FakeDatabase db = new FakeDatabase().route("SELECT bulkMaintenance()", new Object[] { false });
+        Connection conn = db.connect();
+
+        assertEquals(0, BulkImport.load(conn, new String[0]));
+        assertEquals(0, db.count("INSERT INTO orders"));
+        assertEquals(1, db.rollbacks);
+        assertEquals(0, db.commits);
+    }
+
+    @Test
+    void loadsOnceTheRowTriggersStandAside() throws Exception {
+        FakeDatabase db = new FakeDatabase().route("SELECT bulkMaintenance()", new Object[] { true })
+                .route("SELECT COUNT(*) FROM import_orders", new Object[] { 3 });
+        Connection conn = db.connect();
+
+        assertEquals(3, BulkImport.load(conn, new String[0]));
+        assertEquals(1, db.count("INSERT INTO orders"));
+        assertEquals(1, db.commits);
+        assertTrue(db.autoCommit);
+    }
+}
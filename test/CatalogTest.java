@@ -0,0 +1,135 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+
+class CatalogTest {
+
+    static String product(String op, int id, int stock) {
+        return "{\"productid\": " + id + ", \"productdesc\": \"Widget\", \"productprice\": 2.50, "
+                + "\"productstockamount\": " + stock + ", \"op\": \"" + op + "\"}";
+    }
+
+    // Every change published, as productID:previous->stock
+    static List<String> record(Catalog catalog) {
+        final List<String> changes = new ArrayList<String>();
+        catalog.subscribe(new Catalog.StockListener() {
+            public void stockChanged(Catalog.Product product, int previous) {
+                changes.add(product.id + ":" + previous + "->" + product.stock);
+            }
+        });
+        return changes;
+    }
+
+    @Test
+    void readsOnlyTheProductsChangedSinceTheLastRead() throws SQLException {
+        Catalog catalog = new Catalog();
+        catalog.apply("inventory_changes", product("INSERT", 1, 10));
+        catalog.apply("inventory_changes", product("INSERT", 2, 5));
+        catalog.publish();
+        List<String> changes = record(catalog);
+
+        // Product 3 hasn't had its notification yet, so it is left for that
+        FakeDatabase db = new FakeDatabase().route(Catalog.STOCK, new Object[] { 40L, 1, 7 }, new Object[] { 40L, 2, 5 },
+                new Object[] { 40L, 3, 9 });
+        Connection conn = db.connect();
+        catalog.readStock(conn);
+        catalog.publish();
+        assertEquals(java.util.Arrays.asList("1:10->7"), changes);
+        assertEquals(7, catalog.stock(1));
+        assertEquals(-1, catalog.stock(3));
+
+        // The next read carries on from the transaction the last one stopped at, even with nothing to read
+        db.route(Catalog.STOCK, new Object[] { 45L, null, null });
+        catalog.readStock(conn);
+        db.route(Catalog.STOCK);
+        catalog.readStock(conn);
+        assertEquals(java.util.Arrays.asList(0L, 40L, 45L), db.parameters);
+        assertEquals(1, changes.size());
+        StatementCache.release(conn);
+    }
+
+    @Test
+    void prunesWhatWasReadBeforeTheLastPrune() throws SQLException {
+        Catalog catalog = new Catalog();
+        FakeDatabase db = new FakeDatabase().route(Catalog.STOCK, new Object[] { 40L, null, null });
+        Connection conn = db.connect();
+        catalog.readStock(conn);
+        catalog.prune(conn);
+        assertEquals(0, db.count(Catalog.PRUNE));
+
+        db.route(Catalog.STOCK, new Object[] { 70L, null, null });
+        catalog.readStock(conn);
+        catalog.prune(conn);
+        assertEquals(1, db.count(Catalog.PRUNE));
+        assertEquals(40L, db.parameters.get(db.parameters.size() - 1));
+        StatementCache.release(conn);
+    }
+
+    @Test
+    void coalescesChangesAndReportsEachDropBelowTheThreshold() throws SQLException {
+        Catalog catalog = new Catalog();
+        catalog.apply("inventory_changes", product("INSERT", 1, 10));
+        catalog.publish();
+        List<String> changes = record(catalog);
+        final List<String> low = new ArrayList<String>();
+        catalog.onLowStock(5, new Catalog.StockListener() {
+            public void stockChanged(Catalog.Product product, int previous) {
+                low.add(product.id + ":" + previous + "->" + product.stock);
+            }
+        });
+        FakeDatabase db = new FakeDatabase();
+        Connection conn = db.connect();
+
+        // Two reads before anything is published are reported as one change, and it crosses the threshold
+        db.route(Catalog.STOCK, new Object[] { 1L, 1, 8 });
+        catalog.readStock(conn);
+        db.route(Catalog.STOCK, new Object[] { 1L, 1, 3 });
+        catalog.readStock(conn);
+        catalog.publish();
+        assertEquals(java.util.Arrays.asList("1:10->3"), changes);
+        assertEquals(java.util.Arrays.asList("1:10->3"), low);
+
+        // Already low, so dropping further isn't a new crossing
+        db.route(Catalog.STOCK, new Object[] { 1L, 1, 2 });
+        catalog.readStock(conn);
+        catalog.publish();
+        assertEquals(1, low.size());
+
+        // Restocked and sold again within one batch comes back to where it was - nothing to report
+        db.route(Catalog.STOCK, new Object[] { 1L, 1, 20 });
+        catalog.readStock(conn);
+        db.route(Catalog.STOCK, new Object[] { 1L, 1, 2 });
+        catalog.readStock(conn);
+        catalog.publish();
+        assertEquals(2, changes.size());
+
+        // Restocked, then sold below the threshold again
+        db.route(Catalog.STOCK, new Object[] { 1L, 1, 20 });
+        catalog.readStock(conn);
+        catalog.publish();
+        db.route(Catalog.STOCK, new Object[] { 1L, 1, 4 });
+        catalog.readStock(conn);
+        catalog.publish();
+        assertEquals(java.util.Arrays.asList("1:10->3", "1:20->4"), low);
+        assertEquals(java.util.Arrays.asList("1:10->3", "1:3->2", "1:2->20", "1:20->4"), changes);
+        StatementCache.release(conn);
+    }
+
+    @Test
+    void anUpdateChangesTheProductButNotItsStock() {
+        Catalog catalog = new Catalog();
+        catalog.apply("inventory_changes", product("INSERT", 1, 10));
+        catalog.apply("inventory_changes",
+                "{\"productid\": 1, \"productdesc\": \"Gadget\", \"productprice\": 3, \"productstockamount\": 4, \"op\": \"UPDATE\"}");
+        assertEquals("Gadget", catalog.product(1).desc);
+        assertEquals(10, catalog.stock(1));
+        catalog.apply("inventory_changes", product("DELETE", 1, 10));
+        assertNull(catalog.product(1));
+    }
+}
@@ -0,0 +1,55 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.*;
+import java.time.LocalDate;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+
+class CollectionExpiryTest {
+
+    static final long TODAY = LocalDate.of(2020, 11, 30).toEpochDay();
+
+    static java.sql.Date daysAgo(int days) {
+        return java.sql.Date.valueOf(LocalDate.ofEpochDay(TODAY - days));
+    }
+
+    @Test
+    void takesOnlyTheBucketsThatAreDue() {
+        CollectionExpiry expiry = new CollectionExpiry();
+        expiry.add(1, TODAY - 1);
+        expiry.add(2, TODAY);
+        expiry.add(2, TODAY);
+        expiry.add(3, TODAY + 1);
+        assertEquals(java.util.Arrays.asList(1, 2), expiry.takeDue(TODAY));
+        assertEquals("pending=1 buckets=1 expired=0", expiry.toString());
+    }
+
+    @Test
+    void loadsEveryPendingCollectionOnceAndThenOnlyTheDaysSince() throws SQLException {
+        // Collections placed by another process, two of them already expired and one that isn't due yet
+        FakeDatabase db = new FakeDatabase()
+                .route("WHERE o.OrderCompleted = 0",
+                        new Object[] { 5, daysAgo(8) }, new Object[] { 4, daysAgo(20) }, new Object[] { 6, daysAgo(2) })
+                .route("c.CollectionDate > ?")
+                .route("cancelUncollectedOrders", new Object[] { 5 }, new Object[] { 4 });
+        Connection conn = db.connect();
+        CollectionExpiry expiry = new CollectionExpiry(conn);
+        expiry.add(900, TODAY + 3);
+
+        expiry.tick(TODAY);
+        assertEquals(daysAgo(0), db.parameters.get(1));
+        assertEquals(1, db.count("cancelUncollectedOrders"));
+        assertEquals("pending=2 buckets=2 expired=2", expiry.toString());
+
+        // Later checks only ask for the collections that have expired since the last one
+        expiry.tick(TODAY + 2);
+        assertEquals(daysAgo(8), db.parameters.get(2));
+        assertEquals(daysAgo(6), db.parameters.get(3));
+        expiry.tick(TODAY + 2);
+        assertEquals(1, db.count("WHERE o.OrderCompleted = 0"));
+        assertEquals(1, db.count("c.CollectionDate > ?"));
+        StatementCache.release(conn);
+    }
+}
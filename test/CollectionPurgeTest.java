@@ -0,0 +1,33 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+
+class CollectionPurgeTest {
+
+    @Test
+    void carriesOnAfterAShortChunkUntilOneCancelsNothing() throws Exception {
+        // The first chunk of 3 comes back short because one of its orders was collected in the meantime
+        FakeDatabase db = new FakeDatabase().sequence("purgeUncollectedOrders",
+                new Object[][] { { 1 }, { 2 } },
+                new Object[][] { { 4 }, { 5 }, { 6 } },
+                new Object[][] { { 7 } });
+        Connection conn = db.connect();
+        conn.setAutoCommit(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int trips = Metrics.roundTrips();
+        assertEquals(6, CollectionPurge.purge(conn, java.sql.Date.valueOf("2020-11-30"), 3, new PrintStream(out)));
+        assertEquals(4, db.count("purgeUncollectedOrders"));
+        // A round trip for each chunk and each commit
+        assertEquals(8, Metrics.roundTrips() - trips);
+        assertEquals(4, db.commits);
+        assertTrue(out.toString().contains("Chunk 3: cancelled 1 orders, 6 so far"));
+        StatementCache.release(conn);
+    }
+}
@@ -0,0 +1,40 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class FlatJsonTest {
+
+    @Test
+    void parsesStringsNumbersBooleansAndNull() {
+        Map<String, String> fields = FlatJson.parseObject(
+                " { \"op\" : \"UPDATE\", \"productID\": 12, \"price\":-3.5, \"discontinued\": true, \"desc\": null } ");
+        assertEquals("UPDATE", fields.get("op"));
+        assertEquals("12", fields.get("productID"));
+        assertEquals("-3.5", fields.get("price"));
+        assertEquals("true", fields.get("discontinued"));
+        assertTrue(fields.containsKey("desc"));
+        assertNull(fields.get("desc"));
+    }
+
+    @Test
+    void unescapesStrings() {
+        Map<String, String> fields = FlatJson.parseObject("{\"desc\":\"A \\\"big\\\" box\\n\\u00e9\\\\\"}");
+        assertEquals("A \"big\" box\né\\", fields.get("desc"));
+    }
+
+    @Test
+    void parsesAnEmptyObject() {
+        assertTrue(FlatJson.parseObject("{}").isEmpty());
+    }
+
+    @Test
+    void rejectsNestedValuesAndBadSyntax() {
+        assertThrows(IllegalArgumentException.class, () -> FlatJson.parseObject("{\"a\":{\"b\":1}}"));
+        assertThrows(IllegalArgumentException.class, () -> FlatJson.parseObject("{\"a\":[1]}"));
+        assertThrows(IllegalArgumentException.class, () -> FlatJson.parseObject("{\"a\":\"unterminated}"));
+        assertThrows(IllegalArgumentException.class, () -> FlatJson.parseObject("{\"a\":1"));
+        assertThrows(IllegalArgumentException.class, () -> FlatJson.parseObject("[1]"));
+    }
+}
@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class IntIntMapTest {
+
+    @Test
+    void missingKeysReturnTheDefault() {
+        IntIntMap map = new IntIntMap();
+        assertEquals(-1, map.get(7, -1));
+        assertFalse(map.containsKey(7));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    void putReplacesAndAddAccumulates() {
+        IntIntMap map = new IntIntMap();
+        map.put(0, 5);
+        map.put(0, 6);
+        assertEquals(6, map.get(0, -1));
+        assertEquals(9, map.add(0, 3));
+        assertEquals(4, map.add(-4, 4));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    void growsAndMatchesAHashMap() {
+        IntIntMap map = new IntIntMap(2);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            int key = random.nextInt(3000) - 1500;
+            map.add(key, i);
+            expected.merge(key, i, Integer::sum);
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().intValue(), map.get(entry.getKey(), Integer.MIN_VALUE));
+        }
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        assertArrayEquals(expected.keySet().stream().mapToInt(Integer::intValue).sorted().toArray(), keys);
+    }
+
+    @Test
+    void clearEmptiesTheMap() {
+        IntIntMap map = new IntIntMap();
+        map.put(1, 1);
+        map.put(Integer.MIN_VALUE, 2);
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(Integer.MIN_VALUE));
+        assertEquals(0, map.keys().length);
+    }
+}
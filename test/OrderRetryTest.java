@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.*;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+
+class OrderRetryTest {
+
+    @Test
+    void retriesDeadlocksAndSerializationFailures() throws SQLException {
+        FakeDatabase db = new FakeDatabase();
+        Connection conn = db.connect();
+        conn.setAutoCommit(false);
+        final int[] attempts = { 0 };
+        String result = OrderRetry.run(conn, new OrderRetry.Attempt<String>() {
+            public String run() throws SQLException {
+                attempts[0]++;
+                if (attempts[0] == 1) {
+                    throw new SQLException("deadlock detected", OrderRetry.DEADLOCK_DETECTED);
+                }
+                if (attempts[0] == 2) {
+                    throw new SQLException("could not serialize access", OrderRetry.SERIALIZATION_FAILURE);
+                }
+                return "placed";
+            }
+        });
+        assertEquals("placed", result);
+        assertEquals(3, attempts[0]);
+        assertEquals(2, db.rollbacks);
+    }
+
+    @Test
+    void otherFailuresAreNotRetried() {
+        final int[] attempts = { 0 };
+        SQLException e = assertThrows(SQLException.class, () -> OrderRetry.run(new FakeDatabase().connect(),
+                new OrderRetry.Attempt<Void>() {
+                    public Void run() throws SQLException {
+                        attempts[0]++;
+                        throw new SQLException("Insufficient stock", "P0001");
+                    }
+                }));
+        assertEquals("P0001", e.getSQLState());
+        assertEquals(1, attempts[0]);
+    }
+
+    @Test
+    void givesUpWhenTheRetriesRunOut() {
+        final int[] attempts = { 0 };
+        assertThrows(SQLException.class, () -> OrderRetry.run(new FakeDatabase().connect(),
+                new OrderRetry.Attempt<Void>() {
+                    public Void run() throws SQLException {
+                        attempts[0]++;
+                        throw new SQLException("deadlock detected", OrderRetry.DEADLOCK_DETECTED);
+                    }
+                }));
+        assertEquals(OrderRetry.MAX_RETRIES + 1, attempts[0]);
+    }
+}
@@ -0,0 +1,44 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+
+import org.junit.jupiter.api.Test;
+
+class OrderServerTest {
+
+    @Test
+    void repliesWithAnErrorAndKeepsTheSessionWhenACommandThrows() throws Exception {
+        ConnectionPool pool = new ConnectionPool(new ConnectionPool.ConnectionFactory() {
+            public Connection open() {
+                throw new IllegalStateException("the driver isn't loaded");
+            }
+        }, 2, 1000, 1000);
+        final OrderServer server = new OrderServer(0, pool, null);
+        Thread serving = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        }, "order-server");
+        serving.setDaemon(true);
+        serving.start();
+
+        try (Socket socket = new Socket("localhost", server.getPort());
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            out.write("ORDER|InStore|17-Nov-20|3|1:2\n");
+            out.flush();
+            assertEquals("ERR the driver isn't loaded", in.readLine());
+
+            // The same session carries on, and the failed order gave its connection permit back
+            out.write("PING\nORDER|InStore|17-Nov-20|3|1:2\n");
+            out.flush();
+            assertEquals("PONG", in.readLine());
+            assertEquals("ERR the driver isn't loaded", in.readLine());
+        } finally {
+            server.shutdown();
+        }
+    }
+}
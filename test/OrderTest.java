@@ -0,0 +1,44 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+class OrderTest {
+
+    @Test
+    void parsesADeliveryOrder() {
+        Order order = Order.parse("Delivery|17-Nov-20|3|1:2, 4:1 ,7:3|20-Nov-20|Ada|Lovelace|12|High Street|Leeds");
+        assertEquals("Delivery", order.orderType);
+        assertEquals("17-Nov-20", order.saleDate);
+        assertEquals(3, order.staffID.intValue());
+        assertArrayEquals(new int[] { 1, 4, 7 }, order.productIDsArray);
+        assertArrayEquals(new int[] { 2, 1, 3 }, order.quantitiesArray);
+        assertEquals("20-Nov-20", order.collectionDate);
+        assertEquals("Lovelace", order.lastName);
+        assertEquals("Leeds", order.city);
+    }
+
+    @Test
+    void inStoreOrdersOnlyNeedTheFirstFourFields() {
+        Order order = Order.parse("InStore|17-Nov-20|3|5:1");
+        assertArrayEquals(new int[] { 5 }, order.productIDsArray);
+    }
+
+    @Test
+    void rejectsBadOrders() {
+        assertThrows(IllegalArgumentException.class, () -> Order.parse("InStore|17-Nov-20"));
+        assertThrows(IllegalArgumentException.class, () -> Order.parse("Takeaway|17-Nov-20|3|5:1"));
+        assertThrows(IllegalArgumentException.class, () -> Order.parse("InStore|not a date|3|5:1"));
+        assertThrows(IllegalArgumentException.class, () -> Order.parse("InStore|17-Nov-20|3|5:0"));
+        assertThrows(IllegalArgumentException.class, () -> Order.parse("InStore|17-Nov-20|3|5"));
+        assertThrows(IllegalArgumentException.class, () -> Order.parse("Collection|17-Nov-20|3|5:1|16-Nov-20|A|B"));
+        assertThrows(IllegalArgumentException.class, () -> Order.parse("Delivery|17-Nov-20|3|5:1|20-Nov-20|A|B"));
+    }
+
+    @Test
+    void canonicalLinesMergeRepeatedProductsInProductOrder() {
+        TreeMap<Integer, Integer> lines = Assignment.canonicalLines(new int[] { 4, 1, 4, 2 }, new int[] { 1, 2, 3, 5 });
+        assertEquals("{1=2, 2=5, 4=4}", lines.toString());
+    }
+}
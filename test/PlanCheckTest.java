@@ -0,0 +1,37 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PlanCheckTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recordingKeepsTheCommentsAndLayout() throws Exception {
+        File file = dir.resolve("budgets.properties").toFile();
+        Files.write(file.toPath(), Arrays.asList("# Lookups", "stockLookup.seqScans=", "", "# Reports",
+                "option4.seqScans=inventory", "option4.maxCost=10"), StandardCharsets.UTF_8);
+
+        Map<String, String> recorded = new LinkedHashMap<String, String>();
+        recorded.put("stockLookup.seqScans", "");
+        recorded.put("stockLookup.maxCost", "13");
+        recorded.put("option4.seqScans", "inventory,product_sales");
+        recorded.put("option4.maxCost", "3764");
+        recorded.put("option9.seqScans", "staff");
+        PlanCheck.writeBudgets(file, recorded);
+
+        assertEquals(Arrays.asList("# Lookups", "stockLookup.seqScans=", "stockLookup.maxCost=13", "", "# Reports",
+                "option4.seqScans=inventory,product_sales", "option4.maxCost=3764", "option9.seqScans=staff"),
+                Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.sql.*;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+
+class ReportWriterTest {
+
+    static final Object[][] PRODUCTS = { { 1, "Widget, large", 12 }, { 2, "A \"small\" one", 3 } };
+
+    @Test
+    void writesCsvQuotingWhereNeeded() throws Exception {
+        StringWriter out = new StringWriter();
+        long rows = new ReportWriter(ReportWriter.Format.CSV, out).headings("ID", "Description", "Stock")
+                .write(FakeDatabase.resultSet(PRODUCTS));
+        assertEquals(2, rows);
+        assertEquals("ID,Description,Stock\n1,\"Widget, large\",12\n2,\"A \"\"small\"\" one\",3\n", out.toString());
+    }
+
+    @Test
+    void writesJsonWithNumbersUnquoted() throws Exception {
+        StringWriter out = new StringWriter();
+        new ReportWriter(ReportWriter.Format.JSON, out).headings("id", "desc", "stock")
+                .write(FakeDatabase.resultSet(PRODUCTS));
+        assertEquals("[\n  {\"id\": 1, \"desc\": \"Widget, large\", \"stock\": 12},\n"
+                + "  {\"id\": 2, \"desc\": \"A \\\"small\\\" one\", \"stock\": 3}\n]\n", out.toString());
+    }
+
+    @Test
+    void writesAnEmptyJsonArrayForNoRows() throws Exception {
+        StringWriter out = new StringWriter();
+        assertEquals(0, new ReportWriter(ReportWriter.Format.JSON, out).write(FakeDatabase.resultSet(new Object[0][])));
+        assertEquals("[\n]\n", out.toString());
+    }
+
+    @Test
+    void showsCurrencyColumnsInWholePoundsInTables() throws Exception {
+        StringWriter out = new StringWriter();
+        new ReportWriter(ReportWriter.Format.TABLE, out).currency(2)
+                .write(FakeDatabase.resultSet(new Object[][] { { "Ada", "1234.56" } }));
+        assertTrue(out.toString().contains("£1234"), out.toString());
+        assertFalse(out.toString().contains("1234.56"));
+    }
+
+    @Test
+    void queriesThroughACursorAndRestoresAutocommit() throws Exception {
+        FakeDatabase db = new FakeDatabase().route("FROM inventory", PRODUCTS);
+        Connection conn = db.connect();
+        long rows = new ReportWriter(ReportWriter.Format.CSV, new StringWriter()).query(conn,
+                "SELECT * FROM inventory");
+        assertEquals(2, rows);
+        assertEquals(ReportWriter.FETCH_SIZE, db.lastFetchSize);
+        assertEquals(1, db.commits);
+        assertTrue(db.autoCommit);
+        StatementCache.release(conn);
+    }
+}
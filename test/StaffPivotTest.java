@@ -0,0 +1,28 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.StringWriter;
+import java.sql.Connection;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+
+class StaffPivotTest {
+
+    @Test
+    void readsTheViewThroughACursor() throws Exception {
+        FakeDatabase db = new FakeDatabase().route("highestSellingProductSellersView",
+                new Object[] { 2, "Ada", "Lovelace", 7, 3, 900 },
+                new Object[] { 2, "Ada", "Lovelace", 4, 1, 900 },
+                new Object[] { 1, "Alan", "Turing", 4, 5, 500 });
+        Connection conn = db.connect();
+        StringWriter out = new StringWriter();
+
+        StaffPivot.write(conn, out);
+        assertEquals("Staff Name, Product 7, Product 4\nAda Lovelace, 3, 1\nAlan Turing, 0, 5\n\n", out.toString());
+        assertEquals(ReportWriter.FETCH_SIZE, db.lastFetchSize);
+        assertEquals(1, db.commits);
+        assertTrue(db.autoCommit);
+        StatementCache.release(conn);
+    }
+}
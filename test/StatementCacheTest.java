@@ -0,0 +1,68 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.*;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.Test;
+
+class StatementCacheTest {
+
+    @Test
+    void reusesStatementsAndCountsHits() throws SQLException {
+        StatementCache cache = new StatementCache(new FakeDatabase().connect(), 4);
+        PreparedStatement first = cache.prepare("SELECT 1");
+        assertSame(first, cache.prepare("SELECT 1"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void keepsPreparedAndCallableStatementsApart() throws SQLException {
+        StatementCache cache = new StatementCache(new FakeDatabase().connect(), 4);
+        PreparedStatement prepared = cache.prepare("{ call getQuantity(?) }");
+        CallableStatement call = cache.prepareCall("{ call getQuantity(?) }");
+        assertNotSame(prepared, call);
+        assertSame(call, cache.prepareCall("{ call getQuantity(?) }"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedStatement() throws SQLException {
+        StatementCache cache = new StatementCache(new FakeDatabase().connect(), 2);
+        PreparedStatement a = cache.prepare("A");
+        cache.prepare("B");
+        cache.prepare("A");
+        cache.prepare("C");
+        assertEquals(1, cache.getEvictions());
+        assertFalse(a.isClosed());
+        assertSame(a, cache.prepare("A"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void replacesStatementsThatWereClosed() throws SQLException {
+        StatementCache cache = new StatementCache(new FakeDatabase().connect(), 2);
+        PreparedStatement a = cache.prepare("A");
+        a.close();
+        assertNotSame(a, cache.prepare("A"));
+    }
+
+    @Test
+    void dropsTheCachesOfClosedConnections() throws SQLException {
+        FakeDatabase db = new FakeDatabase();
+        Connection conn = db.connect();
+        StatementCache cache = StatementCache.of(conn);
+        assertSame(cache, StatementCache.of(conn));
+        PreparedStatement stmt = cache.prepare("A");
+
+        // Closed without being released - the next new cache sweeps it up
+        conn.close();
+        Connection other = new FakeDatabase().connect();
+        StatementCache.of(other);
+        assertTrue(stmt.isClosed());
+        assertNotSame(cache, StatementCache.of(conn));
+        StatementCache.release(conn);
+        StatementCache.release(other);
+    }
+}
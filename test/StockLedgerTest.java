@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.*;
+
+import invmgmt.testing.FakeDatabase;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class StockLedgerTest {
+
+    static final String LOAD = "FROM inventory WHERE ProductID = ?";
+    static final String RECONCILE = "ProductID = ANY(?)";
+    static final int[] PRODUCT = { 1 };
+
+    final FakeDatabase db = new FakeDatabase();
+    final Connection conn = db.connect();
+    final StockLedger ledger = new StockLedger();
+
+    @AfterEach
+    void releaseStatements() {
+        StatementCache.release(conn);
+    }
+
+    boolean reserve(int quantity) throws SQLException {
+        return ledger.reserve(conn, PRODUCT, new int[] { quantity });
+    }
+
+    @Test
+    void reservesUntilTheStockRunsOut() throws SQLException {
+        db.route(LOAD, new Object[] { 5 });
+        assertTrue(reserve(3));
+        assertFalse(reserve(3));
+        assertTrue(reserve(2));
+        assertEquals(1, db.count(LOAD));
+        assertEquals(2, ledger.getReservations());
+        assertEquals(1, ledger.getRejections());
+    }
+
+    @Test
+    void aShortOrderReloadsTheProductWithoutLosingOtherReservations() throws SQLException {
+        db.route(LOAD, new Object[] { 10 });
+        assertTrue(reserve(3));
+        assertTrue(reserve(2));
+
+        // The first order is rejected by the database, which has sold 6 to another process
+        ledger.cancel(PRODUCT, new int[] { 3 }, true);
+        db.route(LOAD, new Object[] { 4 });
+
+        // The second order still holds 2 of the 4
+        assertFalse(reserve(3));
+        assertEquals(2, db.count(LOAD));
+        assertTrue(reserve(2));
+
+        // Both commit, and reconcile sees the 4 gone from inventory without counting them twice
+        ledger.confirm(PRODUCT, new int[] { 2 });
+        ledger.confirm(PRODUCT, new int[] { 2 });
+        db.route(RECONCILE, new Object[] { 1, 0 });
+        ledger.reconcile(conn);
+        assertFalse(reserve(1));
+
+        db.route(RECONCILE, new Object[] { 1, 5 });
+        ledger.reconcile(conn);
+        assertFalse(reserve(6));
+        assertTrue(reserve(5));
+        assertEquals(1, ledger.getConflicts());
+    }
+
+    @Test
+    void aFailedOrderHandsItsStockBack() throws SQLException {
+        db.route(LOAD, new Object[] { 5 });
+        assertTrue(reserve(5));
+        ledger.cancel(PRODUCT, new int[] { 5 }, false);
+        assertTrue(reserve(5));
+        assertEquals(1, db.count(LOAD));
+    }
+}
@@ -0,0 +1,284 @@
+package invmgmt.testing;
+
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+
+// A JDBC stand-in for the unit tests and the benchmarks, built from dynamic proxies so it doesn't need to implement
+// the whole of each interface. Each query gets the rows of the first registered SQL fragment it contains (or the
+// default rows, none unless set), and a fragment can be made to fail instead. Every statement executed, and what
+// was done to the connection, is recorded so the tests can check it - the benchmarks switch that off with
+// recordNothing, so that a long run neither grows the lists nor times them.
+// It is in a package of its own, rather than the default package with the tests, so that the benchmarks in
+// invmgmt.bench can use it too. benchmarks/pom.xml compiles it from here.
+public class FakeDatabase {
+
+    final Map<String, Object[][]> routes = new LinkedHashMap<String, Object[][]>();
+    final Map<String, Deque<SQLException>> failures = new HashMap<String, Deque<SQLException>>();
+    final Map<String, Deque<Object[][]>> sequences = new LinkedHashMap<String, Deque<Object[][]>>();
+    private Object[][] defaultRows = new Object[0][];
+    private int callResult = 0;
+    private boolean recording = true;
+    public final List<String> executed = new ArrayList<String>();
+    public final List<String> calls = new ArrayList<String>();
+    // Every parameter value set on a statement, in order
+    public final List<Object> parameters = new ArrayList<Object>();
+    public boolean autoCommit = true;
+    public boolean closed = false;
+    public int commits = 0;
+    public int rollbacks = 0;
+    public int lastFetchSize = 0;
+
+    public FakeDatabase route(String sqlFragment, Object[]... rows) {
+        routes.put(sqlFragment, rows);
+        return this;
+    }
+
+    // What a query gets when none of the routes match
+    public FakeDatabase rows(Object[]... rows) {
+        defaultRows = rows;
+        return this;
+    }
+
+    // What the out parameters of a call read back as
+    public FakeDatabase callResult(int value) {
+        callResult = value;
+        return this;
+    }
+
+    // The next query containing sqlFragment throws e, once per call
+    public FakeDatabase fail(String sqlFragment, SQLException e) {
+        Deque<SQLException> queue = failures.get(sqlFragment);
+        if (queue == null) {
+            queue = new ArrayDeque<SQLException>();
+            failures.put(sqlFragment, queue);
+        }
+        queue.add(e);
+        return this;
+    }
+
+    // Successive queries containing sqlFragment get each of results in turn, and then no rows
+    public FakeDatabase sequence(String sqlFragment, Object[][]... results) {
+        sequences.put(sqlFragment, new ArrayDeque<Object[][]>(Arrays.asList(results)));
+        return this;
+    }
+
+    // Stop recording the statements executed and the parameters set on them
+    public FakeDatabase recordNothing() {
+        recording = false;
+        return this;
+    }
+
+    public int count(String sqlFragment) {
+        int n = 0;
+        for (String sql : executed) {
+            if (sql.contains(sqlFragment)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private Object[][] run(String sql) throws SQLException {
+        if (sql == null) {
+            return defaultRows;
+        }
+        if (recording) {
+            executed.add(sql);
+        }
+        for (Map.Entry<String, Deque<SQLException>> failure : failures.entrySet()) {
+            if (sql.contains(failure.getKey()) && !failure.getValue().isEmpty()) {
+                throw failure.getValue().poll();
+            }
+        }
+        for (Map.Entry<String, Deque<Object[][]>> sequence : sequences.entrySet()) {
+            if (sql.contains(sequence.getKey())) {
+                return sequence.getValue().isEmpty() ? new Object[0][] : sequence.getValue().poll();
+            }
+        }
+        for (Map.Entry<String, Object[][]> route : routes.entrySet()) {
+            if (sql.contains(route.getKey())) {
+                return route.getValue();
+            }
+        }
+        return defaultRows;
+    }
+
+    public Connection connect() {
+        return proxy(Connection.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "prepareStatement":
+                        return statement(PreparedStatement.class, (String) args[0]);
+                    case "prepareCall":
+                        return statement(CallableStatement.class, (String) args[0]);
+                    case "createStatement":
+                        return statement(Statement.class, null);
+                    case "createArrayOf":
+                        return proxy(java.sql.Array.class, nothing());
+                    case "getAutoCommit":
+                        return autoCommit;
+                    case "setAutoCommit":
+                        autoCommit = (Boolean) args[0];
+                        return null;
+                    case "commit":
+                        commits++;
+                        return null;
+                    case "rollback":
+                        rollbacks++;
+                        return null;
+                    case "setSavepoint":
+                        return proxy(Savepoint.class, nothing());
+                    case "close":
+                        closed = true;
+                        return null;
+                    case "isClosed":
+                        return closed;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "FakeDatabase connection";
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+        });
+    }
+
+    private <T extends Statement> T statement(Class<T> type, final String prepared) {
+        return proxy(type, new InvocationHandler() {
+            boolean statementClosed = false;
+            // What the last execute returned, for getResultSet
+            Object[][] lastRows = new Object[0][];
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "executeQuery":
+                        return resultSet(run(args == null ? prepared : (String) args[0]));
+                    case "execute":
+                        if (prepared != null && recording) {
+                            calls.add(prepared);
+                        }
+                        lastRows = run(args == null ? prepared : (String) args[0]);
+                        return false;
+                    case "executeUpdate":
+                        run(args == null ? prepared : (String) args[0]);
+                        return 0;
+                    case "getResultSet":
+                        return resultSet(lastRows);
+                    case "getInt":
+                        return callResult;
+                    case "setInt":
+                    case "setLong":
+                    case "setString":
+                    case "setDate":
+                    case "setArray":
+                        if (recording) {
+                            parameters.add(args[1]);
+                        }
+                        return null;
+                    case "setFetchSize":
+                        lastFetchSize = (Integer) args[0];
+                        return null;
+                    case "close":
+                        statementClosed = true;
+                        return null;
+                    case "isClosed":
+                        return statementClosed;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+        });
+    }
+
+    public static ResultSet resultSet(final Object[][] rows) {
+        final ResultSetMetaData metaData = proxy(ResultSetMetaData.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getColumnCount":
+                        return rows.length == 0 ? 0 : rows[0].length;
+                    case "getColumnLabel":
+                    case "getColumnName":
+                        return "column" + args[0];
+                    case "getColumnType":
+                        Object value = rows.length == 0 ? null : rows[0][(Integer) args[0] - 1];
+                        return value instanceof Number ? Types.NUMERIC : Types.VARCHAR;
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+        });
+        return proxy(ResultSet.class, new InvocationHandler() {
+            int row = -1;
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "next":
+                        return ++row < rows.length;
+                    case "getMetaData":
+                        return metaData;
+                    case "getInt":
+                        return value(args) == null ? 0 : ((Number) value(args)).intValue();
+                    case "getLong":
+                        return value(args) == null ? 0L : ((Number) value(args)).longValue();
+                    case "getBoolean":
+                        return value(args) != null && (Boolean) value(args);
+                    case "getString":
+                        return value(args) == null ? null : String.valueOf(value(args));
+                    case "getBigDecimal":
+                        return value(args) == null ? null : new BigDecimal(String.valueOf(value(args)));
+                    case "getDate":
+                        return (java.sql.Date) value(args);
+                    case "getObject":
+                        return value(args);
+                    default:
+                        return defaultValue(method.getReturnType());
+                }
+            }
+
+            private Object value(Object[] args) {
+                return rows[row][(Integer) args[0] - 1];
+            }
+        });
+    }
+
+    public static InvocationHandler nothing() {
+        return new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return defaultValue(method.getReturnType());
+            }
+        };
+    }
+
+    public static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(FakeDatabase.class.getClassLoader(), new Class<?>[] { type }, handler));
+    }
+
+    // Methods we don't care about still have to return something of the right type
+    public static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class || type == short.class || type == byte.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0.0;
+        }
+        if (type == float.class) {
+            return 0.0f;
+        }
+        return null;
+    }
+}